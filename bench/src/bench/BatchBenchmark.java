@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package bench;
+
+import cpr.CPRBatchDecoder;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Batch decodes of a block of good frames, scored per frame.
+ *
+ * The backend parameter is "scalar" for the scalar batch code, or "best"
+ * for whatever CPRBatchDecoder.create() picks on this JVM. The vector code
+ * runs very slowly until C2 has compiled it, hence the longer warmup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 6, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+
+    @Param({"scalar", "best"})
+    public String backend;
+
+    private CPRBatchDecoder decoder;
+    private Positions airborne;
+    private Positions relative;
+    private boolean[] surface = new boolean[Positions.SIZE];
+    private double[] lat = new double[Positions.SIZE];
+    private double[] lon = new double[Positions.SIZE];
+    private byte[] status = new byte[Positions.SIZE];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        decoder = "scalar".equals(backend) ? CPRBatchDecoder.scalar() : CPRBatchDecoder.create();
+        airborne = new Positions(1).airborne(true);
+        relative = new Positions(3).relative(true);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Positions.SIZE)
+    public int airborne() {
+        Positions p = airborne;
+
+        return decoder.decodeCPRairborne(p.even_cprlat, p.even_cprlon, p.odd_cprlat, p.odd_cprlon, p.fflag,
+                lat, lon, status, 0, Positions.SIZE);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Positions.SIZE)
+    public int relative() {
+        Positions p = relative;
+
+        return decoder.decodeCPRrelative(p.reflat, p.reflon, p.cprlat, p.cprlon, p.fflag, surface,
+                lat, lon, status, 0, Positions.SIZE);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package bench;
+
+import cpr.CPRColumnReader;
+import cpr.CPRColumnWriter;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Reading a column file back, scored per row: a sum down the latitude
+ * and longitude column views of every block (8 bytes a row), and a scan
+ * of whole rows through a visitor. Writing is scored per row too. The
+ * file of 8M rows is written once, and is in the page cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColumnBenchmark {
+
+    private static final int ROWS = 1 << 23;
+
+    private Path file;
+    private Path scratch;
+    private CPRColumnReader reader;
+    private long sum;
+
+    private static void write(Path path) throws IOException {
+        Random rand = new Random(1090L);
+
+        try (CPRColumnWriter writer = new CPRColumnWriter(path, 65536)) {
+            for (int i = 0; i < ROWS; i++) {
+                int a = rand.nextInt(5000);
+
+                writer.append(0x400000 + a, 1500000000000L + i * 2L, 300000000 + a * 100000 + i, a * 300000 - i,
+                        a < 500);
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = Files.createTempFile("cpr", ".col");
+        scratch = Files.createTempFile("cpr", ".col");
+        write(file);
+        reader = new CPRColumnReader(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.close();
+        Files.delete(file);
+        Files.delete(scratch);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long columns() {
+        long s = 0L;
+
+        for (int b = 0; b < reader.getBlocks(); b++) {
+            CPRColumnReader.Block block = reader.block(b);
+            IntBuffer lats = block.lats();
+            IntBuffer lons = block.lons();
+
+            for (int i = 0, n = block.rows(); i < n; i++) {
+                s += lats.get(i) + lons.get(i);
+            }
+        }
+
+        return s;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long rows() {
+        sum = 0L;
+        reader.scan((key, time, lat, lon, surface) -> sum += key + time + lat + lon);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long write() throws IOException {
+        write(scratch);
+        return Files.size(scratch);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package bench;
+
+import cpr.CPR;
+import cpr.CPRException;
+import cpr.CPRFixedDecoder;
+import cpr.CPRMetrics;
+import cpr.CPRSiteDecoder;
+import cpr.LatLon;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * One decode per operation, through each public decode path.
+ *
+ * The input parameter picks frames that all decode ("good") or that are
+ * all rejected ("bad"). The decodeCPR* benchmarks use the LatLon returning,
+ * throwing methods; the try* benchmarks use the status code methods with a
+ * reused result array.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+    @Param({"good", "bad"})
+    public String input;
+
+    private final CPR cpr = CPR.shared();
+    private final CPR metered = new CPR(new CPRMetrics());
+    private final double[] result = new double[2];
+    private final CPRFixedDecoder fixed = CPRFixedDecoder.shared(false);
+    private final int[] fixedResult = new int[2];
+    private final int[] fixedReflat = new int[Positions.SIZE];
+    private final int[] fixedReflon = new int[Positions.SIZE];
+    private Positions airborne;
+    private Positions surface;
+    private Positions relative;
+    private Positions site;
+    private CPRSiteDecoder siteDecoder;
+    private int n;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        boolean good = "good".equals(input);
+
+        airborne = new Positions(1).airborne(good);
+        surface = new Positions(2).surface(good);
+        relative = new Positions(3).relative(good);
+        site = new Positions(4).site(52.3, 4.8, good);
+        siteDecoder = new CPRSiteDecoder(52.3, 4.8);
+
+        for (int i = 0; i < Positions.SIZE; i++) {
+            fixedReflat[i] = CPRFixedDecoder.fromDegrees(relative.reflat[i]);
+            fixedReflon[i] = CPRFixedDecoder.fromDegrees(relative.reflon[i]);
+        }
+    }
+
+    private int next() {
+        return n++ & Positions.MASK;
+    }
+
+    @Benchmark
+    public Object decodeCPRairborne() {
+        Positions p = airborne;
+        int i = next();
+
+        try {
+            return cpr.decodeCPRairborne(p.even_cprlat[i], p.even_cprlon[i], p.odd_cprlat[i], p.odd_cprlon[i], p.fflag[i]);
+        } catch (CPRException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Object decodeCPRsurface() {
+        Positions p = surface;
+        int i = next();
+
+        try {
+            return cpr.decodeCPRsurface(p.reflat[i], p.reflon[i], p.even_cprlat[i], p.even_cprlon[i],
+                    p.odd_cprlat[i], p.odd_cprlon[i], p.fflag[i]);
+        } catch (CPRException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Object decodeCPRrelative() {
+        Positions p = relative;
+        int i = next();
+
+        try {
+            return cpr.decodeCPRrelative(p.reflat[i], p.reflon[i], p.cprlat[i], p.cprlon[i], p.fflag[i], false);
+        } catch (CPRException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public double tryDecodeCPRairborne() {
+        Positions p = airborne;
+        int i = next();
+
+        return cpr.tryDecodeCPRairborne(p.even_cprlat[i], p.even_cprlon[i], p.odd_cprlat[i], p.odd_cprlon[i],
+                p.fflag[i], result, 0) + result[0];
+    }
+
+    @Benchmark
+    public double tryDecodeCPRsurface() {
+        Positions p = surface;
+        int i = next();
+
+        return cpr.tryDecodeCPRsurface(p.reflat[i], p.reflon[i], p.even_cprlat[i], p.even_cprlon[i],
+                p.odd_cprlat[i], p.odd_cprlon[i], p.fflag[i], result, 0) + result[0];
+    }
+
+    @Benchmark
+    public double tryDecodeCPRrelative() {
+        Positions p = relative;
+        int i = next();
+
+        return cpr.tryDecodeCPRrelative(p.reflat[i], p.reflon[i], p.cprlat[i], p.cprlon[i], p.fflag[i], false,
+                result, 0) + result[0];
+    }
+
+    /*
+     * The same with metrics on, timing one decode in 64
+     */
+    @Benchmark
+    public double tryDecodeCPRrelativeMetrics() {
+        Positions p = relative;
+        int i = next();
+
+        return metered.tryDecodeCPRrelative(p.reflat[i], p.reflon[i], p.cprlat[i], p.cprlon[i], p.fflag[i], false,
+                result, 0) + result[0];
+    }
+
+    /*
+     * A fixed receiver site, through the plain relative decode and the
+     * site decoder
+     */
+    @Benchmark
+    public double tryDecodeCPRrelativeSite() {
+        Positions p = site;
+        int i = next();
+
+        return cpr.tryDecodeCPRrelative(p.reflat[i], p.reflon[i], p.cprlat[i], p.cprlon[i], p.fflag[i], false,
+                result, 0) + result[0];
+    }
+
+    @Benchmark
+    public double siteDecode() {
+        Positions p = site;
+        int i = next();
+
+        return siteDecoder.decode(p.cprlat[i], p.cprlon[i], p.fflag[i], false, result, 0) + result[0];
+    }
+
+    /*
+     * The fixed point decoder, in fast mode
+     */
+    @Benchmark
+    public int fixedAirborne() {
+        Positions p = airborne;
+        int i = next();
+
+        return fixed.decodeAirborne(p.even_cprlat[i], p.even_cprlon[i], p.odd_cprlat[i], p.odd_cprlon[i],
+                p.fflag[i], fixedResult, 0) + fixedResult[0];
+    }
+
+    @Benchmark
+    public int fixedRelative() {
+        Positions p = relative;
+        int i = next();
+
+        return fixed.decodeRelative(fixedReflat[i], fixedReflon[i], p.cprlat[i], p.cprlon[i], p.fflag[i], false,
+                fixedResult, 0) + fixedResult[0];
+    }
+
+    /*
+     * The zone lookup on its own, over the latitudes of the good or bad
+     * airborne positions (the bad ones all sit next to a zone boundary)
+     */
+    @Benchmark
+    public int cprNLFunction() {
+        return cpr.cprNLFunction(airborne.lat[next()]);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package bench;
+
+import cpr.CPREncoder;
+import cpr.CPRFileDecoder;
+import cpr.CPRFrame;
+import cpr.CPRFrameScanner;
+import cpr.CPRReplay;
+import cpr.CPRTracker;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Decoding a capture file of airborne position frames, scored per frame.
+ *
+ * The capture holds a fleet of aircraft reporting in turn, even and odd
+ * frames alternating, in hex or Beast format. Each run decodes the whole
+ * file with fresh trackers, sequentially with CPRFileDecoder or in
+ * parallel with CPRReplay on the common pool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileDecodeBenchmark {
+
+    private static final int FLEET = 5000;
+    private static final int FRAMES = 1 << 20;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    @Param({"hex", "beast"})
+    public String format;
+
+    @Param({"file", "replay"})
+    public String decoder;
+
+    private Path file;
+    private long positions;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        CPREncoder enc = CPREncoder.shared();
+        Random rand = new Random(1090L);
+        double[] lat = new double[FLEET];
+        double[] lon = new double[FLEET];
+        int[] cpr17 = new int[2];
+        byte[] frame = new byte[CPRFrame.LENGTH];
+        boolean beast = "beast".equals(format);
+
+        for (int a = 0; a < FLEET; a++) {
+            lat[a] = rand.nextDouble() * 140.0 - 70.0;
+            lon[a] = rand.nextDouble() * 360.0 - 180.0;
+        }
+
+        file = Files.createTempFile("cpr", beast ? ".beast" : ".hex");
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+            for (int i = 0; i < FRAMES; i++) {
+                int a = i % FLEET;
+                boolean fflag = ((i / FLEET) & 1) != 0;
+                long ticks = i * 12000L;
+
+                enc.encodeCPRairborne(lat[a], lon[a], fflag, cpr17, 0);
+                CPRFrame.writePosition(0x400000 + a, 11, fflag, cpr17[0], cpr17[1], frame, 0);
+
+                if (beast) {
+                    out.write(0x1a);
+                    out.write('3');
+
+                    for (int k = 0; k < 7 + CPRFrame.LENGTH; k++) {
+                        int b = (k < 6) ? (int) (ticks >>> (40 - 8 * k)) & 0xFF : (k == 6) ? 0x80 : frame[k - 7] & 0xFF;
+
+                        out.write(b);
+
+                        if (b == 0x1a) {
+                            out.write(b);
+                        }
+                    }
+                } else {
+                    out.write('@');
+
+                    for (int k = 44; k >= 0; k -= 4) {
+                        out.write(HEX[(int) (ticks >>> k) & 15]);
+                    }
+
+                    for (byte b : frame) {
+                        out.write(HEX[(b >>> 4) & 15]);
+                        out.write(HEX[b & 15]);
+                    }
+
+                    out.write(';');
+                    out.write('\n');
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.delete(file);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long decode() throws IOException {
+        int fmt = "beast".equals(format) ? CPRFrameScanner.BEAST : CPRFrameScanner.HEX;
+
+        positions = 0;
+
+        if ("replay".equals(decoder)) {
+            CPRReplay replay = new CPRReplay(fmt, 64, () -> new CPRTracker(FLEET / 64 * 2), 4096);
+
+            replay.decode(file, chunk -> positions += chunk.size());
+        } else {
+            new CPRFileDecoder(fmt, new CPRTracker(FLEET), 4096).decode(file, chunk -> positions += chunk.size());
+        }
+
+        return positions;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package bench;
+
+import cpr.CPRGridIndex;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Area queries over the latest positions of a fleet: CPRGridIndex radius
+ * and box queries against a scan of every aircraft, and the cost of an
+ * update. The fleet is spread over Europe, 100 km radius and 2 degree box
+ * queries are centred on random aircraft.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GridBenchmark {
+
+    private static final int QUERIES = 1024;
+    private static final double RADIUS = 100000.0;
+    private static final double METRES_PER_DEGREE = 6371008.8 * Math.PI / 180.0;
+
+    @Param({"10000"})
+    public int fleet;
+
+    private double[] lat;
+    private double[] lon;
+    private final double[] qlat = new double[QUERIES];
+    private final double[] qlon = new double[QUERIES];
+    private CPRGridIndex index;
+    private long found;
+    private final CPRGridIndex.Visitor counter = (key, time, plat, plon, surface) -> found++;
+    private int n;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random rand = new Random(1090L);
+
+        lat = new double[fleet];
+        lon = new double[fleet];
+        index = new CPRGridIndex(fleet, 0.5);
+
+        for (int a = 0; a < fleet; a++) {
+            lat[a] = 36.0 + rand.nextDouble() * 30.0;
+            lon[a] = -10.0 + rand.nextDouble() * 40.0;
+            index.update(0x400000 + a, 0L, lat[a], lon[a], false);
+        }
+
+        for (int q = 0; q < QUERIES; q++) {
+            int a = rand.nextInt(fleet);
+
+            qlat[q] = lat[a];
+            qlon[q] = lon[a];
+        }
+    }
+
+    @Benchmark
+    public long gridRadius() {
+        int q = n++ & (QUERIES - 1);
+
+        return index.query(qlat[q], qlon[q], RADIUS, counter);
+    }
+
+    @Benchmark
+    public long scanRadius() {
+        int q = n++ & (QUERIES - 1);
+        double clat = qlat[q], clon = qlon[q];
+        double r2 = RADIUS * RADIUS / (METRES_PER_DEGREE * METRES_PER_DEGREE);
+        long hits = 0L;
+
+        for (int a = 0; a < fleet; a++) {
+            double dlat = lat[a] - clat;
+            double dlon = (lon[a] - clon) * Math.cos(Math.toRadians((lat[a] + clat) * 0.5));
+
+            if (dlat * dlat + dlon * dlon <= r2) {
+                hits++;
+            }
+        }
+
+        return hits;
+    }
+
+    @Benchmark
+    public long gridBox() {
+        int q = n++ & (QUERIES - 1);
+
+        return index.query(qlat[q] - 1.0, qlon[q] - 1.0, qlat[q] + 1.0, qlon[q] + 1.0, counter);
+    }
+
+    @Benchmark
+    public long scanBox() {
+        int q = n++ & (QUERIES - 1);
+        double south = qlat[q] - 1.0, north = qlat[q] + 1.0, west = qlon[q] - 1.0, east = qlon[q] + 1.0;
+        long hits = 0L;
+
+        for (int a = 0; a < fleet; a++) {
+            if (lat[a] >= south && lat[a] <= north && lon[a] >= west && lon[a] <= east) {
+                hits++;
+            }
+        }
+
+        return hits;
+    }
+
+    @Benchmark
+    public boolean update() {
+        int a = n++ % fleet;
+
+        lat[a] += ((n / fleet) & 1) == 0 ? 0.01 : -0.01;     // back and forth, across cell edges now and then
+        return index.update(0x400000 + a, n, lat[a], lon[a], false);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package bench;
+
+import cpr.CPR;
+import cpr.CPREncoder;
+import cpr.CPRStatus;
+import java.util.Random;
+
+/*
+ * Benchmark inputs: positions drawn from a worldwide traffic distribution,
+ * and the CPR frames for them.
+ *
+ * Most positions cluster around busy airports and the North Atlantic
+ * tracks, the rest are spread evenly over the globe. Every input set is
+ * checked against the decoder, so a "good" set always decodes and a "bad"
+ * set is always rejected.
+ */
+final class Positions {
+
+    /*
+     * lat, lon, spread in degrees
+     */
+    private static final double[][] HUBS = {
+        {40.6, -73.8, 4.0}, {33.9, -118.4, 4.0}, {41.9, -87.9, 5.0}, {33.6, -84.4, 4.0},
+        {51.5, -0.4, 3.0}, {50.0, 8.5, 3.0}, {48.9, 2.5, 3.0}, {52.3, 4.8, 2.0},
+        {55.6, 37.4, 4.0}, {60.3, 24.9, 3.0}, {55.0, -30.0, 8.0}, {64.0, -22.6, 5.0},
+        {25.2, 55.3, 3.0}, {28.5, 77.1, 4.0}, {1.4, 104.0, 3.0}, {22.3, 113.9, 3.0},
+        {31.1, 121.8, 3.0}, {35.5, 139.8, 3.0}, {37.5, 126.4, 2.0}, {-33.9, 151.2, 4.0},
+        {-23.4, -46.5, 4.0}, {-26.1, 28.2, 4.0}, {19.4, -99.1, 3.0}, {-37.0, 174.8, 2.0}
+    };
+
+    static final int SIZE = 4096;
+    static final int MASK = SIZE - 1;
+
+    private static final double ZONE = 360.0 / 60.0;
+
+    private final CPR cpr = CPR.shared();
+    private final CPREncoder enc = CPREncoder.shared();
+    private final Random rand;
+
+    // global frame pairs, and the fflag of the latest frame
+    final int[] even_cprlat = new int[SIZE];
+    final int[] even_cprlon = new int[SIZE];
+    final int[] odd_cprlat = new int[SIZE];
+    final int[] odd_cprlon = new int[SIZE];
+    final boolean[] fflag = new boolean[SIZE];
+
+    // reference positions, for surface and relative decodes
+    final double[] reflat = new double[SIZE];
+    final double[] reflon = new double[SIZE];
+
+    // single frames, for relative decodes
+    final int[] cprlat = new int[SIZE];
+    final int[] cprlon = new int[SIZE];
+
+    // the true latitudes
+    final double[] lat = new double[SIZE];
+
+    Positions(long seed) {
+        rand = new Random(seed);
+    }
+
+    /*
+     * A latitude and longitude from the traffic distribution
+     */
+    private void position(double[] p) {
+        if (rand.nextInt(5) == 0) {
+            p[0] = Math.toDegrees(Math.asin(rand.nextDouble() * 2.0 - 1.0));
+            p[1] = rand.nextDouble() * 360.0 - 180.0;
+        } else {
+            double[] hub = HUBS[rand.nextInt(HUBS.length)];
+
+            p[0] = Math.max(-89.0, Math.min(89.0, hub[0] + rand.nextGaussian() * hub[2]));
+            p[1] = hub[1] + rand.nextGaussian() * hub[2] * 1.5;
+            p[1] -= Math.floor((p[1] + 180.0) / 360.0) * 360.0;
+        }
+    }
+
+    /*
+     * A position just south of a random NL zone boundary
+     */
+    private void boundary(double[] p) {
+        int nl = 2 + rand.nextInt(58);
+        double a = (1.0 - Math.cos(Math.PI / 30.0)) / (1.0 - Math.cos(2.0 * Math.PI / nl));
+
+        p[0] = Math.toDegrees(Math.acos(Math.sqrt(a))) * (rand.nextBoolean() ? 1.0 : -1.0) - 0.004;
+        p[1] = rand.nextDouble() * 360.0 - 180.0;
+    }
+
+    /*
+     * Global airborne pairs. A good pair is sent from one position, a bad
+     * pair straddles a latitude zone boundary.
+     */
+    Positions airborne(boolean good) {
+        double[] p = new double[2];
+        double[] pos = new double[2];
+        int[] f = new int[2];
+
+        for (int i = 0; i < SIZE;) {
+            if (good) {
+                position(p);
+            } else {
+                boundary(p);
+            }
+
+            enc.encodeCPRairborne(p[0], p[1], false, f, 0);
+            even_cprlat[i] = f[0];
+            even_cprlon[i] = f[1];
+            enc.encodeCPRairborne(p[0] + (good ? 0.0 : 0.008), p[1], true, f, 0);
+            odd_cprlat[i] = f[0];
+            odd_cprlon[i] = f[1];
+            fflag[i] = rand.nextBoolean();
+            lat[i] = p[0];
+
+            int status = cpr.tryDecodeCPRairborne(even_cprlat[i], even_cprlon[i], odd_cprlat[i], odd_cprlon[i], fflag[i], pos, 0);
+
+            if ((status == CPRStatus.OK) == good) {
+                i++;
+            }
+        }
+
+        return this;
+    }
+
+    /*
+     * Global surface pairs, with a reference up to 2 degrees away
+     */
+    Positions surface(boolean good) {
+        double[] p = new double[2];
+        double[] pos = new double[2];
+        int[] f = new int[2];
+
+        for (int i = 0; i < SIZE;) {
+            if (good) {
+                position(p);
+            } else {
+                boundary(p);
+            }
+
+            enc.encodeCPRsurface(p[0], p[1], false, f, 0);
+            even_cprlat[i] = f[0];
+            even_cprlon[i] = f[1];
+            enc.encodeCPRsurface(p[0] + (good ? 0.0 : 0.008), p[1], true, f, 0);
+            odd_cprlat[i] = f[0];
+            odd_cprlon[i] = f[1];
+            fflag[i] = rand.nextBoolean();
+            reflat[i] = p[0] + (rand.nextDouble() - 0.5) * 4.0;
+            reflon[i] = p[1] + (rand.nextDouble() - 0.5) * 4.0;
+            lat[i] = p[0];
+
+            int status = cpr.tryDecodeCPRsurface(reflat[i], reflon[i], even_cprlat[i], even_cprlon[i],
+                    odd_cprlat[i], odd_cprlon[i], fflag[i], pos, 0);
+
+            if ((status == CPRStatus.OK) == good) {
+                i++;
+            }
+        }
+
+        return this;
+    }
+
+    /*
+     * Single airborne frames, with a reference under half a cell away for
+     * good frames, and over half a cell away in latitude or longitude for
+     * bad ones
+     */
+    Positions relative(boolean good) {
+        double[] p = new double[2];
+        double[] pos = new double[2];
+        int[] f = new int[2];
+
+        for (int i = 0; i < SIZE;) {
+            position(p);
+            fflag[i] = rand.nextBoolean();
+            enc.encodeCPRairborne(p[0], p[1], fflag[i], f, 0);
+            cprlat[i] = f[0];
+            cprlon[i] = f[1];
+            lat[i] = p[0];
+
+            if (good) {
+                reflat[i] = p[0] + (rand.nextDouble() - 0.5) * 2.0;
+                reflon[i] = p[1] + (rand.nextDouble() - 0.5) * 2.0;
+            } else if (rand.nextBoolean()) {
+                reflat[i] = p[0] + ZONE * (0.55 + rand.nextDouble() * 0.4) * (rand.nextBoolean() ? 1.0 : -1.0);
+                reflon[i] = p[1];
+            } else {
+                double dlon = 360.0 / Math.max(cpr.cprNLFunction(p[0]) - (fflag[i] ? 1 : 0), 1);
+
+                reflat[i] = p[0];
+                reflon[i] = p[1] + dlon * (0.55 + rand.nextDouble() * 0.4) * (rand.nextBoolean() ? 1.0 : -1.0);
+            }
+
+            int status = cpr.tryDecodeCPRrelative(reflat[i], reflon[i], cprlat[i], cprlon[i], fflag[i], false, pos, 0);
+
+            if ((status == CPRStatus.OK) == good) {
+                i++;
+            }
+        }
+
+        return this;
+    }
+
+    /*
+     * Single frames around one receiver site, for the site decoder: within
+     * 3 degrees if good, else pushed more than half a zone out
+     */
+    Positions site(double sitelat, double sitelon, boolean good) {
+        double[] pos = new double[2];
+        int[] f = new int[2];
+
+        for (int i = 0; i < SIZE;) {
+            double lat = sitelat + (rand.nextDouble() - 0.5) * 6.0;
+            double lon = sitelon + (rand.nextDouble() - 0.5) * 6.0;
+
+            if (!good) {
+                lat += ZONE * (rand.nextBoolean() ? 1.0 : -1.0);
+            }
+
+            fflag[i] = rand.nextBoolean();
+            enc.encodeCPRairborne(lat, lon, fflag[i], f, 0);
+            cprlat[i] = f[0];
+            cprlon[i] = f[1];
+            reflat[i] = sitelat;
+            reflon[i] = sitelon;
+            this.lat[i] = lat;
+
+            int status = cpr.tryDecodeCPRrelative(sitelat, sitelon, cprlat[i], cprlon[i], fflag[i], false, pos, 0);
+
+            if ((status == CPRStatus.OK) == good) {
+                i++;
+            }
+        }
+
+        return this;
+    }
+}
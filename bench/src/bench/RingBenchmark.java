@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package bench;
+
+import cpr.CPREncoder;
+import cpr.CPRFileDecoder;
+import cpr.CPRRing;
+import cpr.CPRStatus;
+import cpr.CPRTracker;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Handing frames to decoding, scored per frame.
+ *
+ * A batch of airborne frames is published and then drained into a
+ * tracker, through CPRRing or, for comparison, through an
+ * ArrayBlockingQueue of one object per frame. Both run on one thread, so
+ * this measures the cost of the hand off itself, not waiting.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RingBenchmark {
+
+    private static final int BATCH = 256;
+    private static final int FLEET = 1000;
+
+    private static final class Frame {
+
+        final int key;
+        final long time;
+        final boolean fflag;
+        final int cprlat;
+        final int cprlon;
+
+        Frame(int key, long time, boolean fflag, int cprlat, int cprlon) {
+            this.key = key;
+            this.time = time;
+            this.fflag = fflag;
+            this.cprlat = cprlat;
+            this.cprlon = cprlon;
+        }
+    }
+
+    private final int[] cprlat = new int[2 * FLEET];
+    private final int[] cprlon = new int[2 * FLEET];
+    private final double[] pos = new double[2];
+    private CPRRing ring;
+    private ArrayBlockingQueue<Frame> queue;
+    private CPRTracker tracker;
+    private long positions;
+    private final CPRFileDecoder.Sink sink = chunk -> positions += chunk.size();
+    private int n;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int[] f = new int[2];
+
+        for (int a = 0; a < FLEET; a++) {
+            for (int odd = 0; odd < 2; odd++) {
+                CPREncoder.shared().encodeCPRairborne(-60.0 + a * 0.12, -170.0 + a * 0.34, odd == 1, f, 0);
+                cprlat[a * 2 + odd] = f[0];
+                cprlon[a * 2 + odd] = f[1];
+            }
+        }
+
+        ring = new CPRRing(4 * BATCH, 1, 64);
+        queue = new ArrayBlockingQueue<>(4 * BATCH);
+        tracker = new CPRTracker(2 * FLEET);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long ring() {
+        for (int i = 0; i < BATCH; i++, n++) {
+            int k = n % (2 * FLEET);
+
+            ring.publish(0x400000 + k / 2, n, 11, (k & 1) != 0, cprlat[k], cprlon[k]);
+        }
+
+        ring.poll(0, tracker, sink);
+        return positions;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long queue() {
+        Frame frame;
+
+        for (int i = 0; i < BATCH; i++, n++) {
+            int k = n % (2 * FLEET);
+
+            queue.offer(new Frame(0x400000 + k / 2, n, (k & 1) != 0, cprlat[k], cprlon[k]));
+        }
+
+        while ((frame = queue.poll()) != null) {
+            if (tracker.update(frame.key, frame.time, frame.cprlat, frame.cprlon, frame.fflag, false, pos, 0)
+                    == CPRStatus.OK) {
+                positions++;
+            }
+        }
+
+        return positions;
+    }
+}
@@ -29,10 +29,42 @@
  */
 package cpr;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Compact Position Reporting decoder.
+ *
+ * The class holds no mutable state. The NL table is built once when the
+ * class is loaded, so a single instance may be shared by any number of
+ * decoding threads without synchronization. A decoder may count its
+ * decodes in a {@link CPRMetrics}, which is thread-safe too.
+ */
 public final class CPR {
 
     private static final double TAU = Math.PI * 2.0;
-    private static final double[] NL = new double[59];       // NL[0..58] Number of Longitude Zones
+    static final double[] NL = new double[59];       // NL[0..58] Number of Longitude Zones
+
+    /*
+     * The NL lookup is quantized into buckets of 1/4 degree. The closest
+     * two zone boundaries (87.0 and 86.535) are 0.46 degrees apart, so a
+     * bucket never holds more than one boundary, and a single compare
+     * against NL[] gives the same answer as the linear scan.
+     */
+    static final double NLSCALE = 4.0;
+    static final int[] NLINDEX = new int[(int) (87.0 * NLSCALE) + 1];
+
+    /*
+     * cprDlonFunction() by (surface * 2 + odd) * 60 + NL, for the batch
+     * method; the same divisions, done once.
+     */
+    private static final double[] DLON = new double[4 * 60];
+
+    // the fewest elements a parallel batch gives a task
+    private static final int SLICE = 1 << 15;
 
     /*
      * Initialize the NL Table (Number of Longitude Zones as a function of
@@ -41,7 +73,7 @@ public final class CPR {
      * This has been verified with a published ICAO fixed table.
      * I like this algorithm better than the dump1090 one.
      */
-    public CPR() {
+    static {
         double tmp = (1.0 - Math.cos(Math.PI / 30.0));
 
         NL[0] = 90.0;
@@ -49,11 +81,73 @@ public final class CPR {
         for (int i = 2; i < 60; i++) {
             NL[i - 1] = Math.toDegrees(Math.acos(Math.sqrt(tmp / (1.0 - Math.cos(TAU / (double) i)))));
         }
+
+        /*
+         * For each bucket, store the NL[] index found by the linear scan
+         * at the bucket's lower edge.
+         */
+        for (int b = 0, i = 58; b < NLINDEX.length; b++) {
+            double lat = b / NLSCALE;
+
+            while (lat > NL[i]) {
+                i--;
+            }
+
+            NLINDEX[b] = i;
+        }
+
+        for (int mode = 0; mode < 4; mode++) {
+            for (int nl = 1; nl < 60; nl++) {
+                DLON[mode * 60 + nl] = (((mode & 2) != 0) ? 90.0 : 360.0) / Math.max(nl - (mode & 1), 1);
+            }
+        }
     }
 
-    private int cprNLFunction(double lat) {
-        int i = 58;
+    private static final CPR SHARED = new CPR(Boolean.getBoolean("cpr.metrics") ? new CPRMetrics() : null);
 
+    private final CPRMetrics metrics;
+
+    /**
+     * Creates a decoder. The tables are static, so this costs nothing, but
+     * callers should normally use {@link #shared()} instead.
+     */
+    public CPR() {
+        this(null);
+    }
+
+    /**
+     * Creates a decoder that counts its decodes
+     *
+     * @param metrics the counters, or null for none
+     */
+    public CPR(CPRMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * The shared, thread-safe decoder instance. It has metrics if the
+     * system property cpr.metrics is true.
+     *
+     * @return the decoder
+     */
+    public static CPR shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return the counters given to the constructor, or null
+     */
+    public CPRMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Number of Longitude Zones at the given latitude
+     *
+     * @param lat the latitude in degrees
+     * @return the number of longitude zones (1 .. 59)
+     */
+    public int cprNLFunction(double lat) {
         lat = Math.abs(lat);
 
         if (lat == 0.0) {
@@ -64,13 +158,108 @@ public final class CPR {
             return 1;                   // Pole
         }
 
-        while (lat > NL[i]) {
+        int i = NLINDEX[(int) (lat * NLSCALE)];
+
+        if (lat > NL[i]) {
             i--;
         }
 
         return (i + 1);     // Java is Arabic - starts at zero...
     }
 
+    /**
+     * Number of Longitude Zones for an array of latitudes, the same as
+     * {@link #cprNLFunction(double)} on each
+     *
+     * @param lat the latitudes in degrees
+     * @param nl receives the zone counts, at the same indexes
+     * @param offset the first index
+     * @param count the number of latitudes
+     */
+    public void cprNLFunctionBatch(double[] lat, int[] nl, int offset, int count) {
+        for (int i = offset, end = offset + count; i < end; i++) {
+            nl[i] = cprNLFunction(lat[i]);
+        }
+    }
+
+    /**
+     * {@link #cprNLFunctionBatch(double[], int[], int, int)} split across
+     * a pool
+     *
+     * @param pool the pool to run in
+     */
+    public void cprNLFunctionBatch(final double[] lat, final int[] nl, int offset, int count, ForkJoinPool pool) {
+        split(pool, offset, count, (from, n) -> cprNLFunctionBatch(lat, nl, from, n));
+    }
+
+    /**
+     * Longitude zone size for an array of latitudes, as used by the
+     * decoders: 360 degrees (90 for surface positions) over the number of
+     * zones, one less for odd frames
+     *
+     * @param lat the latitudes in degrees
+     * @param fflag true for odd frames
+     * @param surface true for surface positions
+     * @param dlon receives the zone sizes in degrees, at the same indexes
+     * @param offset the first index
+     * @param count the number of latitudes
+     */
+    public void cprDlonFunctionBatch(double[] lat, boolean fflag, boolean surface, double[] dlon,
+            int offset, int count) {
+        int base = (((surface == true) ? 2 : 0) + ((fflag == true) ? 1 : 0)) * 60;
+
+        for (int i = offset, end = offset + count; i < end; i++) {
+            dlon[i] = DLON[base + cprNLFunction(lat[i])];
+        }
+    }
+
+    /**
+     * {@link #cprDlonFunctionBatch(double[], boolean, boolean, double[], int, int)}
+     * split across a pool
+     *
+     * @param pool the pool to run in
+     */
+    public void cprDlonFunctionBatch(final double[] lat, final boolean fflag, final boolean surface,
+            final double[] dlon, int offset, int count, ForkJoinPool pool) {
+        split(pool, offset, count, (from, n) -> cprDlonFunctionBatch(lat, fflag, surface, dlon, from, n));
+    }
+
+    private interface Slice {
+
+        void run(int from, int count);
+    }
+
+    /*
+     * Run a batch as up to four slices per thread of the pool, none
+     * smaller than SLICE, or in this thread if it is too small to split.
+     */
+    private static void split(ForkJoinPool pool, int offset, int count, Slice body) {
+        int slices = Math.min(4 * pool.getParallelism(), count / SLICE);
+
+        if (slices < 2) {
+            body.run(offset, count);
+            return;
+        }
+
+        final List<ForkJoinTask<?>> tasks = new ArrayList<>(slices);
+
+        for (int k = 0; k < slices; k++) {
+            final int from = offset + (int) ((long) count * k / slices);
+            final int to = offset + (int) ((long) count * (k + 1) / slices);
+
+            tasks.add(ForkJoinTask.adapt(() -> body.run(from, to - from)));
+        }
+
+        pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
     /*
      * Always positive MOD operation, used for CPR decoding.
      */
@@ -84,12 +273,22 @@ public final class CPR {
         return res;
     }
 
-    private double cprModDouble(double a, double b) {
+    /*
+     * floor(x / 131072.0 + 0.5), the zone index of the global decodes, for
+     * the exact integer x the original double expression worked on. x is at
+     * most 2^38 or so in size, so the double expression was exact up to the
+     * floor, and an arithmetic shift rounds down the same way.
+     */
+    private static int cprIndex(long x) {
+        return (int) ((x + 65536L) >> 17);
+    }
+
+    static double cprModDouble(double a, double b) {
         if (b == 0.0) {
             return Double.NaN;
         }
 
-        double res = Math.IEEEremainder(a, b);
+        double res = CPRMath.remainder(a, b);
 
         if (res < 0.0) {
             res += b;
@@ -112,8 +311,104 @@ public final class CPR {
         return ((surface == true) ? 90.0 : 360.0) / cprNFunction(lat, fflag);
     }
 
+    /*
+     * Hand a decoded position to whichever result the caller supplied
+     */
+    private static void store(double rlat, double rlon, LatLon ll, double[] out, int off) {
+        if (ll != null) {
+            ll.setLatLon(rlat, rlon);
+        } else {
+            out[off] = rlat;
+            out[off + 1] = rlon;
+        }
+    }
+
+    /*
+     * Throw a status as a CPRException. The stack trace is skipped, as it
+     * would only ever point here.
+     */
+    private static void check(int status) throws CPRException {
+        if (status != CPRStatus.OK) {
+            throw new CPRException(CPRStatus.message(status), false);
+        }
+    }
+
     public LatLon decodeCPRairborne(int even_cprlat, int even_cprlon,
             int odd_cprlat, int odd_cprlon, boolean fflag) throws CPRException {
+        LatLon result = new LatLon();
+
+        check(airborne(even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag, result, null, 0));
+        return result;
+    }
+
+    /**
+     * Airborne global decode into a caller-owned position, allocating
+     * nothing.
+     *
+     * @param result receives the decoded position
+     * @throws CPRException if the frames cannot be decoded
+     */
+    public void decodeCPRairborne(int even_cprlat, int even_cprlon,
+            int odd_cprlat, int odd_cprlon, boolean fflag, LatLon result) throws CPRException {
+        check(airborne(even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag, result, null, 0));
+    }
+
+    /**
+     * Airborne global decode into a caller-owned array, allocating nothing.
+     *
+     * @param result receives the latitude at offset, longitude at offset + 1
+     * @param offset the index of the latitude in result
+     * @throws CPRException if the frames cannot be decoded
+     */
+    public void decodeCPRairborne(int even_cprlat, int even_cprlon,
+            int odd_cprlat, int odd_cprlon, boolean fflag, double[] result, int offset) throws CPRException {
+        check(airborne(even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag, null, result, offset));
+    }
+
+    /**
+     * Airborne global decode that reports failure as a status code instead
+     * of throwing.
+     *
+     * @param result receives the decoded position
+     * @return {@link CPRStatus#OK} or the reason the frames were rejected
+     */
+    public int tryDecodeCPRairborne(int even_cprlat, int even_cprlon,
+            int odd_cprlat, int odd_cprlon, boolean fflag, LatLon result) {
+        return airborne(even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag, result, null, 0);
+    }
+
+    /**
+     * Airborne global decode that reports failure as a status code instead
+     * of throwing.
+     *
+     * @param result receives the latitude at offset, longitude at offset + 1
+     * @param offset the index of the latitude in result
+     * @return {@link CPRStatus#OK} or the reason the frames were rejected
+     */
+    public int tryDecodeCPRairborne(int even_cprlat, int even_cprlon,
+            int odd_cprlat, int odd_cprlon, boolean fflag, double[] result, int offset) {
+        return airborne(even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag, null, result, offset);
+    }
+
+    private int airborne(int even_cprlat, int even_cprlon,
+            int odd_cprlat, int odd_cprlon, boolean fflag,
+            LatLon ll, double[] out, int off) {
+        CPRMetrics m = metrics;
+
+        if (m == null) {
+            return airborneDecode(even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag, ll, out, off);
+        }
+
+        long start = m.start();
+        int status = airborneDecode(even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag, ll, out, off);
+
+        m.record(CPRMetrics.AIRBORNE, status, start);
+        return status;
+    }
+
+    private int airborneDecode(int even_cprlat, int even_cprlon,
+            int odd_cprlat, int odd_cprlon, boolean fflag,
+            LatLon ll, double[] out, int off) {
         double AirDlat0 = 360.0 / 60.0;
         double AirDlat1 = 360.0 / 59.0;
         double lat0 = even_cprlat;
@@ -124,7 +419,7 @@ public final class CPR {
         double rlat, rlon;
 
         // Compute the Latitude Index "j"
-        int j = (int) Math.floor(((59.0 * lat0 - 60.0 * lat1) / 131072.0) + 0.5);
+        int j = cprIndex(59L * even_cprlat - 60L * odd_cprlat);
         double rlat0 = AirDlat0 * (cprModInt(j, 60) + lat0 / 131072.0);
         double rlat1 = AirDlat1 * (cprModInt(j, 59) + lat1 / 131072.0);
 
@@ -139,38 +434,119 @@ public final class CPR {
         // Check to see that the latitude is in range: -90 .. +90
         if ((rlat0 < -90.0) || (rlat0 > 90.0)
                 || (rlat1 < -90.0) || (rlat1 > 90.0)) {
-            throw new CPRException("bad airborne latitude");
+            return CPRStatus.BAD_AIRBORNE_LATITUDE;
         }
 
         // Check that both are in the same latitude zone, or abort.
         if (cprNLFunction(rlat0) != cprNLFunction(rlat1)) {
-            throw new CPRException("airborne positions crossed a latitude zone");
+            return CPRStatus.AIRBORNE_CROSSED_ZONE;
         }
 
         // Compute ni and the Longitude Index "m"
         if (fflag == true) { // Use odd packet.
             int ni = cprNFunction(rlat1, true);
-            int m = (int) Math.floor((((lon0 * (cprNLFunction(rlat1) - 1))
-                    - (lon1 * cprNLFunction(rlat1))) / 131072.0) + 0.5);
+            int nl = cprNLFunction(rlat1);
+            int m = cprIndex((long) even_cprlon * (nl - 1) - (long) odd_cprlon * nl);
             rlon = cprDlonFunction(rlat1, true, false) * (cprModInt(m, ni) + lon1 / 131072.0);
             rlat = rlat1;
         } else {     // Use even packet.
             int ni = cprNFunction(rlat0, false);
-            int m = (int) Math.floor((((lon0 * (cprNLFunction(rlat0) - 1))
-                    - (lon1 * cprNLFunction(rlat0))) / 131072.0) + 0.5);
+            int nl = cprNLFunction(rlat0);
+            int m = cprIndex((long) even_cprlon * (nl - 1) - (long) odd_cprlon * nl);
             rlon = cprDlonFunction(rlat0, false, false) * (cprModInt(m, ni) + lon0 / 131072.0);
             rlat = rlat0;
         }
 
         // Renormalize to -180 .. +180
-        rlon -= Math.floor((rlon + 180.0) / 360.0) * 360.0;
+        rlon -= CPRMath.floor((rlon + 180.0) / 360.0) * 360.0;
 
-        return new LatLon(rlat, rlon);
+        store(rlat, rlon, ll, out, off);
+        return CPRStatus.OK;
     }
 
     public LatLon decodeCPRsurface(double reflat, double reflon,
             int even_cprlat, int even_cprlon, int odd_cprlat, int odd_cprlon,
             boolean fflag) throws CPRException {
+        LatLon result = new LatLon();
+
+        check(surface(reflat, reflon, even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag, result, null, 0));
+        return result;
+    }
+
+    /**
+     * Surface global decode into a caller-owned position, allocating
+     * nothing.
+     *
+     * @param result receives the decoded position
+     * @throws CPRException if the frames cannot be decoded
+     */
+    public void decodeCPRsurface(double reflat, double reflon,
+            int even_cprlat, int even_cprlon, int odd_cprlat, int odd_cprlon,
+            boolean fflag, LatLon result) throws CPRException {
+        check(surface(reflat, reflon, even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag, result, null, 0));
+    }
+
+    /**
+     * Surface global decode into a caller-owned array, allocating nothing.
+     *
+     * @param result receives the latitude at offset, longitude at offset + 1
+     * @param offset the index of the latitude in result
+     * @throws CPRException if the frames cannot be decoded
+     */
+    public void decodeCPRsurface(double reflat, double reflon,
+            int even_cprlat, int even_cprlon, int odd_cprlat, int odd_cprlon,
+            boolean fflag, double[] result, int offset) throws CPRException {
+        check(surface(reflat, reflon, even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag, null, result, offset));
+    }
+
+    /**
+     * Surface global decode that reports failure as a status code instead
+     * of throwing.
+     *
+     * @param result receives the decoded position
+     * @return {@link CPRStatus#OK} or the reason the frames were rejected
+     */
+    public int tryDecodeCPRsurface(double reflat, double reflon,
+            int even_cprlat, int even_cprlon, int odd_cprlat, int odd_cprlon,
+            boolean fflag, LatLon result) {
+        return surface(reflat, reflon, even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag, result, null, 0);
+    }
+
+    /**
+     * Surface global decode that reports failure as a status code instead
+     * of throwing.
+     *
+     * @param result receives the latitude at offset, longitude at offset + 1
+     * @param offset the index of the latitude in result
+     * @return {@link CPRStatus#OK} or the reason the frames were rejected
+     */
+    public int tryDecodeCPRsurface(double reflat, double reflon,
+            int even_cprlat, int even_cprlon, int odd_cprlat, int odd_cprlon,
+            boolean fflag, double[] result, int offset) {
+        return surface(reflat, reflon, even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag, null, result, offset);
+    }
+
+    private int surface(double reflat, double reflon,
+            int even_cprlat, int even_cprlon, int odd_cprlat, int odd_cprlon,
+            boolean fflag, LatLon ll, double[] out, int off) {
+        CPRMetrics m = metrics;
+
+        if (m == null) {
+            return surfaceDecode(reflat, reflon, even_cprlat, even_cprlon, odd_cprlat, odd_cprlon,
+                    fflag, ll, out, off);
+        }
+
+        long start = m.start();
+        int status = surfaceDecode(reflat, reflon, even_cprlat, even_cprlon, odd_cprlat, odd_cprlon,
+                fflag, ll, out, off);
+
+        m.record(CPRMetrics.SURFACE, status, start);
+        return status;
+    }
+
+    private int surfaceDecode(double reflat, double reflon,
+            int even_cprlat, int even_cprlon, int odd_cprlat, int odd_cprlon,
+            boolean fflag, LatLon ll, double[] out, int off) {
         double AirDlat0 = 90.0 / 60.0;
         double AirDlat1 = 90.0 / 59.0;
         double lat0 = even_cprlat;
@@ -180,7 +556,7 @@ public final class CPR {
         double rlon, rlat;
 
         // Compute the Latitude Index "j"
-        int j = (int) Math.floor(((59.0 * lat0 - 60.0 * lat1) / 131072.0) + 0.5);
+        int j = cprIndex(59L * even_cprlat - 60L * odd_cprlat);
         double rlat0 = AirDlat0 * (cprModInt(j, 60) + lat0 / 131072.0);
         double rlat1 = AirDlat1 * (cprModInt(j, 59) + lat1 / 131072.0);
 
@@ -235,25 +611,25 @@ public final class CPR {
         // Check to see that the latitude is in range: -90 .. +90
         if ((rlat0 < -90.0) || (rlat0 > 90.0)
                 || (rlat1 < -90.0) || (rlat1 > 90.0)) {
-            throw new CPRException("bad surface latitude");
+            return CPRStatus.BAD_SURFACE_LATITUDE;
         }
 
         // Check that both are in the same latitude zone, or abort.
         if (cprNLFunction(rlat0) != cprNLFunction(rlat1)) {
-            throw new CPRException("surface positions crossed a latitude zone");
+            return CPRStatus.SURFACE_CROSSED_ZONE;
         }
 
         // Compute ni and the Longitude Index "m"
         if (fflag == true) { // Use odd packet.
             int ni = cprNFunction(rlat1, true);
-            int m = (int) Math.floor((((lon0 * (cprNLFunction(rlat1) - 1))
-                    - (lon1 * cprNLFunction(rlat1))) / 131072.0) + 0.5);
+            int nl = cprNLFunction(rlat1);
+            int m = cprIndex((long) even_cprlon * (nl - 1) - (long) odd_cprlon * nl);
             rlon = cprDlonFunction(rlat1, true, true) * (cprModInt(m, ni) + lon1 / 131072.0);
             rlat = rlat1;
         } else {     // Use even packet.
             int ni = cprNFunction(rlat0, false);
-            int m = (int) Math.floor((((lon0 * (cprNLFunction(rlat0) - 1))
-                    - (lon1 * cprNLFunction(rlat0))) / 131072.0) + 0.5);
+            int nl = cprNLFunction(rlat0);
+            int m = cprIndex((long) even_cprlon * (nl - 1) - (long) odd_cprlon * nl);
             rlon = cprDlonFunction(rlat0, false, true) * (cprModInt(m, ni) + lon0 / 131072.0);
             rlat = rlat0;
         }
@@ -267,16 +643,90 @@ public final class CPR {
          * if reflon is more than 45 degrees away, move some multiple
          * of 90 degrees towards it.
          */
-        rlon += Math.floor((reflon - rlon + 45.0) / 90.0) * 90.0;  // this might move us outside (-180..+180), we fix this below
+        rlon += CPRMath.floor((reflon - rlon + 45.0) / 90.0) * 90.0;  // this might move us outside (-180..+180), we fix this below
 
         // Renormalize to -180 .. +180
-        rlon -= Math.floor((rlon + 180.0) / 360.0) * 360.0;
+        rlon -= CPRMath.floor((rlon + 180.0) / 360.0) * 360.0;
 
-        return new LatLon(rlat, rlon);
+        store(rlat, rlon, ll, out, off);
+        return CPRStatus.OK;
     }
 
     public LatLon decodeCPRrelative(double reflat, double reflon,
             int cprlat, int cprlon, boolean fflag, boolean surface) throws CPRException {
+        LatLon result = new LatLon();
+
+        check(relative(reflat, reflon, cprlat, cprlon, fflag, surface, result, null, 0));
+        return result;
+    }
+
+    /**
+     * Relative decode into a caller-owned position, allocating nothing.
+     *
+     * @param result receives the decoded position
+     * @throws CPRException if the frame cannot be decoded
+     */
+    public void decodeCPRrelative(double reflat, double reflon,
+            int cprlat, int cprlon, boolean fflag, boolean surface, LatLon result) throws CPRException {
+        check(relative(reflat, reflon, cprlat, cprlon, fflag, surface, result, null, 0));
+    }
+
+    /**
+     * Relative decode into a caller-owned array, allocating nothing.
+     *
+     * @param result receives the latitude at offset, longitude at offset + 1
+     * @param offset the index of the latitude in result
+     * @throws CPRException if the frame cannot be decoded
+     */
+    public void decodeCPRrelative(double reflat, double reflon,
+            int cprlat, int cprlon, boolean fflag, boolean surface, double[] result, int offset) throws CPRException {
+        check(relative(reflat, reflon, cprlat, cprlon, fflag, surface, null, result, offset));
+    }
+
+    /**
+     * Relative decode that reports failure as a status code instead of
+     * throwing.
+     *
+     * @param result receives the decoded position
+     * @return {@link CPRStatus#OK} or the reason the frame was rejected
+     */
+    public int tryDecodeCPRrelative(double reflat, double reflon,
+            int cprlat, int cprlon, boolean fflag, boolean surface, LatLon result) {
+        return relative(reflat, reflon, cprlat, cprlon, fflag, surface, result, null, 0);
+    }
+
+    /**
+     * Relative decode that reports failure as a status code instead of
+     * throwing.
+     *
+     * @param result receives the latitude at offset, longitude at offset + 1
+     * @param offset the index of the latitude in result
+     * @return {@link CPRStatus#OK} or the reason the frame was rejected
+     */
+    public int tryDecodeCPRrelative(double reflat, double reflon,
+            int cprlat, int cprlon, boolean fflag, boolean surface, double[] result, int offset) {
+        return relative(reflat, reflon, cprlat, cprlon, fflag, surface, null, result, offset);
+    }
+
+    private int relative(double reflat, double reflon,
+            int cprlat, int cprlon, boolean fflag, boolean surface,
+            LatLon ll, double[] out, int off) {
+        CPRMetrics m = metrics;
+
+        if (m == null) {
+            return relativeDecode(reflat, reflon, cprlat, cprlon, fflag, surface, ll, out, off);
+        }
+
+        long start = m.start();
+        int status = relativeDecode(reflat, reflon, cprlat, cprlon, fflag, surface, ll, out, off);
+
+        m.record(CPRMetrics.RELATIVE, status, start);
+        return status;
+    }
+
+    private int relativeDecode(double reflat, double reflon,
+            int cprlat, int cprlon, boolean fflag, boolean surface,
+            LatLon ll, double[] out, int off) {
         double AirDlat;
         double AirDlon;
         double fractional_lat = cprlat / 131072.0;
@@ -287,8 +737,8 @@ public final class CPR {
         AirDlat = ((surface == true) ? 90.0 : 360.0) / ((fflag == true) ? 59.0 : 60.0);
 
         // Compute the Latitude Index "j"
-        j = (int) (Math.floor(reflat / AirDlat)
-                + Math.floor(0.5 + cprModDouble(reflat, AirDlat) / AirDlat - fractional_lat));
+        j = (int) (CPRMath.floor(reflat / AirDlat)
+                + CPRMath.floor(0.5 + cprModDouble(reflat, AirDlat) / AirDlat - fractional_lat));
 
         rlat = AirDlat * (j + fractional_lat);
 
@@ -298,19 +748,19 @@ public final class CPR {
 
         // Check to see that the latitude is in range: -90 .. +90
         if ((rlat < -90.0) || (rlat > 90.0)) {
-            throw new CPRException("relative latitude error");
+            return CPRStatus.RELATIVE_LATITUDE_ERROR;
         }
 
         // Check to see that answer is reasonable - ie no more than 1/2 cell away
         if (Math.abs(rlat - reflat) > (AirDlat / 2.0)) {
-            throw new CPRException("relative latitude error");
+            return CPRStatus.RELATIVE_LATITUDE_ERROR;
         }
 
         // Compute the Longitude Index "m"
         AirDlon = cprDlonFunction(rlat, fflag, surface);
 
-        m = (int) (Math.floor(reflon / AirDlon)
-                + Math.floor(0.5 + cprModDouble(reflon, AirDlon) / AirDlon - fractional_lon));
+        m = (int) (CPRMath.floor(reflon / AirDlon)
+                + CPRMath.floor(0.5 + cprModDouble(reflon, AirDlon) / AirDlon - fractional_lon));
 
         rlon = AirDlon * (m + fractional_lon);
 
@@ -320,9 +770,95 @@ public final class CPR {
 
         // Check to see that answer is reasonable - ie no more than 1/2 cell away
         if (Math.abs(rlon - reflon) > (AirDlon / 2.0)) {
-            throw new CPRException("relative longitude error");
+            return CPRStatus.RELATIVE_LONGITUDE_ERROR;
+        }
+
+        store(rlat, rlon, ll, out, off);
+        return CPRStatus.OK;
+    }
+
+    /*
+     * Batch methods
+     *
+     * These take parallel arrays, one element per frame, and decode the
+     * elements offset .. offset + count - 1 of every array. Each frame gets
+     * its CPRStatus in status[], and a rejected frame gets NaN in lat[] and
+     * lon[]. The results are identical to calling the scalar methods once
+     * per frame.
+     */
+
+    /**
+     * Airborne global decode of a batch of even/odd frame pairs
+     *
+     * @return the number of frames decoded
+     */
+    public int decodeCPRairborneBatch(int[] even_cprlat, int[] even_cprlon,
+            int[] odd_cprlat, int[] odd_cprlon, boolean[] fflag,
+            double[] lat, double[] lon, byte[] status, int offset, int count) {
+        double[] pos = new double[2];
+        int good = 0;
+
+        for (int i = offset, end = offset + count; i < end; i++) {
+            int res = airborne(even_cprlat[i], even_cprlon[i], odd_cprlat[i], odd_cprlon[i], fflag[i], null, pos, 0);
+
+            good += batchStore(res, pos, lat, lon, status, i);
+        }
+
+        return good;
+    }
+
+    /**
+     * Surface global decode of a batch of even/odd frame pairs
+     *
+     * @return the number of frames decoded
+     */
+    public int decodeCPRsurfaceBatch(double[] reflat, double[] reflon,
+            int[] even_cprlat, int[] even_cprlon, int[] odd_cprlat, int[] odd_cprlon,
+            boolean[] fflag, double[] lat, double[] lon, byte[] status, int offset, int count) {
+        double[] pos = new double[2];
+        int good = 0;
+
+        for (int i = offset, end = offset + count; i < end; i++) {
+            int res = surface(reflat[i], reflon[i], even_cprlat[i], even_cprlon[i],
+                    odd_cprlat[i], odd_cprlon[i], fflag[i], null, pos, 0);
+
+            good += batchStore(res, pos, lat, lon, status, i);
+        }
+
+        return good;
+    }
+
+    /**
+     * Relative decode of a batch of frames
+     *
+     * @return the number of frames decoded
+     */
+    public int decodeCPRrelativeBatch(double[] reflat, double[] reflon,
+            int[] cprlat, int[] cprlon, boolean[] fflag, boolean[] surface,
+            double[] lat, double[] lon, byte[] status, int offset, int count) {
+        double[] pos = new double[2];
+        int good = 0;
+
+        for (int i = offset, end = offset + count; i < end; i++) {
+            int res = relative(reflat[i], reflon[i], cprlat[i], cprlon[i], fflag[i], surface[i], null, pos, 0);
+
+            good += batchStore(res, pos, lat, lon, status, i);
+        }
+
+        return good;
+    }
+
+    private static int batchStore(int res, double[] pos, double[] lat, double[] lon, byte[] status, int i) {
+        status[i] = (byte) res;
+
+        if (res != CPRStatus.OK) {
+            lat[i] = Double.NaN;
+            lon[i] = Double.NaN;
+            return 0;
         }
 
-        return new LatLon(rlat, rlon);
+        lat[i] = pos[0];
+        lon[i] = pos[1];
+        return 1;
     }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+/**
+ * Batch CPR decoder with a choice of backend.
+ *
+ * This class decodes with the scalar batch methods of {@link CPR}. On a
+ * JVM with the jdk.incubator.vector module, {@link #create()} returns a
+ * subclass that decodes most frames with SIMD instructions, falling back
+ * to the scalar code for tail elements and unusual inputs. Both give the
+ * same results, bit for bit.
+ *
+ * The arguments and results are those of the CPR batch methods, and the
+ * decodes are counted in the {@link CPRMetrics} of the CPR used, by either
+ * backend. Instances are stateless and thread-safe.
+ */
+public class CPRBatchDecoder {
+
+    private static final String VECTOR = "cpr.CPRVectorDecoder";
+
+    final CPR cpr;
+
+    CPRBatchDecoder(CPR cpr) {
+        this.cpr = cpr;
+    }
+
+    /**
+     * The fastest decoder this JVM supports, using {@link CPR#shared()}.
+     * Setting the system property cpr.vector to false forces the scalar
+     * decoder.
+     *
+     * @return the decoder
+     */
+    public static CPRBatchDecoder create() {
+        return create(CPR.shared());
+    }
+
+    /**
+     * The fastest decoder this JVM supports
+     *
+     * @param cpr the decoder for the scalar code, whose metrics, if any,
+     * count the decodes
+     * @return the decoder
+     */
+    public static CPRBatchDecoder create(CPR cpr) {
+        if (Boolean.parseBoolean(System.getProperty("cpr.vector", "true"))) {
+            try {
+                return (CPRBatchDecoder) Class.forName(VECTOR).getDeclaredConstructor(CPR.class).newInstance(cpr);
+            } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+                // No vector module, or no usable vector shape: use the scalar code
+            }
+        }
+
+        return scalar(cpr);
+    }
+
+    /**
+     * The decoder that uses the scalar code of {@link CPR#shared()} only
+     *
+     * @return the decoder
+     */
+    public static CPRBatchDecoder scalar() {
+        return scalar(CPR.shared());
+    }
+
+    /**
+     * The decoder that uses the scalar code only
+     *
+     * @param cpr the decoder, whose metrics, if any, count the decodes
+     * @return the decoder
+     */
+    public static CPRBatchDecoder scalar(CPR cpr) {
+        return new CPRBatchDecoder(cpr);
+    }
+
+    /**
+     * The name of the backend, for logging
+     *
+     * @return "scalar", or "vector" followed by the lane count
+     */
+    public String getName() {
+        return "scalar";
+    }
+
+    public int decodeCPRairborne(int[] even_cprlat, int[] even_cprlon,
+            int[] odd_cprlat, int[] odd_cprlon, boolean[] fflag,
+            double[] lat, double[] lon, byte[] status, int offset, int count) {
+        return cpr.decodeCPRairborneBatch(even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag,
+                lat, lon, status, offset, count);
+    }
+
+    public int decodeCPRsurface(double[] reflat, double[] reflon,
+            int[] even_cprlat, int[] even_cprlon, int[] odd_cprlat, int[] odd_cprlon,
+            boolean[] fflag, double[] lat, double[] lon, byte[] status, int offset, int count) {
+        return cpr.decodeCPRsurfaceBatch(reflat, reflon, even_cprlat, even_cprlon, odd_cprlat, odd_cprlon,
+                fflag, lat, lon, status, offset, count);
+    }
+
+    public int decodeCPRrelative(double[] reflat, double[] reflon,
+            int[] cprlat, int[] cprlon, boolean[] fflag, boolean[] surface,
+            double[] lat, double[] lon, byte[] status, int offset, int count) {
+        return cpr.decodeCPRrelativeBatch(reflat, reflon, cprlat, cprlon, fflag, surface,
+                lat, lon, status, offset, count);
+    }
+}
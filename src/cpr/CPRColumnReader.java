@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads a file written by {@link CPRColumnWriter}.
+ *
+ * The file is memory-mapped, in windows of up to 1 GiB of whole blocks,
+ * and each {@link Block} gives its columns as IntBuffer and ShortBuffer
+ * views of the mapping: nothing is copied or decoded, so a scan down a
+ * column runs at the speed memory can be read. Opening the file walks the
+ * block headers, and stops at the first block that is cut short.
+ *
+ * The mappings stay valid until they are garbage collected, even after
+ * {@link #close()}. Blocks may be read by any number of threads.
+ */
+public final class CPRColumnReader implements Closeable {
+
+    private static final long WINDOW = 1L << 30;
+
+    private final FileChannel channel;
+    private final int blockRows;
+    private final int blocks;
+    private final long totalRows;
+    private final long[] offset;        // each block's start in the file
+    private final int[] rows;
+    private final int[] keys;
+    private final long[] base;
+    private final ByteBuffer[] maps;
+    private final int[] map;            // each block's mapping
+    private final long[] mapStart;      // each mapping's start in the file
+
+    /**
+     * Open and map a file
+     *
+     * @param file the file
+     * @throws IOException if the file can't be read, or is not a
+     * CPRColumnWriter file
+     */
+    public CPRColumnReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+
+        try {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(CPRColumnWriter.FILE_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+
+            if (read(header, 0L) == false || header.getInt(0) != CPRColumnWriter.MAGIC) {
+                throw new IOException("not a column file: " + file);
+            }
+
+            if (header.getInt(4) != CPRColumnWriter.VERSION) {
+                throw new IOException("column file version " + header.getInt(4) + ": " + file);
+            }
+
+            blockRows = header.getInt(8);
+
+            // walk the block headers
+            long[] o = new long[16];
+            int[] r = new int[16];
+            int[] k = new int[16];
+            long[] t = new long[16];
+            int n = 0;
+            long total = 0L;
+
+            header = ByteBuffer.allocate(CPRColumnWriter.BLOCK_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+
+            for (long at = CPRColumnWriter.FILE_HEADER; read(header, at); n++) {
+                int blockSize;
+
+                r[n] = header.getInt(0);
+                k[n] = header.getInt(4);
+                t[n] = header.getLong(8);
+
+                if (r[n] < 1 || r[n] > blockRows || k[n] < 1 || k[n] > r[n]
+                        || at + (blockSize = CPRColumnWriter.blockSize(r[n], k[n])) > size) {
+                    break;
+                }
+
+                o[n] = at;
+                total += r[n];
+                at += blockSize;
+
+                if (n + 1 == o.length) {
+                    o = Arrays.copyOf(o, o.length * 2);
+                    r = Arrays.copyOf(r, r.length * 2);
+                    k = Arrays.copyOf(k, k.length * 2);
+                    t = Arrays.copyOf(t, t.length * 2);
+                }
+            }
+
+            blocks = n;
+            totalRows = total;
+            offset = o;
+            rows = r;
+            keys = k;
+            base = t;
+
+            // map whole blocks, up to a window at a time
+            map = new int[blocks];
+
+            long[] starts = new long[blocks + 1];
+            int m = 0;
+
+            for (int b = 0; b < blocks; b++) {
+                long end = offset[b] + CPRColumnWriter.blockSize(rows[b], keys[b]);
+
+                if (b == 0 || end - starts[m - 1] > WINDOW) {
+                    starts[m++] = offset[b];
+                }
+
+                map[b] = m - 1;
+                starts[m] = end;
+            }
+
+            maps = new ByteBuffer[m];
+            mapStart = starts;
+
+            for (int i = 0; i < m; i++) {
+                maps[i] = channel.map(FileChannel.MapMode.READ_ONLY, starts[i], starts[i + 1] - starts[i])
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /*
+     * Fill buf from the file at a position, false if the file ends first
+     */
+    private boolean read(ByteBuffer buf, long at) throws IOException {
+        buf.clear();
+
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, at + buf.position()) < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the most rows in a block
+     */
+    public int getBlockRows() {
+        return blockRows;
+    }
+
+    public int getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * @return the rows in every block
+     */
+    public long getRows() {
+        return totalRows;
+    }
+
+    /**
+     * @param b the block, 0 .. getBlocks() - 1
+     * @return views of the block's columns
+     */
+    public Block block(int b) {
+        if (b < 0 || b >= blocks) {
+            throw new IndexOutOfBoundsException("block " + b);
+        }
+
+        int at = (int) (offset[b] - mapStart[map[b]]);
+
+        return new Block(maps[map[b]], at, rows[b], keys[b], base[b]);
+    }
+
+    /**
+     * Pass every row, in file order, to a visitor
+     *
+     * @param visitor receives the rows
+     */
+    public void scan(CPRTrackStore.Visitor visitor) {
+        for (int b = 0; b < blocks; b++) {
+            Block block = block(b);
+
+            for (int i = 0, n = block.rows(); i < n; i++) {
+                visitor.point(block.key(i), block.time(i), block.lats.get(i), block.lons.get(i), block.surface(i));
+            }
+        }
+    }
+
+    /**
+     * Close the file
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * One block's columns, as views of the mapped file
+     */
+    public static final class Block {
+
+        private final int rows;
+        private final long base;
+        private final IntBuffer keys;
+        private final IntBuffer times;
+        private final IntBuffer lats;
+        private final IntBuffer lons;
+        private final ShortBuffer aircraft;
+        private final ByteBuffer surface;
+
+        Block(ByteBuffer map, int at, int rows, int keyCount, long base) {
+            this.rows = rows;
+            this.base = base;
+
+            int rowInts = align(4 * rows);
+
+            at += CPRColumnWriter.BLOCK_HEADER;
+            keys = slice(map, at, 4 * keyCount).asIntBuffer();
+            at += align(4 * keyCount);
+            times = slice(map, at, 4 * rows).asIntBuffer();
+            at += rowInts;
+            lats = slice(map, at, 4 * rows).asIntBuffer();
+            at += rowInts;
+            lons = slice(map, at, 4 * rows).asIntBuffer();
+            at += rowInts;
+            aircraft = slice(map, at, 2 * rows).asShortBuffer();
+            at += align(2 * rows);
+            surface = slice(map, at, (rows + 7) >>> 3);
+        }
+
+        private static int align(int n) {
+            return (n + 7) & ~7;
+        }
+
+        private static ByteBuffer slice(ByteBuffer map, int at, int length) {
+            ByteBuffer b = map.duplicate();
+
+            b.position(at);
+            b.limit(at + length);
+            return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        public int rows() {
+            return rows;
+        }
+
+        /**
+         * @return the time of the first row, in milliseconds
+         */
+        public long baseTime() {
+            return base;
+        }
+
+        /**
+         * @return the dictionary: the tracker key of each aircraft in the
+         * block
+         */
+        public IntBuffer keys() {
+            return keys.duplicate();
+        }
+
+        /**
+         * @return the time of each row, in milliseconds after
+         * {@link #baseTime()}
+         */
+        public IntBuffer times() {
+            return times.duplicate();
+        }
+
+        /**
+         * @return the latitude of each row, fixed point as
+         * {@link CPRFixedDecoder}
+         */
+        public IntBuffer lats() {
+            return lats.duplicate();
+        }
+
+        /**
+         * @return the longitude of each row, fixed point
+         */
+        public IntBuffer lons() {
+            return lons.duplicate();
+        }
+
+        /**
+         * @return the dictionary index of each row's aircraft, unsigned
+         */
+        public ShortBuffer aircraft() {
+            return aircraft.duplicate();
+        }
+
+        /**
+         * @return the surface flag of each row, one bit per row, lowest
+         * bit first
+         */
+        public ByteBuffer surface() {
+            return surface.duplicate();
+        }
+
+        public long time(int row) {
+            return base + times.get(row);
+        }
+
+        public int key(int row) {
+            return keys.get(aircraft.get(row) & 0xFFFF);
+        }
+
+        public int lat(int row) {
+            return lats.get(row);
+        }
+
+        public int lon(int row) {
+            return lons.get(row);
+        }
+
+        public boolean surface(int row) {
+            return (surface.get(row >>> 3) & (1 << (row & 7))) != 0;
+        }
+    }
+}
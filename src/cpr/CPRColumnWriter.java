@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes decoded positions to a columnar file, read back by
+ * {@link CPRColumnReader}.
+ *
+ * Positions are gathered into blocks of up to blockRows rows, and each
+ * block is written as a header and one column per field, little-endian
+ * and 8 byte aligned:
+ *
+ * <pre>
+ * header   rows, dictionary size (int), first time (long)
+ * keys     int per aircraft in the block, the dictionary
+ * time     int per row, milliseconds after the first time
+ * lat      int per row, fixed point as {@link CPRFixedDecoder}
+ * lon      int per row, fixed point
+ * aircraft unsigned short per row, index into the dictionary
+ * surface  bit per row, lowest bit first
+ * </pre>
+ *
+ * A row is so a little over 14 bytes, against about 40 as a line of text.
+ * The file starts with a 16 byte header: "CPRC", the format version and
+ * the block size. Blocks are written whole, so a file cut short (by a
+ * crash) is readable up to its last complete block. A block is also
+ * ended early when a time falls outside the int range of its first time.
+ *
+ * The writer is a {@link CPRFileDecoder.Sink}, so it can take positions
+ * straight from a decoder. This class is not thread-safe.
+ */
+public final class CPRColumnWriter implements CPRFileDecoder.Sink, Closeable {
+
+    static final int MAGIC = 0x43525043;            // "CPRC", little-endian
+    static final int VERSION = 1;
+    static final int FILE_HEADER = 16;
+    static final int BLOCK_HEADER = 16;
+
+    private static final int EMPTY = -1;
+
+    private final WritableByteChannel channel;
+    private final int blockRows;
+    private final long[] time;
+    private final int[] lat;
+    private final int[] lon;
+    private final boolean[] surface;
+    private final char[] aircraft;
+    private final int[] keys;
+    private final int[] slotKey;
+    private final char[] slotIndex;
+    private final int mask;
+    private final ByteBuffer out;
+    private int rows;
+    private int dictionary;
+    private long written;
+    private boolean closed;
+
+    /**
+     * Create or replace a file
+     *
+     * @param file the file
+     * @param blockRows rows in a block, 16 to 65536
+     * @throws IOException if the file can't be opened
+     */
+    public CPRColumnWriter(Path file, int blockRows) throws IOException {
+        this(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING), blockRows);
+    }
+
+    /**
+     * @param channel receives the file, and is closed by {@link #close()}
+     * @param blockRows rows in a block, 16 to 65536
+     * @throws IOException if the file header can't be written
+     */
+    public CPRColumnWriter(WritableByteChannel channel, int blockRows) throws IOException {
+        if (blockRows < 16 || blockRows > 65536) {
+            channel.close();
+            throw new IllegalArgumentException("blockRows " + blockRows);
+        }
+
+        this.channel = channel;
+        this.blockRows = blockRows;
+        time = new long[blockRows];
+        lat = new int[blockRows];
+        lon = new int[blockRows];
+        surface = new boolean[blockRows];
+        aircraft = new char[blockRows];
+        keys = new int[blockRows];
+
+        int size = Integer.highestOneBit(blockRows * 2 - 1) << 1;   // load factor at most 1/2
+
+        mask = size - 1;
+        slotKey = new int[size];
+        slotIndex = new char[size];
+        Arrays.fill(slotKey, EMPTY);
+
+        out = ByteBuffer.allocateDirect(blockSize(blockRows, blockRows)).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(VERSION).putInt(blockRows).putInt(0);
+        write();
+    }
+
+    private static int align(int n) {
+        return (n + 7) & ~7;
+    }
+
+    /*
+     * The bytes in a block of rows rows and keys aircraft, header included
+     */
+    static int blockSize(int rows, int keys) {
+        return BLOCK_HEADER + align(4 * keys) + 3 * align(4 * rows) + align(2 * rows) + align((rows + 7) >>> 3);
+    }
+
+    private void write() throws IOException {
+        out.flip();
+        written += out.remaining();
+
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+
+        out.clear();
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+
+        return h ^ (h >>> 16);
+    }
+
+    /*
+     * The dictionary index of a key, adding it if it is new
+     */
+    private char index(int key) {
+        int i = hash(key) & mask;
+
+        for (; slotKey[i] != EMPTY; i = (i + 1) & mask) {
+            if (slotKey[i] == key) {
+                return slotIndex[i];
+            }
+        }
+
+        slotKey[i] = key;
+        slotIndex[i] = (char) dictionary;
+        keys[dictionary] = key;
+        return (char) dictionary++;
+    }
+
+    /**
+     * Add a position, in fixed point
+     *
+     * @param key the tracker key, any int but -1
+     * @param ms the time, in milliseconds
+     * @param plat the latitude, fixed point as {@link CPRFixedDecoder}
+     * @param plon the longitude, fixed point
+     * @param onSurface true for a surface position
+     * @throws IOException if a full block can't be written
+     */
+    public void append(int key, long ms, int plat, int plon, boolean onSurface) throws IOException {
+        if (closed) {
+            throw new IOException("closed");
+        }
+
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("address " + key);
+        }
+
+        if (rows > 0 && (ms - time[0] > Integer.MAX_VALUE || ms - time[0] < Integer.MIN_VALUE)) {
+            flush();
+        }
+
+        aircraft[rows] = index(key);
+        time[rows] = ms;
+        lat[rows] = plat;
+        lon[rows] = plon;
+        surface[rows] = onSurface;
+
+        if (++rows == blockRows) {
+            flush();
+        }
+    }
+
+    /**
+     * Add a position in degrees
+     *
+     * @see #append(int, long, int, int, boolean)
+     */
+    public void append(int key, long ms, double plat, double plon, boolean onSurface) throws IOException {
+        append(key, ms, CPRFixedDecoder.fromDegrees(plat), CPRFixedDecoder.fromDegrees(plon), onSurface);
+    }
+
+    /**
+     * Add a chunk of positions from a decoder. A failed write is thrown
+     * as an {@link UncheckedIOException}.
+     */
+    @Override
+    public void positions(CPRPositions chunk) {
+        int[] k = chunk.getAddresses();
+        long[] t = chunk.getTimes();
+        double[] la = chunk.getLats();
+        double[] lo = chunk.getLons();
+        boolean[] s = chunk.getSurface();
+
+        try {
+            for (int i = 0; i < chunk.size(); i++) {
+                append(k[i], t[i], la[i], lo[i], s[i]);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void pad() {
+        while ((out.position() & 7) != 0) {
+            out.put((byte) 0);
+        }
+    }
+
+    private void putInts(int[] a, int n) {
+        out.asIntBuffer().put(a, 0, n);
+        out.position(out.position() + 4 * n);
+        pad();
+    }
+
+    /**
+     * Write the rows added so far as a block, if there are any
+     *
+     * @throws IOException if the block can't be written
+     */
+    public void flush() throws IOException {
+        if (rows == 0) {
+            return;
+        }
+
+        long base = time[0];
+
+        out.putInt(rows).putInt(dictionary).putLong(base);
+        putInts(keys, dictionary);
+
+        for (int i = 0; i < rows; i++) {
+            out.putInt((int) (time[i] - base));
+        }
+
+        pad();
+        putInts(lat, rows);
+        putInts(lon, rows);
+        out.asCharBuffer().put(aircraft, 0, rows);
+        out.position(out.position() + 2 * rows);
+        pad();
+
+        for (int i = 0; i < rows; i += 8) {
+            int bits = 0;
+
+            for (int j = 0; j < 8 && i + j < rows; j++) {
+                bits |= (surface[i + j] == true) ? (1 << j) : 0;
+            }
+
+            out.put((byte) bits);
+        }
+
+        pad();
+        write();
+
+        rows = 0;
+        dictionary = 0;
+        Arrays.fill(slotKey, EMPTY);
+    }
+
+    /**
+     * @return the bytes written to the file, so far
+     */
+    public long getBytesWritten() {
+        return written;
+    }
+
+    /**
+     * Write the last block, and close the channel
+     *
+     * @throws IOException if the block can't be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+/**
+ * Compact Position Reporting encoder, the inverse of {@link CPR}.
+ *
+ * Positions are encoded as in DO-260B, using Nb bits over latitude zones
+ * of 360 / (60 - i) degrees, where i is 0 for even and 1 for odd frames:
+ *
+ *  airborne: Nb = 17
+ *  surface:  Nb = 19, and the low 17 bits are transmitted
+ *  coarse:   Nb = 12, for TIS-B coarse and intent style reports
+ *
+ * The longitude zones come from the same NL table as the decoder. Coarse
+ * values shifted left by 5 bits decode with the 17 bit decoder.
+ *
+ * The class holds no mutable state and is thread-safe.
+ */
+public final class CPREncoder {
+
+    public static final int AIRBORNE_BITS = 17;
+    public static final int SURFACE_BITS = 19;
+    public static final int COARSE_BITS = 12;
+
+    private static final CPREncoder SHARED = new CPREncoder();
+
+    private final CPR cpr = CPR.shared();
+
+    public CPREncoder() {
+    }
+
+    /**
+     * The shared encoder instance
+     *
+     * @return the encoder
+     */
+    public static CPREncoder shared() {
+        return SHARED;
+    }
+
+    /*
+     * Always positive MOD operation, as used in the encoding equations
+     */
+    private static double cprMod(double a, double b) {
+        return a - b * Math.floor(a / b);
+    }
+
+    /*
+     * Encode one position, writing cprlat and cprlon to out[off], out[off + 1]
+     */
+    private void encode(double lat, double lon, boolean fflag, int nb, int[] out, int off) {
+        double scale = (double) (1 << nb);
+        int mask = (1 << Math.min(nb, 17)) - 1;
+        double Dlat = 360.0 / ((fflag == true) ? 59.0 : 60.0);
+        double yz = Math.floor(scale * cprMod(lat, Dlat) / Dlat + 0.5);
+        double Rlat = Dlat * (yz / scale + Math.floor(lat / Dlat));
+        int ni = cpr.cprNLFunction(Rlat) - ((fflag == true) ? 1 : 0);
+
+        if (ni < 1) {
+            ni = 1;
+        }
+
+        double Dlon = 360.0 / ni;
+        double xz = Math.floor(scale * cprMod(lon, Dlon) / Dlon + 0.5);
+
+        out[off] = (int) yz & mask;
+        out[off + 1] = (int) xz & mask;
+    }
+
+    /**
+     * Encode an airborne position as 17 bit CPR values
+     *
+     * @param lat latitude in degrees
+     * @param lon longitude in degrees
+     * @param fflag true for the odd frame, false for the even frame
+     * @param result receives cprlat at offset, cprlon at offset + 1
+     * @param offset the index of cprlat in result
+     */
+    public void encodeCPRairborne(double lat, double lon, boolean fflag, int[] result, int offset) {
+        encode(lat, lon, fflag, AIRBORNE_BITS, result, offset);
+    }
+
+    /**
+     * Encode a surface position as the transmitted 17 bits of the 19 bit
+     * CPR values
+     *
+     * @param lat latitude in degrees
+     * @param lon longitude in degrees
+     * @param fflag true for the odd frame, false for the even frame
+     * @param result receives cprlat at offset, cprlon at offset + 1
+     * @param offset the index of cprlat in result
+     */
+    public void encodeCPRsurface(double lat, double lon, boolean fflag, int[] result, int offset) {
+        encode(lat, lon, fflag, SURFACE_BITS, result, offset);
+    }
+
+    /**
+     * Encode a position as 12 bit coarse CPR values
+     *
+     * @param lat latitude in degrees
+     * @param lon longitude in degrees
+     * @param fflag true for the odd frame, false for the even frame
+     * @param result receives cprlat at offset, cprlon at offset + 1
+     * @param offset the index of cprlat in result
+     */
+    public void encodeCPRcoarse(double lat, double lon, boolean fflag, int[] result, int offset) {
+        encode(lat, lon, fflag, COARSE_BITS, result, offset);
+    }
+
+    /*
+     * Batch methods
+     *
+     * These take parallel arrays, one element per position, and encode the
+     * elements offset .. offset + count - 1, in the style of the CPR batch
+     * decode methods.
+     */
+
+    private void encodeBatch(double[] lat, double[] lon, boolean[] fflag, int nb,
+            int[] cprlat, int[] cprlon, int offset, int count) {
+        int[] pair = new int[2];
+
+        for (int i = offset, end = offset + count; i < end; i++) {
+            encode(lat[i], lon[i], fflag[i], nb, pair, 0);
+            cprlat[i] = pair[0];
+            cprlon[i] = pair[1];
+        }
+    }
+
+    public void encodeCPRairborneBatch(double[] lat, double[] lon, boolean[] fflag,
+            int[] cprlat, int[] cprlon, int offset, int count) {
+        encodeBatch(lat, lon, fflag, AIRBORNE_BITS, cprlat, cprlon, offset, count);
+    }
+
+    public void encodeCPRsurfaceBatch(double[] lat, double[] lon, boolean[] fflag,
+            int[] cprlat, int[] cprlon, int offset, int count) {
+        encodeBatch(lat, lon, fflag, SURFACE_BITS, cprlat, cprlon, offset, count);
+    }
+
+    public void encodeCPRcoarseBatch(double[] lat, double[] lon, boolean[] fflag,
+            int[] cprlat, int[] cprlon, int offset, int count) {
+        encodeBatch(lat, lon, fflag, COARSE_BITS, cprlat, cprlon, offset, count);
+    }
+}
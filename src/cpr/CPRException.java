@@ -15,4 +15,15 @@ public class CPRException extends Exception {
     public CPRException(String msg) {
         super(msg);
     }
+
+    /**
+     * Creates an exception that may skip filling in its stack trace, which
+     * is most of the cost of throwing one.
+     *
+     * @param msg the detail message
+     * @param stackTrace false to skip the stack trace
+     */
+    public CPRException(String msg, boolean stackTrace) {
+        super(msg, null, false, stackTrace);
+    }
 }
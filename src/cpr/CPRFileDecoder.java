@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streaming position decoder for raw frame captures.
+ *
+ * The file is memory-mapped a window at a time and scanned in place by a
+ * {@link CPRFrameScanner}. Each DF17/DF18 position frame that passes its
+ * CRC goes through a {@link CPRTracker}, and the positions it yields are
+ * handed to a sink in chunks. Memory use depends on the window, the chunk
+ * and the tracker, not on the size of the file.
+ *
+ * Times come from the frame timestamps (12 MHz ticks, as milliseconds).
+ * Frames without one take the time of the last frame that had one, so a
+ * capture without timestamps is treated as all arriving at once.
+ *
+ * The tracker is the caller's, so it may be set up (windows, receiver
+ * location) first and keeps its state from one file to the next. This
+ * class is not thread-safe.
+ */
+public final class CPRFileDecoder {
+
+    /**
+     * Receives the decoded positions
+     */
+    public interface Sink {
+
+        /**
+         * @param chunk the positions, valid only for this call
+         */
+        void positions(CPRPositions chunk);
+    }
+
+    private final CPRFrameScanner scanner;
+    private final CPRTracker tracker;
+    private final CPRPositions chunk;
+    private final double[] pos = new double[2];
+    private final Handler handler = new Handler();
+    private int mapSize = 1 << 26;
+    private Sink sink;
+    private long now;
+
+    private long frames;
+    private long corrupt;
+    private long positionFrames;
+    private long positions;
+
+    /**
+     * @param format {@link CPRFrameScanner#HEX} or
+     * {@link CPRFrameScanner#BEAST}
+     * @param tracker the tracker the frames go through
+     * @param chunkSize the most positions passed to the sink at once
+     */
+    public CPRFileDecoder(int format, CPRTracker tracker, int chunkSize) {
+        scanner = new CPRFrameScanner(format);
+        this.tracker = tracker;
+        chunk = new CPRPositions(chunkSize);
+    }
+
+    /**
+     * The size of the window mapped at once, 64 MiB unless set
+     *
+     * @param bytes the window size, at least 4096
+     */
+    public void setMapSize(int bytes) {
+        if (bytes < 4096) {
+            throw new IllegalArgumentException("map size " + bytes);
+        }
+
+        mapSize = bytes;
+    }
+
+    /**
+     * Decode a whole file
+     *
+     * @param file the capture
+     * @param out receives the positions
+     * @throws IOException if the file can't be read
+     */
+    public void decode(Path file, Sink out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            decode(channel, out);
+        }
+    }
+
+    /**
+     * Decode from the channel position to the end of the file. The
+     * channel position is not moved.
+     *
+     * @param channel the capture
+     * @param out receives the positions
+     * @throws IOException if the channel can't be read
+     */
+    public void decode(FileChannel channel, Sink out) throws IOException {
+        long size = channel.size();
+        long at = channel.position();
+
+        sink = out;
+
+        try {
+            while (at < size) {
+                int length = (int) Math.min(mapSize, size - at);
+                boolean eof = (at + length == size);
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, at, length);
+                int used = scanner.scan(map, 0, length, eof, handler);
+
+                if (used == 0) {
+                    used = scanner.scan(map, 0, length, true, handler);     // a record longer than the window
+                }
+
+                at += used;
+            }
+
+            flush();
+        } finally {
+            sink = null;
+        }
+    }
+
+    private void flush() {
+        if (chunk.size() > 0) {
+            sink.positions(chunk);
+            chunk.clear();
+        }
+    }
+
+    private final class Handler implements CPRFrameScanner.Handler {
+
+        @Override
+        public void frame(long timestamp, byte[] frame) {
+            frames++;
+
+            if (CPRFrame.checkCRC(frame, 0) == false) {
+                corrupt++;
+                return;
+            }
+
+            int key = CPRFrame.address(frame, 0);
+            int tc = CPRFrame.typeCode(frame, 0);
+            boolean surface = CPRFrame.isSurfacePosition(tc);
+
+            if (key == -1 || (surface == false && CPRFrame.isAirbornePosition(tc) == false)) {
+                return;
+            }
+
+            positionFrames++;
+
+            if (timestamp >= 0L) {
+                now = timestamp / 12000L;
+            }
+
+            int status = tracker.update(key, now, CPRFrame.cprLat(frame, 0), CPRFrame.cprLon(frame, 0),
+                    CPRFrame.fflag(frame, 0), surface, pos, 0);
+
+            if (status == CPRStatus.OK) {
+                positions++;
+                chunk.add(key, now, pos[0], pos[1], surface);
+
+                if (chunk.isFull()) {
+                    flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the 112 bit frames read
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return the frames that failed their CRC
+     */
+    public long getCorruptFrames() {
+        return corrupt;
+    }
+
+    /**
+     * @return the airborne and surface position frames read
+     */
+    public long getPositionFrames() {
+        return positionFrames;
+    }
+
+    /**
+     * @return the positions passed to the sink
+     */
+    public long getPositions() {
+        return positions;
+    }
+}
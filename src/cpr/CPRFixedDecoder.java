@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * CPR decoder in integer arithmetic, with positions in fixed point: an int
+ * of 1e-7 degrees (see {@link #SCALE}), for the reference as well as the
+ * result.
+ *
+ * The raw CPR values are fractions of 2^17 and the zone sizes are 360 or
+ * 90 degrees over a whole number of zones, so every step of a decode can
+ * be done exactly in longs. Latitudes are held in units of 1/(590 * 2^17)
+ * degree, where every zone edge is a whole number; longitudes over the
+ * zone size of the frame. Only the result is rounded, to the nearest
+ * 1e-7 degree. The NL zone boundaries are taken from the same table as
+ * {@link CPR}, so the same results come out on every JVM.
+ *
+ * In exact mode the results are also the same as the double decoders,
+ * rounded: status for status and, for a good decode, the nearest 1e-7
+ * degree to the double result. The double decoders round as they go, so
+ * they can fall the other side of a zone edge, a range check or a rounding
+ * tie when the exact value is within about 1e-13 degrees of it. Exact
+ * mode spots any decision closer than about 1e-10 degrees (and results
+ * within 1e-5 units of a tie) and decodes those few frames with the double
+ * decoder instead. Otherwise the integer result can differ from the
+ * rounded double result, by one unit or, at an edge, in status.
+ *
+ * Raw values outside 0 .. 2^17 - 1 always go to the double decoder, as
+ * they aren't from a real frame. Instances are immutable and thread-safe.
+ */
+public final class CPRFixedDecoder {
+
+    /**
+     * Fixed point units per degree
+     */
+    public static final int SCALE = 10000000;
+
+    private static final long E7 = SCALE;
+    private static final long K = 590L << 17;               // latitude units per degree
+
+    // latitude units per raw CPR step, by mode: surface * 2 + odd
+    private static final long[] LATU = {3540L, 3600L, 885L, 900L};
+
+    // NL zone boundaries in latitude units, bucketed as in CPR
+    private static final long[] NLU = new long[59];
+    private static final int NLSHIFT = 25;                   // 0.434 degrees
+    private static final int[] NLUINDEX = new int[(int) ((87L * K) >> NLSHIFT) + 1];
+
+    private static final CPRFixedDecoder FAST = new CPRFixedDecoder(false);
+    private static final CPRFixedDecoder EXACT = new CPRFixedDecoder(true);
+
+    static {
+        /*
+         * lat > NL[i] for a whole number lat exactly when lat > floor(NL[i])
+         */
+        for (int i = 0; i < 59; i++) {
+            NLU[i] = new BigDecimal(CPR.NL[i]).multiply(BigDecimal.valueOf(K))
+                    .setScale(0, RoundingMode.FLOOR).longValueExact();
+        }
+
+        for (int b = 0, i = 58; b < NLUINDEX.length; b++) {
+            long lat = (long) b << NLSHIFT;
+
+            while (lat > NLU[i]) {
+                i--;
+            }
+
+            NLUINDEX[b] = i;
+        }
+    }
+
+    private final CPR cpr = CPR.shared();
+    private final boolean exact;
+
+    /**
+     * @param exact true for results identical to the double decoders
+     */
+    public CPRFixedDecoder(boolean exact) {
+        this.exact = exact;
+    }
+
+    /**
+     * The shared decoder
+     *
+     * @param exact true for results identical to the double decoders
+     * @return the decoder
+     */
+    public static CPRFixedDecoder shared(boolean exact) {
+        return exact ? EXACT : FAST;
+    }
+
+    public boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * @param value a fixed point angle
+     * @return the angle in degrees
+     */
+    public static double toDegrees(int value) {
+        return value / (double) SCALE;
+    }
+
+    /**
+     * @param degrees an angle in degrees, within +/- 214 degrees
+     * @return the nearest fixed point value
+     */
+    public static int fromDegrees(double degrees) {
+        return (int) Math.round(degrees * SCALE);
+    }
+
+    /*
+     * Number of longitude zones at a latitude, in latitude units: as
+     * CPR.cprNLFunction()
+     */
+    private static int nl(long lat) {
+        lat = Math.abs(lat);
+
+        if (lat == 0L) {
+            return 59;
+        } else if (lat == 87L * K) {
+            return 2;
+        } else if (lat > 87L * K) {
+            return 1;
+        }
+
+        int i = NLUINDEX[(int) (lat >> NLSHIFT)];
+
+        if (lat > NLU[i]) {
+            i--;
+        }
+
+        return (i + 1);
+    }
+
+    /*
+     * True if a latitude is within a unit of a zone boundary
+     */
+    private static boolean nearNL(long lat) {
+        lat = Math.abs(lat);
+
+        if (lat > 87L * K - 2L) {
+            return lat < 87L * K + 2L;
+        }
+
+        int i = NLUINDEX[(int) (lat >> NLSHIFT)];
+
+        return Math.abs(lat - NLU[i]) <= 1L || (i > 0 && Math.abs(lat - NLU[i - 1]) <= 1L)
+                || (i < 58 && Math.abs(lat - NLU[i + 1]) <= 1L);
+    }
+
+    /*
+     * True if a difference is too close to zero for the double decoders to
+     * be sure of its sign: within 2^-32 degrees, perDegree being the units
+     * of the difference
+     */
+    private static boolean near(long diff, long perDegree) {
+        return Math.abs(diff) <= (perDegree >> 32);
+    }
+
+    /*
+     * True if num / den is that close to a whole number
+     */
+    private static boolean nearWhole(long num, long den, long perDegree) {
+        long r = Math.floorMod(num, den);
+
+        return r <= (perDegree >> 32) || den - r <= (perDegree >> 32);
+    }
+
+    /*
+     * num / den rounded to the nearest whole number, halves up, as
+     * Math.round()
+     */
+    private static int round(long num, long den) {
+        return (int) Math.floorDiv(2L * num + den, 2L * den);
+    }
+
+    /*
+     * True if num / den is within 2^-16 of a half
+     */
+    private static boolean nearTie(long num, long den) {
+        long r = Math.floorMod(2L * num + den, 2L * den);
+
+        return r <= (den >> 15) || 2L * den - r <= (den >> 15);
+    }
+
+    private static boolean raw(int value) {
+        return (value & ~0x1FFFF) == 0;
+    }
+
+    /*
+     * Decodes that go to the double decoder
+     */
+    private static int rounded(int status, double[] pos, int[] result, int offset) {
+        if (status == CPRStatus.OK) {
+            result[offset] = fromDegrees(pos[0]);
+            result[offset + 1] = fromDegrees(pos[1]);
+        }
+
+        return status;
+    }
+
+    private int doubleGlobal(boolean surface, int reflat, int reflon, int even_cprlat, int even_cprlon,
+            int odd_cprlat, int odd_cprlon, boolean fflag, int[] result, int offset) {
+        double[] pos = new double[2];
+        int status = (surface == true)
+                ? cpr.tryDecodeCPRsurface(toDegrees(reflat), toDegrees(reflon), even_cprlat, even_cprlon,
+                        odd_cprlat, odd_cprlon, fflag, pos, 0)
+                : cpr.tryDecodeCPRairborne(even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag, pos, 0);
+
+        return rounded(status, pos, result, offset);
+    }
+
+    private int doubleRelative(int reflat, int reflon, int cprlat, int cprlon, boolean fflag, boolean surface,
+            int[] result, int offset) {
+        double[] pos = new double[2];
+        int status = cpr.tryDecodeCPRrelative(toDegrees(reflat), toDegrees(reflon), cprlat, cprlon, fflag, surface,
+                pos, 0);
+
+        return rounded(status, pos, result, offset);
+    }
+
+    /**
+     * Airborne global decode, as {@link CPR#tryDecodeCPRairborne}
+     *
+     * @param result receives the latitude at offset, longitude at offset + 1
+     * @param offset the index of the latitude in result
+     * @return {@link CPRStatus#OK} or the reason the frames were rejected
+     */
+    public int decodeAirborne(int even_cprlat, int even_cprlon, int odd_cprlat, int odd_cprlon, boolean fflag,
+            int[] result, int offset) {
+        return global(false, 0, 0, even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag, result, offset);
+    }
+
+    /**
+     * Surface global decode, as {@link CPR#tryDecodeCPRsurface}
+     *
+     * @param reflat the reference latitude, fixed point
+     * @param reflon the reference longitude, fixed point
+     * @param result receives the latitude at offset, longitude at offset + 1
+     * @param offset the index of the latitude in result
+     * @return {@link CPRStatus#OK} or the reason the frames were rejected
+     */
+    public int decodeSurface(int reflat, int reflon, int even_cprlat, int even_cprlon, int odd_cprlat,
+            int odd_cprlon, boolean fflag, int[] result, int offset) {
+        return global(true, reflat, reflon, even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag, result, offset);
+    }
+
+    private int global(boolean surface, int reflat, int reflon, int even_cprlat, int even_cprlon,
+            int odd_cprlat, int odd_cprlon, boolean fflag, int[] result, int offset) {
+        if (!raw(even_cprlat) || !raw(even_cprlon) || !raw(odd_cprlat) || !raw(odd_cprlon)) {
+            return doubleGlobal(surface, reflat, reflon, even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag,
+                    result, offset);
+        }
+
+        int mode = (surface == true) ? 2 : 0;
+        int j = (int) ((59L * even_cprlat - 60L * odd_cprlat + 65536L) >> 17);
+        long lat0 = LATU[mode] * (((long) Math.floorMod(j, 60) << 17) + even_cprlat);
+        long lat1 = LATU[mode + 1] * (((long) Math.floorMod(j, 59) << 17) + odd_cprlat);
+        boolean edge;
+
+        if (surface == false) {
+            edge = lat0 == 270L * K || lat1 == 270L * K;
+            lat0 -= (lat0 >= 270L * K) ? 360L * K : 0L;
+            lat1 -= (lat1 >= 270L * K) ? 360L * K : 0L;
+        } else {
+            // the quadrant nearest the reference, as CPR.surface()
+            long north0 = lat0 * E7 - reflat * K - 45L * K * E7;
+            long north1 = lat1 * E7 - reflat * K - 45L * K * E7;
+
+            edge = (lat0 != 0L && near(north0, K * E7)) || (lat1 != 0L && near(north1, K * E7));
+
+            if (lat0 == 0L) {
+                lat0 = (reflat < -45 * SCALE) ? -90L * K : (reflat > 45 * SCALE) ? 90L * K : 0L;
+            } else if (north0 > 0L) {
+                lat0 -= 90L * K;
+            }
+
+            if (lat1 == 0L) {
+                lat1 = (reflat < -45 * SCALE) ? -90L * K : (reflat > 45 * SCALE) ? 90L * K : 0L;
+            } else if (north1 > 0L) {
+                lat1 -= 90L * K;
+            }
+        }
+
+        if (exact && (edge || Math.abs(lat0) == 90L * K || Math.abs(lat1) == 90L * K
+                || nearNL(lat0) || nearNL(lat1))) {
+            return doubleGlobal(surface, reflat, reflon, even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag,
+                    result, offset);
+        }
+
+        if ((lat0 < -90L * K) || (lat0 > 90L * K) || (lat1 < -90L * K) || (lat1 > 90L * K)) {
+            return (surface == true) ? CPRStatus.BAD_SURFACE_LATITUDE : CPRStatus.BAD_AIRBORNE_LATITUDE;
+        }
+
+        if (nl(lat0) != nl(lat1)) {
+            return (surface == true) ? CPRStatus.SURFACE_CROSSED_ZONE : CPRStatus.AIRBORNE_CROSSED_ZONE;
+        }
+
+        long lat = (fflag == true) ? lat1 : lat0;
+        int nl = nl(lat);
+        int ni = Math.max(nl - ((fflag == true) ? 1 : 0), 1);
+        int m = (int) (((long) even_cprlon * (nl - 1) - (long) odd_cprlon * nl + 65536L) >> 17);
+        long span = (surface == true) ? 90L : 360L;
+        long den = (long) ni << 17;                              // longitude units per degree
+        long lon = span * (((long) Math.floorMod(m, ni) << 17) + ((fflag == true) ? odd_cprlon : even_cprlon));
+
+        edge = false;
+
+        if (surface == true) {
+            // move to the quadrant nearest the reference
+            long num = reflon * den - lon * E7 + 45L * den * E7;
+
+            edge = nearWhole(num, 90L * den * E7, den * E7);
+            lon += Math.floorDiv(num, 90L * den * E7) * 90L * den;
+        }
+
+        // -180 .. +180
+        edge |= nearWhole(lon + 180L * den, 360L * den, den);
+        lon -= Math.floorDiv(lon + 180L * den, 360L * den) * 360L * den;
+
+        if (exact && (edge || nearTie(lat * E7, K) || nearTie(lon * E7, den))) {
+            return doubleGlobal(surface, reflat, reflon, even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag,
+                    result, offset);
+        }
+
+        result[offset] = round(lat * E7, K);
+        result[offset + 1] = round(lon * E7, den);
+        return CPRStatus.OK;
+    }
+
+    /**
+     * Relative decode, as {@link CPR#tryDecodeCPRrelative}
+     *
+     * @param reflat the reference latitude, fixed point
+     * @param reflon the reference longitude, fixed point
+     * @param result receives the latitude at offset, longitude at offset + 1
+     * @param offset the index of the latitude in result
+     * @return {@link CPRStatus#OK} or the reason the frame was rejected
+     */
+    public int decodeRelative(int reflat, int reflon, int cprlat, int cprlon, boolean fflag, boolean surface,
+            int[] result, int offset) {
+        if (!raw(cprlat) || !raw(cprlon)) {
+            return doubleRelative(reflat, reflon, cprlat, cprlon, fflag, surface, result, offset);
+        }
+
+        int mode = ((surface == true) ? 2 : 0) + ((fflag == true) ? 1 : 0);
+        long span = (surface == true) ? 90L : 360L;
+        long zone = (span * E7) << 17;                          // reference units per zone
+
+        /*
+         * j = floor(reflat / AirDlat + 0.5 - cprlat / 2^17). CPR.relative()
+         * splits the zone index and the offset into it, which can disagree
+         * by one when the reference is on a zone edge.
+         */
+        long ref = ((long) reflat * ((fflag == true) ? 59L : 60L)) << 17;
+        long num = ref + ((span * E7) << 16) - cprlat * span * E7;
+
+        if (exact && (nearWhole(ref, zone, zone) || nearWhole(num, zone, zone))) {
+            return doubleRelative(reflat, reflon, cprlat, cprlon, fflag, surface, result, offset);
+        }
+
+        long lat = LATU[mode] * ((Math.floorDiv(num, zone) << 17) + cprlat);
+
+        if (exact && (lat == 270L * K || lat == 450L * K || Math.abs(lat) == 90L * K)) {
+            return doubleRelative(reflat, reflon, cprlat, cprlon, fflag, surface, result, offset);
+        }
+
+        if (lat >= 270L * K) {
+            lat -= 360L * K;
+        }
+
+        if ((lat < -90L * K) || (lat > 90L * K)) {
+            return CPRStatus.RELATIVE_LATITUDE_ERROR;
+        }
+
+        // no more than half a zone from the reference
+        long off = Math.abs(lat * E7 - reflat * K) - ((LATU[mode] << 16) * E7);
+
+        if (exact && (near(off, K * E7) || nearNL(lat))) {
+            return doubleRelative(reflat, reflon, cprlat, cprlon, fflag, surface, result, offset);
+        }
+
+        if (off > 0L) {
+            return CPRStatus.RELATIVE_LATITUDE_ERROR;
+        }
+
+        int ni = Math.max(nl(lat) - ((fflag == true) ? 1 : 0), 1);
+        long den = (long) ni << 17;                              // longitude units per degree
+
+        ref = ((long) reflon * ni) << 17;
+        num = ref + ((span * E7) << 16) - cprlon * span * E7;
+
+        if (exact && (nearWhole(ref, zone, zone) || nearWhole(num, zone, zone))) {
+            return doubleRelative(reflat, reflon, cprlat, cprlon, fflag, surface, result, offset);
+        }
+
+        long lon = span * ((Math.floorDiv(num, zone) << 17) + cprlon);
+
+        if (exact && lon == 180L * den) {
+            return doubleRelative(reflat, reflon, cprlat, cprlon, fflag, surface, result, offset);
+        }
+
+        if (lon > 180L * den) {
+            lon -= 360L * den;
+        }
+
+        off = Math.abs(lon * E7 - reflon * den) - ((span * E7) << 16);
+
+        if (exact && (near(off, den * E7) || nearTie(lat * E7, K) || nearTie(lon * E7, den))) {
+            return doubleRelative(reflat, reflon, cprlat, cprlon, fflag, surface, result, offset);
+        }
+
+        if (off > 0L) {
+            return CPRStatus.RELATIVE_LONGITUDE_ERROR;
+        }
+
+        result[offset] = round(lat * E7, K);
+        result[offset + 1] = round(lon * E7, den);
+        return CPRStatus.OK;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+/**
+ * Field access for 112 bit Mode S extended squitter frames.
+ *
+ * A frame is 14 bytes at some offset in a byte array, as sent: the
+ * downlink format in the top 5 bits of byte 0, the address in bytes 1-3,
+ * the 56 bit ME field in bytes 4-10 and the parity in bytes 11-13. The
+ * methods read the fields in place and never allocate.
+ */
+public final class CPRFrame {
+
+    /**
+     * Bytes in a long frame
+     */
+    public static final int LENGTH = 14;
+
+    /**
+     * Added to the address of DF18 frames with a non-ICAO address, so they
+     * can not collide with an ICAO address as a tracker key
+     */
+    public static final int NON_ICAO = 1 << 24;
+
+    private static final int POLY = 0xFFF409;
+    private static final int[] CRC = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i << 16;
+
+            for (int j = 0; j < 8; j++) {
+                c = ((c & 0x800000) != 0) ? (c << 1) ^ POLY : c << 1;
+            }
+
+            CRC[i] = c & 0xFFFFFF;
+        }
+    }
+
+    private CPRFrame() {
+    }
+
+    /**
+     * The Mode S CRC-24 of some bytes
+     *
+     * @param data the bytes
+     * @param offset the first byte
+     * @param length the number of bytes
+     * @return the 24 bit CRC
+     */
+    public static int crc(byte[] data, int offset, int length) {
+        int c = 0;
+
+        for (int i = offset; i < offset + length; i++) {
+            c = ((c << 8) ^ CRC[((c >>> 16) ^ data[i]) & 0xFF]) & 0xFFFFFF;
+        }
+
+        return c;
+    }
+
+    /**
+     * True if the parity field matches the CRC of the rest of the frame, as
+     * it does for an undamaged DF17 or DF18 frame
+     *
+     * @param frame the frame bytes
+     * @param offset the first byte of the frame
+     * @return true if the parity checks
+     */
+    public static boolean checkCRC(byte[] frame, int offset) {
+        int parity = ((frame[offset + 11] & 0xFF) << 16) | ((frame[offset + 12] & 0xFF) << 8)
+                | (frame[offset + 13] & 0xFF);
+
+        return crc(frame, offset, 11) == parity;
+    }
+
+    /**
+     * @param frame the frame bytes
+     * @param offset the first byte of the frame
+     * @return the downlink format, 0 to 31
+     */
+    public static int downlinkFormat(byte[] frame, int offset) {
+        return (frame[offset] & 0xFF) >>> 3;
+    }
+
+    /*
+     * Mix a tracker key for sharing aircraft out by its top bits: a
+     * multiplicative hash, so the high bits depend on every bit of the
+     * address. Callers take the bits they need with >>>.
+     */
+    static int spread(int key) {
+        return key * 0x85EBCA6B;
+    }
+
+    /**
+     * The tracker key of an ADS-B frame: the 24 bit address, plus
+     * {@link #NON_ICAO} for DF18 frames with a non-ICAO address.
+     *
+     * @param frame the frame bytes
+     * @param offset the first byte of the frame
+     * @return the key, or -1 if the frame is not DF17, or DF18 with
+     * control field 0 or 1
+     */
+    public static int address(byte[] frame, int offset) {
+        int b0 = frame[offset] & 0xFF;
+        int aa = ((frame[offset + 1] & 0xFF) << 16) | ((frame[offset + 2] & 0xFF) << 8) | (frame[offset + 3] & 0xFF);
+
+        if ((b0 >>> 3) == 17 || b0 == (18 << 3)) {
+            return aa;                  // DF17, or DF18 CF0
+        } else if (b0 == ((18 << 3) | 1)) {
+            return aa | NON_ICAO;       // DF18 CF1
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param frame the frame bytes
+     * @param offset the first byte of the frame
+     * @return the ME type code, 0 to 31
+     */
+    public static int typeCode(byte[] frame, int offset) {
+        return (frame[offset + 4] & 0xFF) >>> 3;
+    }
+
+    /**
+     * @param tc a type code
+     * @return true for the airborne position type codes, 9 to 18 and 20 to
+     * 22
+     */
+    public static boolean isAirbornePosition(int tc) {
+        return (tc >= 9 && tc <= 18) || (tc >= 20 && tc <= 22);
+    }
+
+    /**
+     * @param tc a type code
+     * @return true for the surface position type codes, 5 to 8
+     */
+    public static boolean isSurfacePosition(int tc) {
+        return tc >= 5 && tc <= 8;
+    }
+
+    /**
+     * @param frame the frame bytes
+     * @param offset the first byte of the frame
+     * @return the CPR format flag of a position frame, true for odd
+     */
+    public static boolean fflag(byte[] frame, int offset) {
+        return (frame[offset + 6] & 0x04) != 0;
+    }
+
+    /**
+     * @param frame the frame bytes
+     * @param offset the first byte of the frame
+     * @return the 17 bit CPR latitude of a position frame
+     */
+    public static int cprLat(byte[] frame, int offset) {
+        return ((frame[offset + 6] & 0x03) << 15) | ((frame[offset + 7] & 0xFF) << 7) | ((frame[offset + 8] & 0xFF) >>> 1);
+    }
+
+    /**
+     * @param frame the frame bytes
+     * @param offset the first byte of the frame
+     * @return the 17 bit CPR longitude of a position frame
+     */
+    public static int cprLon(byte[] frame, int offset) {
+        return ((frame[offset + 8] & 0x01) << 16) | ((frame[offset + 9] & 0xFF) << 8) | (frame[offset + 10] & 0xFF);
+    }
+
+    /**
+     * Write a DF17 position frame, with its parity. Other ME bits
+     * (altitude, movement, heading) are left zero.
+     *
+     * @param icao the 24 bit address
+     * @param tc the type code
+     * @param fflag the CPR format flag, true for odd
+     * @param cprlat the 17 bit CPR latitude
+     * @param cprlon the 17 bit CPR longitude
+     * @param frame the array to write
+     * @param offset the first byte of the frame
+     */
+    public static void writePosition(int icao, int tc, boolean fflag, int cprlat, int cprlon, byte[] frame, int offset) {
+        frame[offset] = (byte) ((17 << 3) | 5);
+        frame[offset + 1] = (byte) (icao >>> 16);
+        frame[offset + 2] = (byte) (icao >>> 8);
+        frame[offset + 3] = (byte) icao;
+        frame[offset + 4] = (byte) (tc << 3);
+        frame[offset + 5] = 0;
+        frame[offset + 6] = (byte) ((fflag ? 0x04 : 0) | ((cprlat >>> 15) & 0x03));
+        frame[offset + 7] = (byte) (cprlat >>> 7);
+        frame[offset + 8] = (byte) ((cprlat << 1) | ((cprlon >>> 16) & 0x01));
+        frame[offset + 9] = (byte) (cprlon >>> 8);
+        frame[offset + 10] = (byte) cprlon;
+
+        int parity = crc(frame, offset, 11);
+
+        frame[offset + 11] = (byte) (parity >>> 16);
+        frame[offset + 12] = (byte) (parity >>> 8);
+        frame[offset + 13] = (byte) parity;
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Finds the 112 bit frames in a buffer of raw receiver output.
+ *
+ * Two formats are understood:
+ *
+ * HEX is one frame per line, in the dump1090 AVR style: optional "*", "@"
+ * (followed by a 12 digit timestamp) or "<" (timestamp and a 2 digit
+ * signal level) prefix, the frame in hex digits, optional ";". Lines of
+ * other lengths, or holding anything else, are skipped.
+ *
+ * BEAST is the binary Beast format: 0x1a, a type byte, a 6 byte
+ * timestamp, a signal byte and the frame, with any 0x1a in the record
+ * doubled. Records other than long frames are skipped, and the scanner
+ * resynchronizes on the next 0x1a after a damaged record.
+ *
+ * Timestamps are the 12 MHz receiver clock. Each frame is unpacked into
+ * a 14 byte array owned by the scanner and passed to a handler, so there
+ * is no allocation per frame. This class is not thread-safe.
+ */
+public final class CPRFrameScanner {
+
+    public static final int HEX = 0;
+    public static final int BEAST = 1;
+
+    /**
+     * Receives each frame found
+     */
+    public interface Handler {
+
+        /**
+         * @param timestamp the 12 MHz receiver timestamp, or -1 if the
+         * format or line had none
+         * @param frame the frame, 14 bytes, valid only for this call
+         */
+        void frame(long timestamp, byte[] frame);
+    }
+
+    private static final byte ESC = 0x1a;
+    private static final byte[] DIGIT = new byte[256];
+
+    static {
+        Arrays.fill(DIGIT, (byte) -1);
+
+        for (int i = 0; i < 10; i++) {
+            DIGIT['0' + i] = (byte) i;
+        }
+
+        for (int i = 0; i < 6; i++) {
+            DIGIT['a' + i] = (byte) (10 + i);
+            DIGIT['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private final int format;
+    private final byte[] frame = new byte[CPRFrame.LENGTH];
+
+    /**
+     * @param format {@link #HEX} or {@link #BEAST}
+     */
+    public CPRFrameScanner(int format) {
+        if (format != HEX && format != BEAST) {
+            throw new IllegalArgumentException("format " + format);
+        }
+
+        this.format = format;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * Pass every complete frame in buf[start..end) to the handler. A
+     * record cut off by the end of the buffer is left for the next call,
+     * unless eof is set, when it is dropped.
+     *
+     * @param buf the data, read with absolute gets
+     * @param start the first byte
+     * @param end one past the last byte
+     * @param eof true if no more data follows this buffer
+     * @param handler receives the frames
+     * @return the index of the first byte not used, where the next scan
+     * should start
+     */
+    public int scan(ByteBuffer buf, int start, int end, boolean eof, Handler handler) {
+        return scan(buf, start, end, end, eof, handler);
+    }
+
+    /**
+     * As {@link #scan(ByteBuffer, int, int, boolean, Handler)}, but only
+     * for the records that start before stop. The data up to end may be
+     * used to complete the last of them.
+     *
+     * @param buf the data, read with absolute gets
+     * @param start the first byte
+     * @param stop no record starting here or later is read
+     * @param end one past the last byte
+     * @param eof true if no more data follows this buffer
+     * @param handler receives the frames
+     * @return the start of the first record not read: at or after stop,
+     * or before it if that record is cut off by end
+     */
+    public int scan(ByteBuffer buf, int start, int stop, int end, boolean eof, Handler handler) {
+        return (format == HEX) ? scanHex(buf, start, stop, end, eof, handler)
+                : scanBeast(buf, start, stop, end, eof, handler);
+    }
+
+    /*
+     * A likely record start at or after start, for splitting a capture:
+     * the start of a line, or an 0x1a and a frame type byte with an even
+     * number of 0x1a (escaped pairs) before it. The byte before must be in
+     * the buffer, so start is at least 1. Returns end if there is none.
+     * Damaged data may fool this, so callers must check that a scan of the
+     * data before really ends here.
+     */
+    int sync(ByteBuffer buf, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (format == HEX) {
+                if (i > 0 && buf.get(i - 1) == '\n') {
+                    return i;
+                }
+            } else if (buf.get(i) == ESC && i + 1 < end && buf.get(i + 1) >= '1' && buf.get(i + 1) <= '3') {
+                int run = 0;
+
+                while (run < i && buf.get(i - 1 - run) == ESC) {
+                    run++;
+                }
+
+                if ((run & 1) == 0 && run < i) {
+                    return i;
+                }
+            }
+        }
+
+        return end;
+    }
+
+    private int scanHex(ByteBuffer buf, int start, int stop, int end, boolean eof, Handler handler) {
+        int i = start;
+
+        while (i < stop) {
+            int line = i;
+            int eol = i;
+
+            while (eol < end && buf.get(eol) != '\n') {
+                eol++;
+            }
+
+            if (eol == end && !eof) {
+                return line;        // incomplete line
+            }
+
+            hexLine(buf, line, eol, handler);
+            i = eol + 1;
+        }
+
+        return Math.min(i, end);
+    }
+
+    private void hexLine(ByteBuffer buf, int i, int eol, Handler handler) {
+        long timestamp = -1L;
+        int stamp = 0;
+
+        while (i < eol && (buf.get(i) == ' ' || buf.get(i) == '\t')) {
+            i++;
+        }
+
+        if (i < eol) {
+            switch (buf.get(i)) {
+                case '*':
+                    i++;
+                    break;
+                case '@':
+                    stamp = 12;
+                    i++;
+                    break;
+                case '<':
+                    stamp = 14;
+                    i++;
+                    break;
+                default:
+            }
+        }
+
+        if (stamp > 0) {
+            if (eol - i < stamp) {
+                return;
+            }
+
+            timestamp = 0L;
+
+            for (int k = 0; k < 12; k++) {
+                int d = DIGIT[buf.get(i + k) & 0xFF];
+
+                if (d < 0) {
+                    return;
+                }
+
+                timestamp = (timestamp << 4) | d;
+            }
+
+            i += stamp;
+        }
+
+        if (eol - i < 2 * CPRFrame.LENGTH) {
+            return;
+        }
+
+        for (int k = 0; k < CPRFrame.LENGTH; k++) {
+            int hi = DIGIT[buf.get(i) & 0xFF];
+            int lo = DIGIT[buf.get(i + 1) & 0xFF];
+
+            if ((hi | lo) < 0) {
+                return;
+            }
+
+            frame[k] = (byte) ((hi << 4) | lo);
+            i += 2;
+        }
+
+        // only a terminator or trailing white space may follow
+
+        for (; i < eol; i++) {
+            byte b = buf.get(i);
+
+            if (b != ';' && b != '\r' && b != ' ' && b != '\t') {
+                return;
+            }
+        }
+
+        handler.frame(timestamp, frame);
+    }
+
+    private int scanBeast(ByteBuffer buf, int start, int stop, int end, boolean eof, Handler handler) {
+        int i = start;
+
+        while (i < stop) {
+            if (buf.get(i) != ESC) {
+                i++;                // out of sync
+                continue;
+            }
+
+            if (i + 1 == end) {
+                return eof ? end : i;
+            }
+
+            int length;
+
+            switch (buf.get(i + 1)) {
+                case '1':
+                    length = 2;
+                    break;
+                case '2':
+                    length = 7;
+                    break;
+                case '3':
+                    length = CPRFrame.LENGTH;
+                    break;
+                default:
+                    i++;            // not a record start, or a type we can't skip
+                    continue;
+            }
+
+            // 6 timestamp bytes, a signal byte and the message, unescaped
+
+            int j = i + 2;
+            long timestamp = 0L;
+            int n = 0;
+            boolean broken = false;
+
+            while (n < 7 + length && j < end) {
+                byte b = buf.get(j++);
+
+                if (b == ESC) {
+                    if (j == end) {
+                        break;
+                    }
+
+                    if (buf.get(j) != ESC) {
+                        broken = true;      // a new record starts here
+                        j--;
+                        break;
+                    }
+
+                    j++;
+                }
+
+                if (n < 6) {
+                    timestamp = (timestamp << 8) | (b & 0xFF);
+                } else if (n > 6 && length == CPRFrame.LENGTH) {
+                    frame[n - 7] = b;
+                }
+
+                n++;
+            }
+
+            if (broken) {
+                i = j;
+                continue;
+            }
+
+            if (n < 7 + length) {
+                return eof ? end : i;       // incomplete record
+            }
+
+            if (length == CPRFrame.LENGTH) {
+                handler.frame(timestamp, frame);
+            }
+
+            i = j;
+        }
+
+        return i;
+    }
+}
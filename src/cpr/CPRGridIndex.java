@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+import java.util.Arrays;
+
+/**
+ * Spatial index of the latest position of each aircraft, for box and
+ * radius queries.
+ *
+ * The globe is cut into rows of a fixed latitude height, and each row into
+ * cells of equal longitude. The cells per row follow the CPR zone count
+ * for the row's edge nearest the equator, the number of zones of about 6
+ * degrees, scaled to the cell size: so cells are roughly square and of
+ * roughly equal area from the equator to the poles, as the airborne zones
+ * are. Each cell holds a linked list of its aircraft.
+ *
+ * An aircraft is found by address in an open addressing table, and its
+ * entry moves from one cell's list to another's only when the position
+ * crosses a cell edge, so an update is O(1). A query visits the cells
+ * overlapping its box and tests the aircraft in them, so its cost depends
+ * on the area and the traffic in it, not on the size of the index.
+ *
+ * The index holds at most maxAircraft; when it is full the aircraft
+ * updated longest ago is dropped, in O(1), from a second list of the
+ * entries in update order. With positions fed in time order that is the
+ * aircraft with the oldest position. It can be fed directly as a
+ * {@link CPRFileDecoder.Sink}. Methods are synchronized, so decoders may
+ * update it while other threads query.
+ */
+public final class CPRGridIndex implements CPRFileDecoder.Sink {
+
+    /**
+     * Receives the aircraft a query finds
+     */
+    public interface Visitor {
+
+        /**
+         * @param key the tracker key
+         * @param time the time of the position, in milliseconds
+         * @param lat the latitude
+         * @param lon the longitude
+         * @param surface true for a surface position
+         */
+        void aircraft(int key, long time, double lat, double lon, boolean surface);
+    }
+
+    private static final int EMPTY = -1;
+    private static final int NONE = -1;
+    private static final double METRES_PER_DEGREE = 6371008.8 * Math.PI / 180.0;
+
+    private final double cellDegrees;
+    private final int rows;
+    private final int[] rowCells;       // cells in each row
+    private final int[] rowStart;       // index of each row's first cell
+    private final int[] head;           // first entry in each cell, or NONE
+
+    // key to entry, open addressing with linear probing
+    private final int mask;
+    private final int[] slotKey;
+    private final int[] slotEntry;
+
+    // entries, with a free list through next
+    private final int maxAircraft;
+    private final int[] key;
+    private final long[] time;
+    private final double[] lat;
+    private final double[] lon;
+    private final boolean[] surface;
+    private final int[] cell;
+    private final int[] next;
+    private final int[] prev;
+    private int free;
+
+    // entries in update order, oldest first
+    private final int[] older;
+    private final int[] newer;
+    private int oldest = NONE;
+    private int newest = NONE;
+    private int count;
+
+    /**
+     * @param maxAircraft the most aircraft held at once
+     * @param cellDegrees the height of a row, and about the width of a
+     * cell, 0.01 to 90 degrees
+     */
+    public CPRGridIndex(int maxAircraft, double cellDegrees) {
+        if (maxAircraft < 1 || maxAircraft > (1 << 29)) {
+            throw new IllegalArgumentException("maxAircraft " + maxAircraft);
+        }
+
+        if (!(cellDegrees >= 0.01 && cellDegrees <= 90.0)) {
+            throw new IllegalArgumentException("cellDegrees " + cellDegrees);
+        }
+
+        this.cellDegrees = cellDegrees;
+        rows = (int) Math.ceil(180.0 / cellDegrees);
+
+        // the zone count at each row's edge nearest the equator
+        double[] edge = new double[rows];
+        int[] nl = new int[rows];
+
+        for (int r = 0; r < rows; r++) {
+            double south = -90.0 + r * cellDegrees;
+            double north = Math.min(south + cellDegrees, 90.0);
+
+            edge[r] = (south <= 0.0 && north >= 0.0) ? 0.0 : Math.min(Math.abs(south), Math.abs(north));
+        }
+
+        CPR.shared().cprNLFunctionBatch(edge, nl, 0, rows);
+
+        rowCells = new int[rows];
+        rowStart = new int[rows + 1];
+
+        for (int r = 0; r < rows; r++) {
+            rowCells[r] = Math.max(1, (int) Math.ceil(nl[r] * 6.0 / cellDegrees - 1e-9));
+            rowStart[r + 1] = rowStart[r] + rowCells[r];
+        }
+
+        head = new int[rowStart[rows]];
+        Arrays.fill(head, NONE);
+
+        int size = Integer.highestOneBit(maxAircraft * 2 - 1) << 1;   // load factor at most 1/2
+
+        mask = size - 1;
+        slotKey = new int[size];
+        slotEntry = new int[size];
+        Arrays.fill(slotKey, EMPTY);
+
+        this.maxAircraft = maxAircraft;
+        key = new int[maxAircraft];
+        time = new long[maxAircraft];
+        lat = new double[maxAircraft];
+        lon = new double[maxAircraft];
+        surface = new boolean[maxAircraft];
+        cell = new int[maxAircraft];
+        next = new int[maxAircraft];
+        prev = new int[maxAircraft];
+        older = new int[maxAircraft];
+        newer = new int[maxAircraft];
+
+        for (int e = 0; e < maxAircraft; e++) {
+            next[e] = e + 1;
+        }
+
+        next[maxAircraft - 1] = NONE;
+    }
+
+    public double getCellDegrees() {
+        return cellDegrees;
+    }
+
+    /**
+     * @return the number of cells
+     */
+    public int getCells() {
+        return head.length;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    private static int hash(int k) {
+        int h = k * 0x9E3779B9;
+
+        return h ^ (h >>> 16);
+    }
+
+    /*
+     * The slot holding k, or EMPTY
+     */
+    private int find(int k) {
+        for (int i = hash(k) & mask;; i = (i + 1) & mask) {
+            if (slotKey[i] == k) {
+                return i;
+            } else if (slotKey[i] == EMPTY) {
+                return EMPTY;
+            }
+        }
+    }
+
+    /*
+     * Longitude into [-180, 180)
+     */
+    private static double wrap(double lon) {
+        if (lon < -180.0 || lon >= 180.0) {
+            lon -= 360.0 * Math.floor((lon + 180.0) / 360.0);
+        }
+
+        return lon;
+    }
+
+    private int row(double lat) {
+        return Math.max(0, Math.min(rows - 1, (int) ((lat + 90.0) / cellDegrees)));
+    }
+
+    /*
+     * The cell within its row, for a wrapped longitude
+     */
+    private int column(int r, double lon) {
+        return Math.min(rowCells[r] - 1, (int) ((lon + 180.0) * rowCells[r] / 360.0));
+    }
+
+    private void link(int e, int c) {
+        cell[e] = c;
+        prev[e] = NONE;
+        next[e] = head[c];
+
+        if (head[c] != NONE) {
+            prev[head[c]] = e;
+        }
+
+        head[c] = e;
+    }
+
+    private void unlink(int e) {
+        if (prev[e] != NONE) {
+            next[prev[e]] = next[e];
+        } else {
+            head[cell[e]] = next[e];
+        }
+
+        if (next[e] != NONE) {
+            prev[next[e]] = prev[e];
+        }
+    }
+
+    /*
+     * Put an entry at the newest end of the update order
+     */
+    private void append(int e) {
+        older[e] = newest;
+        newer[e] = NONE;
+
+        if (newest != NONE) {
+            newer[newest] = e;
+        } else {
+            oldest = e;
+        }
+
+        newest = e;
+    }
+
+    private void detach(int e) {
+        if (older[e] != NONE) {
+            newer[older[e]] = newer[e];
+        } else {
+            oldest = newer[e];
+        }
+
+        if (newer[e] != NONE) {
+            older[newer[e]] = older[e];
+        } else {
+            newest = older[e];
+        }
+    }
+
+    /**
+     * Set an aircraft's position, unless the index holds a newer one
+     *
+     * @param k the tracker key, any int but -1
+     * @param ms the time of the position, in milliseconds
+     * @param plat the latitude
+     * @param plon the longitude
+     * @param onSurface true for a surface position
+     * @return false if the position was older than the one held
+     */
+    public synchronized boolean update(int k, long ms, double plat, double plon, boolean onSurface) {
+        if (k == EMPTY) {
+            throw new IllegalArgumentException("address " + k);
+        }
+
+        double wlon = wrap(plon);
+        int r = row(plat);
+        int c = rowStart[r] + column(r, wlon);
+        int i = find(k);
+        int e;
+
+        if (i != EMPTY) {
+            e = slotEntry[i];
+
+            if (ms < time[e]) {
+                return false;
+            }
+
+            if (cell[e] != c) {
+                unlink(e);
+                link(e, c);
+            }
+
+            if (e != newest) {
+                detach(e);
+                append(e);
+            }
+        } else {
+            if (count >= maxAircraft) {
+                remove(key[oldest]);
+            }
+
+            e = free;
+            free = next[e];
+            count++;
+
+            for (i = hash(k) & mask; slotKey[i] != EMPTY; i = (i + 1) & mask) {
+            }
+
+            slotKey[i] = k;
+            slotEntry[i] = e;
+            key[e] = k;
+            link(e, c);
+            append(e);
+        }
+
+        time[e] = ms;
+        lat[e] = plat;
+        lon[e] = wlon;
+        surface[e] = onSurface;
+        return true;
+    }
+
+    @Override
+    public synchronized void positions(CPRPositions chunk) {
+        int[] keys = chunk.getAddresses();
+        long[] times = chunk.getTimes();
+        double[] lats = chunk.getLats();
+        double[] lons = chunk.getLons();
+        boolean[] surf = chunk.getSurface();
+
+        for (int i = 0; i < chunk.size(); i++) {
+            update(keys[i], times[i], lats[i], lons[i], surf[i]);
+        }
+    }
+
+    /**
+     * @param k the tracker key
+     * @param result receives the latitude and longitude
+     * @param offset the index in result
+     * @return false if the aircraft is not held
+     */
+    public synchronized boolean getPosition(int k, double[] result, int offset) {
+        int i = find(k);
+
+        if (i == EMPTY) {
+            return false;
+        }
+
+        result[offset] = lat[slotEntry[i]];
+        result[offset + 1] = lon[slotEntry[i]];
+        return true;
+    }
+
+    /**
+     * Forget an aircraft
+     *
+     * @param k the tracker key
+     * @return true if it was held
+     */
+    public synchronized boolean remove(int k) {
+        int i = find(k);
+
+        if (i == EMPTY) {
+            return false;
+        }
+
+        int e = slotEntry[i];
+
+        unlink(e);
+        detach(e);
+        next[e] = free;
+        free = e;
+        count--;
+
+        // empty the slot, shifting back any later slots of the same probe run
+        for (int j = i;;) {
+            j = (j + 1) & mask;
+
+            if (slotKey[j] == EMPTY) {
+                break;
+            }
+
+            int home = hash(slotKey[j]) & mask;
+
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                slotKey[i] = slotKey[j];
+                slotEntry[i] = slotEntry[j];
+                i = j;
+            }
+        }
+
+        slotKey[i] = EMPTY;
+        return true;
+    }
+
+    /**
+     * Forget the aircraft whose positions are older than a time
+     *
+     * @param before the oldest time kept
+     * @return the number of aircraft dropped
+     */
+    public synchronized int expire(long before) {
+        int n = 0;
+
+        for (int i = 0; i <= mask; i++) {
+            // a removal may shift a later slot back into this one
+            while (slotKey[i] != EMPTY && time[slotEntry[i]] < before) {
+                remove(slotKey[i]);
+                n++;
+            }
+        }
+
+        return n;
+    }
+
+    /*
+     * Visit the aircraft in cells [c0, c1] of row r that the filter takes
+     */
+    private int scan(int r, int c0, int c1, double south, double west, double north, double east,
+            double clat, double clon, double radius2, Visitor visitor) {
+        int n = 0;
+
+        for (int c = rowStart[r] + c0, end = rowStart[r] + c1; c <= end; c++) {
+            for (int e = head[c]; e != NONE; e = next[e]) {
+                double l = lat[e];
+                double g = lon[e];
+
+                if (l < south || l > north) {
+                    continue;
+                }
+
+                if (radius2 >= 0.0) {
+                    if (CPRPlausibilityFilter.distance2(clat, clon, l, g) > radius2) {
+                        continue;
+                    }
+                } else if ((west <= east) ? (g < west || g > east) : (g < west && g > east)) {
+                    continue;
+                }
+
+                visitor.aircraft(key[e], time[e], l, g, surface[e]);
+                n++;
+            }
+        }
+
+        return n;
+    }
+
+    /*
+     * Visit the cells overlapping a box, with wrapped longitudes; west
+     * greater than east crosses 180 degrees, and NaN takes whole rows
+     */
+    private int cells(double south, double west, double north, double east, double clat, double clon,
+            double radius2, Visitor visitor) {
+        int n = 0;
+
+        for (int r = row(south), last = row(north); r <= last; r++) {
+            if (Double.isNaN(west)) {
+                n += scan(r, 0, rowCells[r] - 1, south, west, north, east, clat, clon, radius2, visitor);
+            } else if (west <= east) {
+                n += scan(r, column(r, west), column(r, east), south, west, north, east, clat, clon, radius2, visitor);
+            } else {
+                n += scan(r, column(r, west), rowCells[r] - 1, south, west, north, east, clat, clon, radius2, visitor);
+                n += scan(r, 0, column(r, east), south, west, north, east, clat, clon, radius2, visitor);
+            }
+        }
+
+        return n;
+    }
+
+    /**
+     * Find the aircraft in a box, edges included. A box with west east of
+     * east crosses 180 degrees.
+     *
+     * @param south the southern edge
+     * @param west the western edge
+     * @param north the northern edge
+     * @param east the eastern edge
+     * @param visitor receives each aircraft, while the index is locked
+     * @return the number of aircraft found
+     */
+    public synchronized int query(double south, double west, double north, double east, Visitor visitor) {
+        if (south > north) {
+            return 0;
+        }
+
+        if (east - west >= 360.0) {
+            return cells(south, Double.NaN, north, Double.NaN, 0.0, 0.0, -1.0, visitor);
+        }
+
+        return cells(south, wrap(west), north, wrap(east), 0.0, 0.0, -1.0, visitor);
+    }
+
+    /**
+     * Find the aircraft within a distance of a point, by the same
+     * equirectangular approximation as {@link CPRPlausibilityFilter}, which
+     * is close for ranges of a few hundred kilometres
+     *
+     * @param clat the latitude of the centre
+     * @param clon the longitude of the centre
+     * @param metres the radius
+     * @param visitor receives each aircraft, while the index is locked
+     * @return the number of aircraft found
+     */
+    public synchronized int query(double clat, double clon, double metres, Visitor visitor) {
+        double dlat = metres / METRES_PER_DEGREE;
+        double south = Math.max(clat - dlat, -90.0);
+        double north = Math.min(clat + dlat, 90.0);
+        double radius2 = metres * metres;
+
+        // the box is widest in longitude at its edge furthest from the equator
+        double cos = Math.cos(Math.toRadians(Math.max(Math.abs(south), Math.abs(north))));
+        double dlon = (cos > 0.0) ? dlat / cos : 360.0;
+
+        if (dlon >= 180.0) {
+            return cells(south, Double.NaN, north, Double.NaN, clat, clon, radius2, visitor);
+        }
+
+        return cells(south, wrap(clon - dlon), north, wrap(clon + dlon), clat, clon, radius2, visitor);
+    }
+}
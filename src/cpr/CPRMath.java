@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+/*
+ * Arithmetic that newer JVMs can do faster.
+ *
+ * This is the Java 8 version. The multi-release jar carries replacements
+ * under META-INF/versions, which must give the same results bit for bit.
+ */
+final class CPRMath {
+
+    private static final double LIMIT = 0x1p52;
+    private static final double TIE = 0x1p-50;
+    private static final double BIG = 0x1p400;
+    private static final double SMALL = 0x1p-400;
+    private static final double SPLIT = 0x1p27 + 1.0;
+
+    private CPRMath() {
+    }
+
+    /*
+     * Math.IEEEremainder(a, b), without the native call.
+     *
+     * As the Java 9 version, but without fma(): n * b is split exactly
+     * into p + e (Dekker's product), a - p is exact as p is within a
+     * factor of 2 of a, and so is (a - p) - e, as the remainder is always
+     * representable. The range checks keep the split clear of overflow
+     * and underflow; anything outside them, and the near ties where n may
+     * be wrong, go to Math.IEEEremainder().
+     */
+    static double remainder(double a, double b) {
+        double q = a / b;
+        double ab = Math.abs(b);
+
+        if (Math.abs(q) < LIMIT && Math.abs(a) < BIG && ab > SMALL && ab < BIG) {
+            double n = Math.rint(q);
+            double p = n * b;
+            double c = SPLIT * n;
+            double nh = c - (c - n);
+            double nl = n - nh;
+
+            c = SPLIT * b;
+
+            double bh = c - (c - b);
+            double bl = b - bh;
+            double e = ((nh * bh - p) + nh * bl + nl * bh) + nl * bl;
+            double r = (a - p) - e;
+
+            if (Math.abs(Math.abs(r) - 0.5 * ab) > Math.abs(a) * TIE) {
+                return (r == 0.0) ? Math.copySign(0.0, a) : r;
+            }
+        }
+
+        return Math.IEEEremainder(a, b);
+    }
+
+    /*
+     * Math.floor(x), by truncating through a long. Anything too big to
+     * have a fraction, and NaN, go to Math.floor().
+     */
+    static double floor(double x) {
+        if (Math.abs(x) < LIMIT) {
+            double t = (long) x;
+
+            if (t > x) {
+                return t - 1.0;
+            }
+
+            return (t == 0.0) ? Math.copySign(0.0, x) : t;
+        }
+
+        return Math.floor(x);
+    }
+}
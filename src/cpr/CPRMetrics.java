@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Decode outcome counters and latency histograms for a {@link CPR}.
+ *
+ * A decoder made with {@link CPR#CPR(CPRMetrics)} counts every decode, by
+ * method (airborne, surface, relative) and by {@link CPRStatus}, and times
+ * one in 2^sampleShift of them into a histogram of power of two buckets of
+ * nanoseconds. The counters are LongAdders, so threads sharing a decoder
+ * do not contend. A decoder without metrics, such as {@link CPR#shared()}
+ * unless the {@code cpr.metrics} system property is true, only tests a
+ * field for null.
+ *
+ * Batches count each frame, as does a {@link CPRBatchDecoder} with either
+ * backend; the vector backend times a sampled block of lanes as a whole
+ * and shares the time out between them. {@link CPRSiteDecoder} and
+ * {@link CPRFixedDecoder} decode with tables of their own and are not
+ * counted, except for the frames the fixed decoder passes to
+ * {@link CPR#shared()}.
+ *
+ * The counts are read with {@link #snapshot()}, or through JMX once
+ * {@link #register} has been called.
+ */
+public final class CPRMetrics implements CPRMetricsMXBean {
+
+    public static final int AIRBORNE = 0;
+    public static final int SURFACE = 1;
+    public static final int RELATIVE = 2;
+
+    /**
+     * Latency buckets. Bucket 0 holds 0 ns, bucket b holds 2^(b-1) up to
+     * 2^b ns, and the last bucket holds everything longer.
+     */
+    public static final int BUCKETS = 32;
+
+    static final long UNTIMED = Long.MIN_VALUE;
+
+    private static final int METHODS = 3;
+    private static final int STATUSES = CPRStatus.NO_REFERENCE + 1;
+    private static final String[] METHOD_NAMES = {"airborne", "surface", "relative"};
+    private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private final int sampleMask;
+    private final LongAdder[] counts = adders(METHODS * STATUSES);
+    private final LongAdder[] buckets = adders(METHODS * BUCKETS);
+    private final LongAdder[] nanos = adders(METHODS);
+    private ObjectName name;
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] a = new LongAdder[n];
+
+        for (int i = 0; i < n; i++) {
+            a[i] = new LongAdder();
+        }
+
+        return a;
+    }
+
+    /**
+     * Metrics timing one decode in 64
+     */
+    public CPRMetrics() {
+        this(6);
+    }
+
+    /**
+     * @param sampleShift time one decode in 2^sampleShift, 0 to time all
+     */
+    public CPRMetrics(int sampleShift) {
+        if (sampleShift < 0 || sampleShift > 30) {
+            throw new IllegalArgumentException("sample shift " + sampleShift);
+        }
+
+        sampleMask = (1 << sampleShift) - 1;
+    }
+
+    /**
+     * @return the start time of a decode that is to be timed, or UNTIMED
+     */
+    long start() {
+        if (sampleMask != 0 && (ThreadLocalRandom.current().nextInt() & sampleMask) != 0) {
+            return UNTIMED;
+        }
+
+        return System.nanoTime();
+    }
+
+    /**
+     * Count a decode, and time it if start() chose to
+     */
+    void record(int method, int status, long start) {
+        counts[method * STATUSES + status].increment();
+
+        if (start != UNTIMED) {
+            long ns = Math.max(System.nanoTime() - start, 0L);
+
+            buckets[method * BUCKETS + Math.min(64 - Long.numberOfLeadingZeros(ns), BUCKETS - 1)].increment();
+            nanos[method].add(ns);
+        }
+    }
+
+    /**
+     * Count a block of decodes that finished together, the lanes set in
+     * lanes with their status codes from status[i + lane], and share out
+     * the block's time if start() chose to time it
+     */
+    void record(int method, byte[] status, int i, long lanes, long start) {
+        int n = Long.bitCount(lanes);
+
+        for (long l = lanes; l != 0L; l &= l - 1) {
+            counts[method * STATUSES + status[i + Long.numberOfTrailingZeros(l)]].increment();
+        }
+
+        if (start != UNTIMED && n > 0) {
+            long ns = Math.max(System.nanoTime() - start, 0L) / n;
+
+            buckets[method * BUCKETS + Math.min(64 - Long.numberOfLeadingZeros(ns), BUCKETS - 1)].add(n);
+            nanos[method].add(ns * n);
+        }
+    }
+
+    /**
+     * @return the name of a method, as used in the JMX attributes
+     */
+    public static String methodName(int method) {
+        return METHOD_NAMES[method];
+    }
+
+    /**
+     * A copy of the counts, taken without stopping the decoders; counts
+     * made while it is taken may or may not be included
+     *
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        long[] c = new long[counts.length];
+        long[] b = new long[buckets.length];
+        long[] n = new long[nanos.length];
+
+        for (int i = 0; i < c.length; i++) {
+            c[i] = counts[i].sum();
+        }
+
+        for (int i = 0; i < b.length; i++) {
+            b[i] = buckets[i].sum();
+        }
+
+        for (int i = 0; i < n.length; i++) {
+            n[i] = nanos[i].sum();
+        }
+
+        return new Snapshot(c, b, n);
+    }
+
+    /**
+     * Zero every count
+     */
+    @Override
+    public void reset() {
+        for (LongAdder a : counts) {
+            a.reset();
+        }
+
+        for (LongAdder a : buckets) {
+            a.reset();
+        }
+
+        for (LongAdder a : nanos) {
+            a.reset();
+        }
+    }
+
+    /**
+     * Register with the platform MBean server as
+     * {@code cpr:type=CPRMetrics,name=<name>}
+     *
+     * @param instance the name property
+     * @throws JMException if the name is taken or invalid
+     */
+    public synchronized void register(String instance) throws JMException {
+        ObjectName on = new ObjectName("cpr:type=CPRMetrics,name=" + ObjectName.quote(instance));
+
+        unregister();
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        name = on;
+    }
+
+    /**
+     * Remove the JMX registration, if any
+     *
+     * @throws JMException if the MBean server refuses
+     */
+    public synchronized void unregister() throws JMException {
+        if (name != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            name = null;
+        }
+    }
+
+    @Override
+    public long getDecodes() {
+        return snapshot().decodes();
+    }
+
+    @Override
+    public long getFailures() {
+        return snapshot().failures();
+    }
+
+    @Override
+    public int getSampleInterval() {
+        return sampleMask + 1;
+    }
+
+    @Override
+    public Map<String, Long> getOutcomes() {
+        Snapshot s = snapshot();
+        Map<String, Long> map = new LinkedHashMap<>();
+
+        for (int m = 0; m < METHODS; m++) {
+            for (int st = 0; st < STATUSES; st++) {
+                if (st == CPRStatus.OK || s.count(m, st) != 0) {
+                    map.put(METHOD_NAMES[m] + "." + CPRStatus.name(st), s.count(m, st));
+                }
+            }
+        }
+
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyNanos() {
+        Snapshot s = snapshot();
+        Map<String, Long> map = new LinkedHashMap<>();
+
+        for (int m = 0; m < METHODS; m++) {
+            map.put(METHOD_NAMES[m] + ".mean", Math.round(s.meanLatency(m)));
+
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                map.put(METHOD_NAMES[m] + "." + PERCENTILE_NAMES[i], s.latencyPercentile(m, PERCENTILES[i]));
+            }
+        }
+
+        return map;
+    }
+
+    /**
+     * Counts copied out of a {@link CPRMetrics}
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long[] buckets;
+        private final long[] nanos;
+
+        Snapshot(long[] counts, long[] buckets, long[] nanos) {
+            this.counts = counts;
+            this.buckets = buckets;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @param method {@link CPRMetrics#AIRBORNE}, {@link CPRMetrics#SURFACE} or
+         * {@link CPRMetrics#RELATIVE}
+         * @param status a {@link CPRStatus} code
+         * @return the decodes by that method with that outcome
+         */
+        public long count(int method, int status) {
+            return counts[method * STATUSES + status];
+        }
+
+        /**
+         * @return the decodes by a method
+         */
+        public long decodes(int method) {
+            long n = 0L;
+
+            for (int st = 0; st < STATUSES; st++) {
+                n += count(method, st);
+            }
+
+            return n;
+        }
+
+        /**
+         * @return the decodes by a method that failed
+         */
+        public long failures(int method) {
+            return decodes(method) - count(method, CPRStatus.OK);
+        }
+
+        /**
+         * @return the decodes by every method
+         */
+        public long decodes() {
+            return decodes(AIRBORNE) + decodes(SURFACE) + decodes(RELATIVE);
+        }
+
+        /**
+         * @return the decodes by every method that failed
+         */
+        public long failures() {
+            return failures(AIRBORNE) + failures(SURFACE) + failures(RELATIVE);
+        }
+
+        /**
+         * @return the timed decodes by a method, in each of the
+         * {@link CPRMetrics#BUCKETS} latency buckets
+         */
+        public long[] latency(int method) {
+            long[] b = new long[BUCKETS];
+
+            System.arraycopy(buckets, method * BUCKETS, b, 0, BUCKETS);
+            return b;
+        }
+
+        /**
+         * @return the decodes by a method that were timed
+         */
+        public long timed(int method) {
+            long n = 0L;
+
+            for (int i = 0; i < BUCKETS; i++) {
+                n += buckets[method * BUCKETS + i];
+            }
+
+            return n;
+        }
+
+        /**
+         * @return the mean time of the timed decodes by a method, in
+         * nanoseconds, or 0 if none were timed
+         */
+        public double meanLatency(int method) {
+            long n = timed(method);
+
+            return (n == 0L) ? 0.0 : (double) nanos[method] / n;
+        }
+
+        /**
+         * @param method the method
+         * @param percentile 0 to 100
+         * @return the upper edge, in nanoseconds, of the bucket holding the
+         * percentile of the timed decodes by a method, or 0 if none were
+         * timed
+         */
+        public long latencyPercentile(int method, double percentile) {
+            long n = timed(method);
+            long rank = (long) Math.ceil(n * percentile / 100.0);
+            long seen = 0L;
+
+            if (n == 0L) {
+                return 0L;
+            }
+
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[method * BUCKETS + i];
+
+                if (seen >= Math.max(rank, 1L)) {
+                    return (i == 0) ? 0L : 1L << i;
+                }
+            }
+
+            return 1L << BUCKETS;
+        }
+    }
+}
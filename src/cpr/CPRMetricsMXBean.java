@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link CPRMetrics}
+ */
+public interface CPRMetricsMXBean {
+
+    /**
+     * @return the decodes by every method
+     */
+    long getDecodes();
+
+    /**
+     * @return the decodes by every method that failed
+     */
+    long getFailures();
+
+    /**
+     * @return one decode in this many is timed
+     */
+    int getSampleInterval();
+
+    /**
+     * @return the decodes by outcome, keyed method.STATUS, for example
+     * relative.RELATIVE_LATITUDE_ERROR; failures that have not happened
+     * are left out
+     */
+    Map<String, Long> getOutcomes();
+
+    /**
+     * @return the mean and percentiles of the timed decodes, in
+     * nanoseconds, keyed method.mean, method.p50, p90, p99 and p999;
+     * percentiles are the upper edges of power of two buckets
+     */
+    Map<String, Long> getLatencyNanos();
+
+    /**
+     * Zero every count
+     */
+    void reset();
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+/**
+ * Checks decoded positions for movement no aircraft could make.
+ *
+ * A decode that passes the CPR zone checks can still be wrong, from an
+ * ambiguous pair or a bit error the CRC missed. The filter compares a
+ * position with the previous fix of the same aircraft: the distance
+ * between them, by the equirectangular approximation, must be within the
+ * maximum speed for the category (airborne or surface) times the elapsed
+ * time, plus a fixed slack for timing jitter and CPR resolution. A
+ * position may also be checked against a maximum range from the receiver.
+ *
+ * A check costs one cosine and a few multiplies, and compares squared
+ * distances, so there is no square root; nothing is allocated. The
+ * filter holds no per-aircraft state: {@link CPRTracker#setFilter} applies
+ * it to the fixes the tracker keeps. Set it up before use; the checks are
+ * then thread-safe.
+ */
+public final class CPRPlausibilityFilter {
+
+    /*
+     * Metres per degree of latitude, on a sphere of the mean Earth radius
+     */
+    private static final double METRES_PER_DEGREE = 6371008.8 * Math.PI / 180.0;
+
+    private double airborneSpeed = 515.0;       // 1000 knots
+    private double surfaceSpeed = 100.0;        // faster than any takeoff roll
+    private double slack = 500.0;
+    private boolean haveReceiver;
+    private double receiverLat;
+    private double receiverLon;
+    private double maxRange2;
+
+    /**
+     * Fastest believable airborne ground speed, default 515 m/s (1000
+     * knots)
+     *
+     * @param mps metres per second
+     */
+    public void setMaxAirborneSpeed(double mps) {
+        airborneSpeed = mps;
+    }
+
+    /**
+     * Fastest believable surface ground speed, default 100 m/s
+     *
+     * @param mps metres per second
+     */
+    public void setMaxSurfaceSpeed(double mps) {
+        surfaceSpeed = mps;
+    }
+
+    /**
+     * Distance always allowed between two fixes, whatever the time
+     * between them, default 500 m
+     *
+     * @param metres the slack
+     */
+    public void setSlack(double metres) {
+        slack = metres;
+    }
+
+    /**
+     * Reject positions further than a given range from the receiver
+     *
+     * @param reflat the receiver latitude
+     * @param reflon the receiver longitude
+     * @param metres the maximum range
+     */
+    public void setReceiver(double reflat, double reflon, double metres) {
+        receiverLat = reflat;
+        receiverLon = reflon;
+        maxRange2 = metres * metres;
+        haveReceiver = true;
+    }
+
+    /**
+     * The square of the distance between two positions, in metres, by the
+     * equirectangular approximation
+     */
+    static double distance2(double lat0, double lon0, double lat1, double lon1) {
+        double dlat = lat1 - lat0;
+        double dlon = lon1 - lon0;
+
+        if (dlon > 180.0) {
+            dlon -= 360.0;
+        } else if (dlon < -180.0) {
+            dlon += 360.0;
+        }
+
+        dlon *= Math.cos(Math.toRadians((lat0 + lat1) * 0.5));
+        return (dlat * dlat + dlon * dlon) * (METRES_PER_DEGREE * METRES_PER_DEGREE);
+    }
+
+    /**
+     * Check a position on its own, against the receiver range if one is
+     * set
+     *
+     * @param lat the latitude
+     * @param lon the longitude
+     * @return {@link CPRStatus#OK} or {@link CPRStatus#OUT_OF_RANGE}
+     */
+    public int check(double lat, double lon) {
+        if (haveReceiver && distance2(receiverLat, receiverLon, lat, lon) > maxRange2) {
+            return CPRStatus.OUT_OF_RANGE;
+        }
+
+        return CPRStatus.OK;
+    }
+
+    /**
+     * Check a position against the aircraft's previous fix
+     *
+     * @param prevLat the previous latitude
+     * @param prevLon the previous longitude
+     * @param prevTime the time of the previous fix, in milliseconds
+     * @param lat the new latitude
+     * @param lon the new longitude
+     * @param time the time of the new position, in milliseconds
+     * @param surface true for a surface position
+     * @return {@link CPRStatus#OK}, {@link CPRStatus#OUT_OF_RANGE} or
+     * {@link CPRStatus#TOO_FAST}
+     */
+    public int check(double prevLat, double prevLon, long prevTime, double lat, double lon, long time,
+            boolean surface) {
+        int status = check(lat, lon);
+
+        if (status != CPRStatus.OK) {
+            return status;
+        }
+
+        double reach = slack + ((surface == true) ? surfaceSpeed : airborneSpeed) * Math.abs(time - prevTime) / 1000.0;
+
+        if (distance2(prevLat, prevLon, lat, lon) > reach * reach) {
+            return CPRStatus.TOO_FAST;
+        }
+
+        return CPRStatus.OK;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+/**
+ * A chunk of decoded positions, in parallel arrays.
+ *
+ * Entries 0 to size() - 1 of each array are valid. The arrays belong to
+ * the producer, which refills them after the chunk has been handed over,
+ * so copy out anything that must be kept.
+ */
+public final class CPRPositions {
+
+    private final int[] address;
+    private final long[] time;
+    private final double[] lat;
+    private final double[] lon;
+    private final boolean[] surface;
+    private int size;
+
+    /**
+     * @param capacity the most positions held
+     */
+    public CPRPositions(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+
+        address = new int[capacity];
+        time = new long[capacity];
+        lat = new double[capacity];
+        lon = new double[capacity];
+        surface = new boolean[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return address.length;
+    }
+
+    public boolean isFull() {
+        return size == address.length;
+    }
+
+    /**
+     * @return the tracker keys (24 bit addresses)
+     */
+    public int[] getAddresses() {
+        return address;
+    }
+
+    /**
+     * @return the times, in milliseconds
+     */
+    public long[] getTimes() {
+        return time;
+    }
+
+    public double[] getLats() {
+        return lat;
+    }
+
+    public double[] getLons() {
+        return lon;
+    }
+
+    /**
+     * @return true for surface positions
+     */
+    public boolean[] getSurface() {
+        return surface;
+    }
+
+    /**
+     * Append a position
+     *
+     * @param key the tracker key
+     * @param ms the time, in milliseconds
+     * @param plat the latitude
+     * @param plon the longitude
+     * @param onSurface true for a surface position
+     * @throws IllegalStateException if the chunk is full
+     */
+    public void add(int key, long ms, double plat, double plon, boolean onSurface) {
+        if (size == address.length) {
+            throw new IllegalStateException("chunk full");
+        }
+
+        address[size] = key;
+        time[size] = ms;
+        lat[size] = plat;
+        lon[size] = plon;
+        surface[size] = onSurface;
+        size++;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, thread-safe cache of the last known position of each aircraft,
+ * for use as the reference of relative and surface decodes.
+ *
+ * The decode methods here look the reference up, decode, and store each
+ * position they produce, so the cache refreshes itself. Entries older
+ * than the maximum age are ignored, and are the first to be replaced.
+ *
+ * The cache is set-associative, like a CPU cache: an address can only sit
+ * in one of the WAYS slots of its set, and when the set is full the slot
+ * updated longest ago is replaced. The number of slots is fixed when the
+ * cache is made, so memory never grows.
+ *
+ * Slots live in one array of longs, each guarded by a sequence number
+ * that is odd while the slot is being written. Readers take no lock: they
+ * read the slot and retry if the sequence number moved. Writers lock one
+ * of a set of stripes.
+ */
+public final class CPRReferenceCache {
+
+    private static final int WAYS = 8;
+    private static final int STRIDE = 5;    // sequence, key, time, lat, lon
+    private static final int STRIPES = 64;
+    private static final long EMPTY = -1L;
+
+    private final CPR cpr = CPR.shared();
+    private final AtomicLongArray slots;
+    private final Object[] locks = new Object[STRIPES];
+    private final int ways;
+    private final int shift;
+    private final long maxAge;
+
+    private volatile boolean haveReceiver;
+    private volatile double receiverLat;
+    private volatile double receiverLon;
+
+    /**
+     * @param capacity the most aircraft held, rounded up to a power of 2
+     * @param maxAge the age in milliseconds after which a position is no
+     * longer used as a reference
+     */
+    public CPRReferenceCache(int capacity, long maxAge) {
+        if (capacity < 1 || capacity > (1 << 26)) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+
+        int size = Integer.highestOneBit(capacity * 2 - 1);
+
+        ways = Math.min(WAYS, size);
+        shift = 32 - Integer.numberOfTrailingZeros(size / ways);
+        slots = new AtomicLongArray(size * STRIDE);
+        this.maxAge = maxAge;
+
+        for (int i = 0; i < size; i++) {
+            slots.set(i * STRIDE + 1, EMPTY);
+        }
+
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * The receiver location, used as the reference for surface decodes of
+     * aircraft with no position yet
+     *
+     * @param reflat the receiver latitude
+     * @param reflon the receiver longitude
+     */
+    public void setReceiver(double reflat, double reflon) {
+        receiverLat = reflat;
+        receiverLon = reflon;
+        haveReceiver = true;
+    }
+
+    public int capacity() {
+        return slots.length() / STRIDE;
+    }
+
+    /*
+     * The first slot of the set for key
+     */
+    private int set(int key) {
+        if (shift == 32) {
+            return 0;
+        }
+
+        return (CPRFrame.spread(key) >>> shift) * ways;
+    }
+
+    /**
+     * The cached position of an aircraft, if it is recent
+     *
+     * @param key the ICAO address
+     * @param now the current time
+     * @param result receives the latitude at offset, longitude at offset + 1
+     * @param offset the index of the latitude in result
+     * @return false if there is no position newer than the maximum age
+     */
+    public boolean get(int key, long now, double[] result, int offset) {
+        int first = set(key);
+
+        for (int s = first; s < first + ways; s++) {
+            int i = s * STRIDE;
+
+            while (true) {
+                long seq = slots.get(i);
+
+                if ((seq & 1L) != 0L) {
+                    continue;       // being written
+                }
+
+                long k = slots.get(i + 1);
+                long time = slots.get(i + 2);
+                long lat = slots.get(i + 3);
+                long lon = slots.get(i + 4);
+
+                if (slots.get(i) != seq) {
+                    continue;       // changed while we read it
+                }
+
+                if (k != key) {
+                    break;
+                }
+
+                if (now - time > maxAge) {
+                    return false;
+                }
+
+                result[offset] = Double.longBitsToDouble(lat);
+                result[offset + 1] = Double.longBitsToDouble(lon);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Store the position of an aircraft, unless a newer one is held
+     *
+     * @param key the ICAO address
+     * @param time the time of the position
+     * @param lat the latitude
+     * @param lon the longitude
+     */
+    public void put(int key, long time, double lat, double lon) {
+        int first = set(key);
+
+        synchronized (locks[(first / ways) & (STRIPES - 1)]) {
+            int victim = -1;
+            long oldest = Long.MAX_VALUE;
+
+            for (int s = first; s < first + ways; s++) {
+                int i = s * STRIDE;
+                long k = slots.get(i + 1);
+
+                if (k == key) {
+                    if (slots.get(i + 2) > time) {
+                        return;
+                    }
+
+                    victim = s;
+                    break;
+                }
+
+                long t = (k == EMPTY) ? Long.MIN_VALUE : slots.get(i + 2);
+
+                if (t < oldest) {
+                    oldest = t;
+                    victim = s;
+                }
+            }
+
+            write(victim * STRIDE, key, time, Double.doubleToRawLongBits(lat), Double.doubleToRawLongBits(lon));
+        }
+    }
+
+    /*
+     * Write a slot, with its sequence number odd while it changes. Called
+     * with the stripe lock held.
+     */
+    private void write(int i, long key, long time, long lat, long lon) {
+        long seq = slots.get(i);
+
+        slots.set(i, seq + 1);
+        slots.lazySet(i + 1, key);
+        slots.lazySet(i + 2, time);
+        slots.lazySet(i + 3, lat);
+        slots.lazySet(i + 4, lon);
+        slots.lazySet(i, seq + 2);
+    }
+
+    /**
+     * Drop an aircraft
+     *
+     * @param key the ICAO address
+     * @return false if it was not held
+     */
+    public boolean remove(int key) {
+        int first = set(key);
+
+        synchronized (locks[(first / ways) & (STRIPES - 1)]) {
+            for (int s = first; s < first + ways; s++) {
+                int i = s * STRIDE;
+
+                if (slots.get(i + 1) == key) {
+                    write(i, EMPTY, 0L, 0L, 0L);
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * The number of aircraft held with a position newer than the maximum
+     * age. Slots are read one at a time, so this may be out of date when
+     * there are concurrent updates.
+     *
+     * @param now the current time
+     * @return the number of aircraft
+     */
+    public int size(long now) {
+        int n = 0;
+
+        for (int i = 0; i < slots.length(); i += STRIDE) {
+            if (slots.get(i + 1) != EMPTY && now - slots.get(i + 2) <= maxAge) {
+                n++;
+            }
+        }
+
+        return n;
+    }
+
+    /**
+     * Decode a frame relative to the cached position, and cache the result
+     *
+     * @param key the ICAO address
+     * @param time the time the frame was received
+     * @param cprlat the raw CPR latitude
+     * @param cprlon the raw CPR longitude
+     * @param fflag true for an odd frame
+     * @param surface true for a surface position frame
+     * @param result receives the latitude at offset, longitude at offset + 1
+     * @param offset the index of the latitude in result
+     * @return {@link CPRStatus#OK}, {@link CPRStatus#NO_REFERENCE} if there
+     * is no recent position, or the reason the decode failed
+     */
+    public int decodeRelative(int key, long time, int cprlat, int cprlon, boolean fflag, boolean surface,
+            double[] result, int offset) {
+        if (get(key, time, result, offset) == false) {
+            return CPRStatus.NO_REFERENCE;
+        }
+
+        int status = cpr.tryDecodeCPRrelative(result[offset], result[offset + 1], cprlat, cprlon, fflag, surface,
+                result, offset);
+
+        if (status == CPRStatus.OK) {
+            put(key, time, result[offset], result[offset + 1]);
+        }
+
+        return status;
+    }
+
+    /**
+     * Decode an airborne even/odd pair globally, and cache the result
+     *
+     * @param key the ICAO address
+     * @param time the time of the later frame
+     * @param even_cprlat the even frame raw CPR latitude
+     * @param even_cprlon the even frame raw CPR longitude
+     * @param odd_cprlat the odd frame raw CPR latitude
+     * @param odd_cprlon the odd frame raw CPR longitude
+     * @param fflag true if the odd frame is the later one
+     * @param result receives the latitude at offset, longitude at offset + 1
+     * @param offset the index of the latitude in result
+     * @return {@link CPRStatus#OK}, or the reason the decode failed
+     */
+    public int decodeAirborne(int key, long time, int even_cprlat, int even_cprlon, int odd_cprlat, int odd_cprlon,
+            boolean fflag, double[] result, int offset) {
+        int status = cpr.tryDecodeCPRairborne(even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag, result, offset);
+
+        if (status == CPRStatus.OK) {
+            put(key, time, result[offset], result[offset + 1]);
+        }
+
+        return status;
+    }
+
+    /**
+     * Decode a surface even/odd pair globally, using the cached position or
+     * else the receiver location as the reference, and cache the result
+     *
+     * @param key the ICAO address
+     * @param time the time of the later frame
+     * @param even_cprlat the even frame raw CPR latitude
+     * @param even_cprlon the even frame raw CPR longitude
+     * @param odd_cprlat the odd frame raw CPR latitude
+     * @param odd_cprlon the odd frame raw CPR longitude
+     * @param fflag true if the odd frame is the later one
+     * @param result receives the latitude at offset, longitude at offset + 1
+     * @param offset the index of the latitude in result
+     * @return {@link CPRStatus#OK}, {@link CPRStatus#NO_REFERENCE} if there
+     * is no reference, or the reason the decode failed
+     */
+    public int decodeSurface(int key, long time, int even_cprlat, int even_cprlon, int odd_cprlat, int odd_cprlon,
+            boolean fflag, double[] result, int offset) {
+        if (get(key, time, result, offset) == false) {
+            if (haveReceiver == false) {
+                return CPRStatus.NO_REFERENCE;
+            }
+
+            result[offset] = receiverLat;
+            result[offset + 1] = receiverLon;
+        }
+
+        int status = cpr.tryDecodeCPRsurface(result[offset], result[offset + 1], even_cprlat, even_cprlon,
+                odd_cprlat, odd_cprlon, fflag, result, offset);
+
+        if (status == CPRStatus.OK) {
+            put(key, time, result[offset], result[offset + 1]);
+        }
+
+        return status;
+    }
+}
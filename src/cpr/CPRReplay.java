@@ -0,0 +1,457 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Parallel replay of raw frame captures, partitioned by aircraft.
+ *
+ * The file is taken a round at a time. Each round is split into chunks,
+ * which are scanned in parallel for position frames. The frames are then
+ * decoded in parallel by partition: every aircraft belongs to one
+ * partition, with its own {@link CPRTracker}, which sees that aircraft's
+ * frames in file order. Finally the positions are passed to the sink in
+ * file order.
+ *
+ * The positions, times, chunks and counts are those a
+ * {@link CPRFileDecoder} gives with a tracker from the same supplier, as
+ * long as no tracker fills up: eviction depends on which aircraft share a
+ * tracker. Give each tracker room for the whole fleet, or its share with
+ * a good margin.
+ *
+ * The trackers keep their state from one file to the next. Instances are
+ * not thread-safe; the parallelism is inside decode().
+ */
+public final class CPRReplay {
+
+    private static final int SLACK = 1 << 16;       // mapped past a chunk, to finish its last record
+
+    private final int format;
+    private final CPRTracker[] trackers;
+    private final int shift;
+    private final CPRPositions out;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private Chunk[] chunks = new Chunk[0];
+    private int chunkBytes = 1 << 22;
+    private long now;
+
+    private long frames;
+    private long corrupt;
+    private long positionFrames;
+    private long positions;
+
+    /**
+     * @param format {@link CPRFrameScanner#HEX} or
+     * {@link CPRFrameScanner#BEAST}
+     * @param partitions the number of partitions, rounded up to a power of
+     * 2; a few per thread balances the work
+     * @param trackers makes the tracker for each partition
+     * @param chunkSize the most positions passed to the sink at once
+     */
+    public CPRReplay(int format, int partitions, Supplier<CPRTracker> trackers, int chunkSize) {
+        if (partitions < 1 || partitions > (1 << 16)) {
+            throw new IllegalArgumentException("partitions " + partitions);
+        }
+
+        int n = Integer.highestOneBit(partitions * 2 - 1);
+
+        if (format != CPRFrameScanner.HEX && format != CPRFrameScanner.BEAST) {
+            throw new IllegalArgumentException("format " + format);
+        }
+
+        this.format = format;
+        this.trackers = new CPRTracker[n];
+        shift = 32 - Integer.numberOfTrailingZeros(n);
+        out = new CPRPositions(chunkSize);
+
+        for (int i = 0; i < n; i++) {
+            this.trackers[i] = trackers.get();
+        }
+    }
+
+    /**
+     * The pool the work runs in, the common pool unless set
+     *
+     * @param pool the pool
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * The size of the chunks each round is split into, 4 MiB unless set.
+     * A round is four chunks per thread of the pool.
+     *
+     * @param bytes the chunk size, at least 4096
+     */
+    public void setChunkBytes(int bytes) {
+        if (bytes < 4096) {
+            throw new IllegalArgumentException("chunk size " + bytes);
+        }
+
+        chunkBytes = bytes;
+    }
+
+    public int getPartitions() {
+        return trackers.length;
+    }
+
+    private int partition(int key) {
+        if (trackers.length == 1) {
+            return 0;
+        }
+
+        return CPRFrame.spread(key) >>> shift;
+    }
+
+    /**
+     * Decode a whole file
+     *
+     * @param file the capture
+     * @param sink receives the positions, on the calling thread
+     * @throws IOException if the file can't be read
+     */
+    public void decode(Path file, CPRFileDecoder.Sink sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            decode(channel, sink);
+        }
+    }
+
+    /**
+     * Decode from the channel position to the end of the file. The
+     * channel position is not moved.
+     *
+     * @param channel the capture
+     * @param sink receives the positions, on the calling thread
+     * @throws IOException if the channel can't be read
+     */
+    public void decode(FileChannel channel, CPRFileDecoder.Sink sink) throws IOException {
+        long size = channel.size();
+        long at = channel.position();
+        int per = 4 * pool.getParallelism();
+
+        if (chunks.length != per) {
+            chunks = new Chunk[per];
+
+            for (int i = 0; i < per; i++) {
+                chunks[i] = new Chunk(format, trackers.length);
+            }
+        }
+
+        while (at < size) {
+            at = round(channel, at, size, sink);
+        }
+
+        if (out.size() > 0) {
+            sink.positions(out);
+            out.clear();
+        }
+    }
+
+    /*
+     * Decode one round of chunks from at, returning where the next round
+     * starts
+     */
+    private long round(final FileChannel channel, long at, final long size, CPRFileDecoder.Sink sink) throws IOException {
+        final long[] bound = new long[chunks.length + 1];
+        int count = 0;
+
+        bound[0] = at;
+
+        while (count < chunks.length && bound[count] < size) {
+            bound[count + 1] = split(channel, bound[count] + chunkBytes, size);
+            count++;
+        }
+
+        // scan the chunks in parallel
+
+        run(count, c -> {
+            try {
+                chunks[c].scan(channel, bound[c], bound[c + 1], size);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        // a chunk must start where the scan of the one before ended; if
+        // a damaged record fooled split(), scan it again from there
+
+        for (int c = 1; c < count; c++) {
+            if (chunks[c - 1].next != chunks[c].from) {
+                chunks[c].scan(channel, chunks[c - 1].next, bound[c + 1], size);
+            }
+        }
+
+        // frames without a timestamp take the last time before them
+
+        for (int c = 0; c < count; c++) {
+            chunks[c].carry = now;
+
+            if (chunks[c].last >= 0L) {
+                now = chunks[c].last;
+            }
+        }
+
+        // decode each partition in parallel, in file order
+
+        final int used = count;
+
+        run(trackers.length, p -> {
+            for (int c = 0; c < used; c++) {
+                chunks[c].decode(trackers[p], p);
+            }
+        });
+
+        // hand over the positions in file order
+
+        for (int c = 0; c < count; c++) {
+            Chunk chunk = chunks[c];
+
+            frames += chunk.frames;
+            corrupt += chunk.corrupt;
+            positionFrames += chunk.n;
+
+            for (int i = 0; i < chunk.n; i++) {
+                if (chunk.status[i] == CPRStatus.OK) {
+                    positions++;
+                    out.add(chunk.key[i], chunk.time[i], chunk.lat[i], chunk.lon[i], (chunk.flags[i] & Chunk.SURFACE) != 0);
+
+                    if (out.isFull()) {
+                        sink.positions(out);
+                        out.clear();
+                    }
+                }
+            }
+        }
+
+        return chunks[count - 1].next;
+    }
+
+    /*
+     * A place near at to split the file
+     */
+    private long split(FileChannel channel, long at, long size) throws IOException {
+        if (at >= size) {
+            return size;
+        }
+
+        long from = at - 1;
+        int length = (int) Math.min(SLACK, size - from);
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+        CPRFrameScanner scanner = chunks[0].scanner;
+
+        return from + scanner.sync(map, 1, length);
+    }
+
+    private void run(int count, final IntConsumer body) throws IOException {
+        final List<ForkJoinTask<?>> tasks = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            final int k = i;
+
+            tasks.add(ForkJoinTask.adapt(() -> body.accept(k)));
+        }
+
+        try {
+            pool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return the 112 bit frames read
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return the frames that failed their CRC
+     */
+    public long getCorruptFrames() {
+        return corrupt;
+    }
+
+    /**
+     * @return the airborne and surface position frames read
+     */
+    public long getPositionFrames() {
+        return positionFrames;
+    }
+
+    /**
+     * @return the positions passed to the sink
+     */
+    public long getPositions() {
+        return positions;
+    }
+
+    /*
+     * The position frames of one chunk, in parallel arrays, with a list of
+     * frame indexes per partition. The arrays only grow, and are reused
+     * from round to round.
+     */
+    private final class Chunk implements CPRFrameScanner.Handler {
+
+        static final byte ODD = 1;
+        static final byte SURFACE = 2;
+
+        final CPRFrameScanner scanner;
+        final int[][] part;
+        final int[] parts;
+
+        int[] key = new int[1024];
+        long[] time = new long[1024];
+        int[] cprlat = new int[1024];
+        int[] cprlon = new int[1024];
+        byte[] flags = new byte[1024];
+        byte[] status = new byte[1024];
+        double[] lat = new double[1024];
+        double[] lon = new double[1024];
+        int n;
+
+        long from;
+        long next;
+        long frames;
+        long corrupt;
+        long last;
+        long carry;
+
+        Chunk(int format, int partitions) {
+            scanner = new CPRFrameScanner(format);
+            part = new int[partitions][16];
+            parts = new int[partitions];
+        }
+
+        /*
+         * Read the records starting in [start, stop)
+         */
+        void scan(FileChannel channel, long start, long stop, long size) throws IOException {
+            long at = start;
+
+            n = 0;
+            frames = 0L;
+            corrupt = 0L;
+            last = -1L;
+            Arrays.fill(parts, 0);
+            from = start;
+
+            while (at < stop) {
+                int length = (int) Math.min(stop - at + SLACK, size - at);
+                boolean eof = (at + length == size);
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, at, length);
+                int end = (int) Math.min(stop - at, length);
+                int used = scanner.scan(map, 0, end, length, eof, this);
+
+                if (used == 0) {
+                    used = scanner.scan(map, 0, end, length, true, this);
+                }
+
+                at += used;
+            }
+
+            next = at;
+        }
+
+        @Override
+        public void frame(long timestamp, byte[] frame) {
+            frames++;
+
+            if (CPRFrame.checkCRC(frame, 0) == false) {
+                corrupt++;
+                return;
+            }
+
+            int k = CPRFrame.address(frame, 0);
+            int tc = CPRFrame.typeCode(frame, 0);
+            boolean surface = CPRFrame.isSurfacePosition(tc);
+
+            if (k == -1 || (surface == false && CPRFrame.isAirbornePosition(tc) == false)) {
+                return;
+            }
+
+            if (timestamp >= 0L) {
+                last = timestamp / 12000L;
+            }
+
+            if (n == key.length) {
+                grow();
+            }
+
+            int p = partition(k);
+
+            if (parts[p] == part[p].length) {
+                part[p] = Arrays.copyOf(part[p], parts[p] * 2);
+            }
+
+            part[p][parts[p]++] = n;
+            key[n] = k;
+            time[n] = last;
+            cprlat[n] = CPRFrame.cprLat(frame, 0);
+            cprlon[n] = CPRFrame.cprLon(frame, 0);
+            flags[n] = (byte) ((CPRFrame.fflag(frame, 0) ? ODD : 0) | (surface ? SURFACE : 0));
+            n++;
+        }
+
+        private void grow() {
+            int size = key.length * 2;
+
+            key = Arrays.copyOf(key, size);
+            time = Arrays.copyOf(time, size);
+            cprlat = Arrays.copyOf(cprlat, size);
+            cprlon = Arrays.copyOf(cprlon, size);
+            flags = Arrays.copyOf(flags, size);
+            status = Arrays.copyOf(status, size);
+            lat = Arrays.copyOf(lat, size);
+            lon = Arrays.copyOf(lon, size);
+        }
+
+        /*
+         * Decode this chunk's frames for one partition. Each frame belongs
+         * to one partition, so partitions never write the same entries.
+         */
+        void decode(CPRTracker tracker, int p) {
+            int[] list = part[p];
+            double[] result = new double[2];
+
+            for (int j = 0; j < parts[p]; j++) {
+                int i = list[j];
+
+                if (time[i] < 0L) {
+                    time[i] = carry;
+                }
+
+                status[i] = (byte) tracker.update(key[i], time[i], cprlat[i], cprlon[i], (flags[i] & ODD) != 0,
+                        (flags[i] & SURFACE) != 0, result, 0);
+                lat[i] = result[0];
+                lon[i] = result[1];
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free hand off of position frames from one receiver thread to
+ * decoding threads.
+ *
+ * The ring is a fixed number of slots, held in parallel primitive arrays
+ * (address, time, type code, F flag, raw CPR latitude and longitude), so
+ * publishing a frame allocates nothing. As in the Disruptor, the producer
+ * and each consumer only advance their own sequence number: the producer
+ * publishes a slot by moving its cursor past it, and waits only when the
+ * slowest consumer is a whole ring behind.
+ *
+ * Every consumer sees every slot, but decodes only the frames of its own
+ * aircraft, picked by a hash of the address when the frame is published.
+ * Each aircraft's frames are so decoded in order, by one thread, which
+ * can have a {@link CPRTracker} of its own. A consumer takes everything
+ * published since it last looked as one batch, and passes the positions
+ * to a {@link CPRFileDecoder.Sink} in chunks.
+ *
+ * Threads with nothing to do wait by {@link #BUSY_SPIN} (lowest latency,
+ * a core each), {@link #YIELD} or {@link #PARK} (least CPU). Set the
+ * strategy before starting the threads.
+ */
+public final class CPRRing {
+
+    public static final int BUSY_SPIN = 0;
+    public static final int YIELD = 1;
+    public static final int PARK = 2;
+
+    private static final int PAD = 16;           // longs between sequences: two cache lines
+    private static final int SPINS = 100;        // tries before yielding or parking
+
+    private final int capacity;
+    private final int mask;
+    private final int consumers;
+    private final int[] address;
+    private final long[] time;
+    private final byte[] type;
+    private final boolean[] fflag;
+    private final int[] cprlat;
+    private final int[] cprlon;
+    private final byte[] owner;
+
+    /*
+     * The producer's cursor (slots published) at 0, and consumer c's
+     * sequence (slots done with) at (c + 1) * PAD.
+     */
+    private final AtomicLongArray sequences;
+
+    private final CPRPositions[] chunks;
+    private final double[][] pos;
+    private int waitStrategy = YIELD;
+    private long parkNanos = 50000L;
+    private volatile boolean closed;
+
+    // producer only
+    private long next;
+    private long gate;
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of two
+     * @param consumers the number of decoding threads, 1 to 127
+     * @param chunkSize the most positions passed to a sink at once
+     */
+    public CPRRing(int capacity, int consumers, int chunkSize) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+
+        if (consumers < 1 || consumers > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("consumers " + consumers);
+        }
+
+        this.capacity = Integer.highestOneBit(capacity * 2 - 1);
+        this.consumers = consumers;
+        mask = this.capacity - 1;
+        address = new int[this.capacity];
+        time = new long[this.capacity];
+        type = new byte[this.capacity];
+        fflag = new boolean[this.capacity];
+        cprlat = new int[this.capacity];
+        cprlon = new int[this.capacity];
+        owner = new byte[this.capacity];
+        sequences = new AtomicLongArray((consumers + 1) * PAD);
+        chunks = new CPRPositions[consumers];
+        pos = new double[consumers][2];
+
+        for (int c = 0; c < consumers; c++) {
+            chunks[c] = new CPRPositions(chunkSize);
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getConsumers() {
+        return consumers;
+    }
+
+    /**
+     * How threads wait for work or room, default {@link #YIELD}
+     *
+     * @param strategy {@link #BUSY_SPIN}, {@link #YIELD} or {@link #PARK}
+     */
+    public void setWaitStrategy(int strategy) {
+        if (strategy < BUSY_SPIN || strategy > PARK) {
+            throw new IllegalArgumentException("wait strategy " + strategy);
+        }
+
+        waitStrategy = strategy;
+    }
+
+    /**
+     * How long a parked thread sleeps before looking again, default 50
+     * microseconds
+     */
+    public void setParkNanos(long nanos) {
+        parkNanos = nanos;
+    }
+
+    /*
+     * Wait once, having found nothing to do n times in a row
+     */
+    private int idle(int n) {
+        if (n >= SPINS) {
+            if (waitStrategy == YIELD) {
+                Thread.yield();
+            } else if (waitStrategy == PARK) {
+                LockSupport.parkNanos(parkNanos);
+            }
+        }
+
+        return n + 1;
+    }
+
+    private long slowest() {
+        long min = Long.MAX_VALUE;
+
+        for (int c = 1; c <= consumers; c++) {
+            min = Math.min(min, sequences.get(c * PAD));
+        }
+
+        return min;
+    }
+
+    /**
+     * @return the frames published and not yet taken by every consumer
+     */
+    public int backlog() {
+        return (int) (sequences.get(0) - slowest());
+    }
+
+    /*
+     * Fill and publish the next slot, which must be free
+     */
+    private void put(int key, long ms, int tc, boolean odd, int lat, int lon) {
+        int i = (int) next & mask;
+
+        address[i] = key;
+        time[i] = ms;
+        type[i] = (byte) tc;
+        fflag[i] = odd;
+        cprlat[i] = lat;
+        cprlon[i] = lon;
+        owner[i] = (byte) ((CPRFrame.spread(key) & 0xFFFFFFFFL) * consumers >>> 32);
+        sequences.lazySet(0, ++next);
+    }
+
+    /**
+     * Publish a frame if there is room. Only one thread may publish.
+     *
+     * @param key the tracker key (address, and {@link CPRFrame#NON_ICAO})
+     * @param ms the time, in milliseconds
+     * @param tc the type code, airborne or surface position
+     * @param odd the F flag
+     * @param lat the raw CPR latitude
+     * @param lon the raw CPR longitude
+     * @return false if the ring is full
+     */
+    public boolean offer(int key, long ms, int tc, boolean odd, int lat, int lon) {
+        if (next - gate >= capacity) {
+            gate = slowest();
+
+            if (next - gate >= capacity) {
+                return false;
+            }
+        }
+
+        put(key, ms, tc, odd, lat, lon);
+        return true;
+    }
+
+    /**
+     * Publish a frame, waiting for room. Only one thread may publish.
+     *
+     * @see #offer
+     */
+    public void publish(int key, long ms, int tc, boolean odd, int lat, int lon) {
+        for (int n = 0; next - gate >= capacity; n = idle(n)) {
+            gate = slowest();
+        }
+
+        put(key, ms, tc, odd, lat, lon);
+    }
+
+    /**
+     * Publish a frame if it is a DF17/DF18 position frame with a good CRC,
+     * waiting for room
+     *
+     * @param ms the time, in milliseconds
+     * @param frame the 112 bit frame
+     * @param offset the index of the frame in the array
+     * @return false if the frame was not published
+     */
+    public boolean publishFrame(long ms, byte[] frame, int offset) {
+        if (CPRFrame.checkCRC(frame, offset) == false) {
+            return false;
+        }
+
+        int key = CPRFrame.address(frame, offset);
+        int tc = CPRFrame.typeCode(frame, offset);
+
+        if (key == -1 || (CPRFrame.isAirbornePosition(tc) == false && CPRFrame.isSurfacePosition(tc) == false)) {
+            return false;
+        }
+
+        publish(key, ms, tc, CPRFrame.fflag(frame, offset), CPRFrame.cprLat(frame, offset),
+                CPRFrame.cprLon(frame, offset));
+        return true;
+    }
+
+    /**
+     * Mark the end of the frames. Consumers in {@link #run} return once
+     * they have decoded everything published before this.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Decode, as one batch, the frames for a consumer's aircraft published
+     * since it last looked. Each consumer may be driven by one thread at a
+     * time.
+     *
+     * @param consumer the consumer, 0 .. consumers - 1
+     * @param tracker the consumer's tracker
+     * @param sink receives the positions, on this thread
+     * @return the slots taken, whether or not they were the consumer's
+     */
+    public int poll(int consumer, CPRTracker tracker, CPRFileDecoder.Sink sink) {
+        int at = (consumer + 1) * PAD;
+        long from = sequences.get(at);
+        long to = sequences.get(0);
+
+        if (from == to) {
+            return 0;
+        }
+
+        CPRPositions chunk = chunks[consumer];
+        double[] p = pos[consumer];
+
+        for (long s = from; s < to; s++) {
+            int i = (int) s & mask;
+
+            if (owner[i] != consumer) {
+                continue;
+            }
+
+            boolean surface = CPRFrame.isSurfacePosition(type[i]);
+
+            if (tracker.update(address[i], time[i], cprlat[i], cprlon[i], fflag[i], surface, p, 0) == CPRStatus.OK) {
+                chunk.add(address[i], time[i], p[0], p[1], surface);
+
+                if (chunk.isFull()) {
+                    sink.positions(chunk);
+                    chunk.clear();
+                }
+            }
+        }
+
+        if (chunk.size() > 0) {
+            sink.positions(chunk);
+            chunk.clear();
+        }
+
+        sequences.lazySet(at, to);
+        return (int) (to - from);
+    }
+
+    /**
+     * Decode a consumer's frames until the ring is closed and drained,
+     * waiting by the wait strategy when there is nothing to do
+     *
+     * @see #poll
+     */
+    public void run(int consumer, CPRTracker tracker, CPRFileDecoder.Sink sink) {
+        for (int n = 0;; n = idle(n)) {
+            boolean last = closed;
+
+            if (poll(consumer, tracker, sink) > 0) {
+                n = -1;
+            } else if (last == true) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decodes many receiver feeds at once, and serves the positions on a
+ * socket.
+ *
+ * Each feed is a TCP connection carrying hex (AVR) or Beast frames, such
+ * as dump1090's raw or Beast output. It gets a thread of its own, which
+ * reads into a buffer, finds the frames in place with a
+ * {@link CPRFrameScanner} and passes each position frame to one shared
+ * {@link ConcurrentCPRTracker}, so the even and odd frames of an aircraft
+ * pair up whichever feeds they came in on. The trackers decode with the
+ * thread-safe {@link CPR#shared()}. On Java 21 and later the feed threads
+ * are virtual threads, so hundreds of feeds need only a few platform
+ * threads; before that they are ordinary daemon threads.
+ *
+ * Frames are timed by the clock when they are read, not by the receiver
+ * timestamps, as every receiver has a clock of its own.
+ *
+ * The positions decoded from each read go, as lines of text, to every
+ * client connected to the output socket:
+ *
+ * <pre>
+ * time,address,lat,lon,A|S
+ * </pre>
+ *
+ * The time is in milliseconds since 1970 and the address is 6 hex digits,
+ * after a ~ if it is not an ICAO address. The latitude and longitude are
+ * in degrees to six places, and the last field is A for airborne or S for
+ * surface. A client that stops reading holds up the feeds whose positions
+ * it is sent; a client whose connection fails is dropped.
+ */
+public final class CPRServer implements Closeable {
+
+    private static final int BUFFER = 1 << 14;  // bytes read from a feed at once
+    private static final int LINE = 64;         // longest output line, rounded up
+    private static final int LINES = 256;       // lines written to the clients at once
+    private static final long ACCEPT_RETRY = 100L;  // milliseconds to wait after a failed accept
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private final ConcurrentCPRTracker tracker;
+    private final ThreadFactory threads = CPRThreads.factory("cpr-server-");
+    private final Set<Socket> feeds = ConcurrentHashMap.newKeySet();
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder positions = new LongAdder();
+    private ServerSocket listener;
+    private volatile boolean closed;
+
+    /**
+     * @param tracker decodes the frames of every feed
+     */
+    public CPRServer(ConcurrentCPRTracker tracker) {
+        this.tracker = tracker;
+    }
+
+    /**
+     * @return true if the feeds are read by virtual threads (Java 21 and
+     * later)
+     */
+    public static boolean usesVirtualThreads() {
+        return CPRThreads.isVirtual();
+    }
+
+    /**
+     * Open the output socket, and start accepting clients
+     *
+     * @param address where to listen, usually a loopback address
+     * @return the port, which is chosen by the system if address has port 0
+     * @throws IOException if the socket can't be bound
+     */
+    public synchronized int listen(SocketAddress address) throws IOException {
+        if (closed || listener != null) {
+            throw new IllegalStateException(closed ? "closed" : "already listening");
+        }
+
+        ServerSocket server = new ServerSocket();
+
+        try {
+            server.bind(address);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+
+        listener = server;
+        threads.newThread(() -> accept(server)).start();
+        return server.getLocalPort();
+    }
+
+    /*
+     * Accept clients until the server is closed. A failed accept, such as
+     * one out of file descriptors, is retried after a pause.
+     */
+    private void accept(ServerSocket server) {
+        while (closed == false && server.isClosed() == false) {
+            Socket socket = null;
+
+            try {
+                socket = server.accept();
+
+                Client client = new Client(socket);
+
+                clients.add(client);
+
+                // close() may have run since accept() returned
+                if (closed) {
+                    drop(client);
+                }
+            } catch (IOException e) {
+                if (socket != null) {
+                    closeQuietly(socket);
+                }
+
+                if (closed == false && server.isClosed() == false) {
+                    try {
+                        Thread.sleep(ACCEPT_RETRY);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Connect to a receiver and start decoding its frames
+     *
+     * @param address the receiver's raw or Beast output
+     * @param format {@link CPRFrameScanner#HEX} or
+     * {@link CPRFrameScanner#BEAST}
+     * @throws IOException if the connection fails
+     */
+    public void addFeed(SocketAddress address, int format) throws IOException {
+        Socket socket = new Socket();
+
+        try {
+            socket.connect(address);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        addFeed(socket, format);
+    }
+
+    /**
+     * Start decoding the frames from a connection, such as one a receiver
+     * made to us. The server closes the socket when the feed ends.
+     *
+     * @param socket the connection
+     * @param format {@link CPRFrameScanner#HEX} or
+     * {@link CPRFrameScanner#BEAST}
+     */
+    public void addFeed(Socket socket, int format) {
+        Feed feed = new Feed(socket, new CPRFrameScanner(format));
+
+        feeds.add(socket);
+
+        if (closed) {
+            feeds.remove(socket);
+            closeQuietly(socket);
+            throw new IllegalStateException("closed");
+        }
+
+        threads.newThread(feed).start();
+    }
+
+    /**
+     * @return the feeds still connected
+     */
+    public int getFeeds() {
+        return feeds.size();
+    }
+
+    /**
+     * @return the clients connected to the output socket
+     */
+    public int getClients() {
+        return clients.size();
+    }
+
+    /**
+     * @return the 112 bit frames read from every feed
+     */
+    public long getFrames() {
+        return frames.sum();
+    }
+
+    /**
+     * @return the positions decoded
+     */
+    public long getPositions() {
+        return positions.sum();
+    }
+
+    /**
+     * Disconnect every feed and client, and close the output socket
+     */
+    @Override
+    public void close() {
+        ServerSocket server;
+
+        synchronized (this) {
+            closed = true;
+            server = listener;
+        }
+
+        if (server != null) {
+            closeQuietly(server);
+        }
+
+        for (Socket socket : feeds) {
+            closeQuietly(socket);
+        }
+
+        for (Client client : clients) {
+            drop(client);
+        }
+    }
+
+    private void drop(Client client) {
+        clients.remove(client);
+        closeQuietly(client.socket);
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            // nothing more to do with it
+        }
+    }
+
+    /*
+     * Write n as decimal digits
+     */
+    private static int digits(byte[] b, int at, long n) {
+        int end = at + 1;
+
+        for (long m = n; m >= 10L; m /= 10L) {
+            end++;
+        }
+
+        for (int i = end - 1; i >= at; i--, n /= 10L) {
+            b[i] = (byte) ('0' + (int) (n % 10L));
+        }
+
+        return end;
+    }
+
+    /*
+     * Write degrees to six places
+     */
+    private static int degrees(byte[] b, int at, double deg) {
+        long micro = Math.round(deg * 1e6);
+
+        if (micro < 0L) {
+            b[at++] = '-';
+            micro = -micro;
+        }
+
+        at = digits(b, at, micro / 1000000L);
+        b[at++] = '.';
+
+        for (int scale = 100000, frac = (int) (micro % 1000000L); scale > 0; scale /= 10) {
+            b[at++] = (byte) ('0' + frac / scale % 10);
+        }
+
+        return at;
+    }
+
+    /*
+     * Write one output line
+     */
+    private static int line(byte[] b, int at, int key, long time, double lat, double lon, boolean surface) {
+        at = digits(b, at, time);
+        b[at++] = ',';
+
+        if ((key & CPRFrame.NON_ICAO) != 0) {
+            b[at++] = '~';
+        }
+
+        for (int shift = 20; shift >= 0; shift -= 4) {
+            b[at++] = HEX[(key >>> shift) & 15];
+        }
+
+        b[at++] = ',';
+        at = degrees(b, at, lat);
+        b[at++] = ',';
+        at = degrees(b, at, lon);
+        b[at++] = ',';
+        b[at++] = (byte) ((surface == true) ? 'S' : 'A');
+        b[at++] = '\n';
+        return at;
+    }
+
+    /*
+     * A connection to the output socket. Writes take a ReentrantLock, not
+     * a monitor, so a virtual thread blocked in one does not hold on to
+     * its carrier thread.
+     */
+    private final class Client {
+
+        final Socket socket;
+        final OutputStream out;
+        final ReentrantLock lock = new ReentrantLock();
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            out = socket.getOutputStream();
+        }
+
+        void write(byte[] b, int length) {
+            lock.lock();
+
+            try {
+                out.write(b, 0, length);
+            } catch (IOException e) {
+                drop(this);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /*
+     * One feed's thread, and its buffers
+     */
+    private final class Feed implements Runnable, CPRFrameScanner.Handler {
+
+        private final Socket socket;
+        private final CPRFrameScanner scanner;
+        private final byte[] buf = new byte[BUFFER];
+        private final ByteBuffer wrapped = ByteBuffer.wrap(buf);
+        private final byte[] text = new byte[LINES * LINE];
+        private final double[] pos = new double[2];
+        private int length;
+        private long now;
+
+        Feed(Socket socket, CPRFrameScanner scanner) {
+            this.socket = socket;
+            this.scanner = scanner;
+        }
+
+        @Override
+        public void run() {
+            int end = 0;
+
+            try (Socket s = socket; InputStream in = s.getInputStream()) {
+                for (int n; (n = in.read(buf, end, buf.length - end)) > 0;) {
+                    end += n;
+                    now = System.currentTimeMillis();
+
+                    int used = scanner.scan(wrapped, 0, end, false, this);
+
+                    if (used == 0 && end == buf.length) {
+                        used = scanner.scan(wrapped, 0, end, true, this);   // a record longer than the buffer
+                    }
+
+                    System.arraycopy(buf, used, buf, 0, end - used);
+                    end -= used;
+                    send();
+                }
+
+                scanner.scan(wrapped, 0, end, true, this);
+                send();
+            } catch (IOException e) {
+                // the feed dropped, or the server was closed
+            } finally {
+                feeds.remove(socket);
+            }
+        }
+
+        private void send() {
+            if (length > 0) {
+                for (Client client : clients) {
+                    client.write(text, length);
+                }
+
+                length = 0;
+            }
+        }
+
+        @Override
+        public void frame(long timestamp, byte[] frame) {
+            frames.increment();
+
+            if (CPRFrame.checkCRC(frame, 0) == false) {
+                return;
+            }
+
+            int key = CPRFrame.address(frame, 0);
+            int tc = CPRFrame.typeCode(frame, 0);
+            boolean surface = CPRFrame.isSurfacePosition(tc);
+
+            if (key == -1 || (surface == false && CPRFrame.isAirbornePosition(tc) == false)) {
+                return;
+            }
+
+            int status = tracker.update(key, now, CPRFrame.cprLat(frame, 0), CPRFrame.cprLon(frame, 0),
+                    CPRFrame.fflag(frame, 0), surface, pos, 0);
+
+            if (status == CPRStatus.OK) {
+                positions.increment();
+                length = line(text, length, key, now, pos[0], pos[1], surface);
+
+                if (length > text.length - LINE) {
+                    send();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+/**
+ * Relative decoder for a fixed reference, such as the receiver site.
+ *
+ * decodeCPRrelative() works out the zone size, the reference's zone index
+ * and its offset into the zone for every frame. For a fixed reference
+ * these only depend on the frame type (even/odd, airborne/surface) and,
+ * for longitude, on the number of zones at the decoded latitude, so they
+ * are all worked out here once. A frame then costs a zone lookup and a
+ * few multiplies and floors.
+ *
+ * The results, including the half-zone checks against the reference, are
+ * identical to {@link CPR#tryDecodeCPRrelative}. Instances are immutable
+ * and thread-safe.
+ */
+public final class CPRSiteDecoder {
+
+    private static final int ZONES = 60;     // longitude tables, indexed by surface * ZONES + zones
+
+    private final CPR cpr = CPR.shared();
+    private final double reflat;
+    private final double reflon;
+
+    // by mode: surface * 2 + odd
+    private final double[] dlat = new double[4];
+    private final double[] halfDlat = new double[4];
+    private final double[] latIndex = new double[4];
+    private final double[] latOffset = new double[4];
+
+    private final double[] dlon = new double[2 * ZONES];
+    private final double[] halfDlon = new double[2 * ZONES];
+    private final double[] lonIndex = new double[2 * ZONES];
+    private final double[] lonOffset = new double[2 * ZONES];
+
+    /**
+     * @param reflat the reference latitude
+     * @param reflon the reference longitude
+     */
+    public CPRSiteDecoder(double reflat, double reflon) {
+        this.reflat = reflat;
+        this.reflon = reflon;
+
+        for (int mode = 0; mode < 4; mode++) {
+            double d = (((mode & 2) != 0) ? 90.0 : 360.0) / (((mode & 1) != 0) ? 59.0 : 60.0);
+
+            dlat[mode] = d;
+            halfDlat[mode] = d / 2.0;
+            latIndex[mode] = Math.floor(reflat / d);
+            latOffset[mode] = 0.5 + CPR.cprModDouble(reflat, d) / d;
+        }
+
+        for (int z = 0; z < 2 * ZONES; z++) {
+            int n = Math.max(z % ZONES, 1);
+            double d = ((z >= ZONES) ? 90.0 : 360.0) / n;
+
+            dlon[z] = d;
+            halfDlon[z] = d / 2.0;
+            lonIndex[z] = Math.floor(reflon / d);
+            lonOffset[z] = 0.5 + CPR.cprModDouble(reflon, d) / d;
+        }
+    }
+
+    public double getLat() {
+        return reflat;
+    }
+
+    public double getLon() {
+        return reflon;
+    }
+
+    /**
+     * Relative decode against the site
+     *
+     * @param cprlat the raw CPR latitude
+     * @param cprlon the raw CPR longitude
+     * @param fflag true for an odd frame
+     * @param surface true for a surface position frame
+     * @param result receives the latitude at offset, longitude at offset + 1
+     * @param offset the index of the latitude in result
+     * @return {@link CPRStatus#OK} or the reason the frame was rejected
+     */
+    public int decode(int cprlat, int cprlon, boolean fflag, boolean surface, double[] result, int offset) {
+        int mode = ((surface == true) ? 2 : 0) + ((fflag == true) ? 1 : 0);
+        double fractional_lat = cprlat / 131072.0;
+        double fractional_lon = cprlon / 131072.0;
+        double AirDlat = dlat[mode];
+        double rlon, rlat;
+        int j, m, z;
+
+        j = (int) (latIndex[mode] + CPRMath.floor(latOffset[mode] - fractional_lat));
+
+        rlat = AirDlat * (j + fractional_lat);
+
+        if (rlat >= 270.0) {
+            rlat -= 360.0;
+        }
+
+        if ((rlat < -90.0) || (rlat > 90.0)) {
+            return CPRStatus.RELATIVE_LATITUDE_ERROR;
+        }
+
+        if (Math.abs(rlat - reflat) > halfDlat[mode]) {
+            return CPRStatus.RELATIVE_LATITUDE_ERROR;
+        }
+
+        z = cpr.cprNLFunction(rlat) - ((fflag == true) ? 1 : 0);
+        z = ((z < 1) ? 1 : z) + ((surface == true) ? ZONES : 0);
+
+        m = (int) (lonIndex[z] + CPRMath.floor(lonOffset[z] - fractional_lon));
+
+        rlon = dlon[z] * (m + fractional_lon);
+
+        if (rlon > 180.0) {
+            rlon -= 360.0;
+        }
+
+        if (Math.abs(rlon - reflon) > halfDlon[z]) {
+            return CPRStatus.RELATIVE_LONGITUDE_ERROR;
+        }
+
+        result[offset] = rlat;
+        result[offset + 1] = rlon;
+        return CPRStatus.OK;
+    }
+
+    /**
+     * Relative decode of a batch of frames against the site, as
+     * {@link CPR#decodeCPRrelativeBatch} with the site as every reference
+     *
+     * @return the number of frames decoded
+     */
+    public int decodeBatch(int[] cprlat, int[] cprlon, boolean[] fflag, boolean[] surface,
+            double[] lat, double[] lon, byte[] status, int offset, int count) {
+        double[] pos = new double[2];
+        int good = 0;
+
+        for (int i = offset, end = offset + count; i < end; i++) {
+            int res = decode(cprlat[i], cprlon[i], fflag[i], surface[i], pos, 0);
+
+            status[i] = (byte) res;
+
+            if (res == CPRStatus.OK) {
+                lat[i] = pos[0];
+                lon[i] = pos[1];
+                good++;
+            } else {
+                lat[i] = Double.NaN;
+                lon[i] = Double.NaN;
+            }
+        }
+
+        return good;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+/**
+ * Outcome codes returned by the non-throwing CPR decode methods, the
+ * trackers and {@link CPRPlausibilityFilter}
+ */
+public final class CPRStatus {
+
+    public static final int OK = 0;
+    public static final int BAD_AIRBORNE_LATITUDE = 1;
+    public static final int AIRBORNE_CROSSED_ZONE = 2;
+    public static final int BAD_SURFACE_LATITUDE = 3;
+    public static final int SURFACE_CROSSED_ZONE = 4;
+    public static final int RELATIVE_LATITUDE_ERROR = 5;
+    public static final int RELATIVE_LONGITUDE_ERROR = 6;
+    public static final int NO_PAIR = 7;
+    public static final int NO_REFERENCE = 8;
+    public static final int TOO_FAST = 9;
+    public static final int OUT_OF_RANGE = 10;
+
+    private static final String[] MESSAGES = {
+        "ok",
+        "bad airborne latitude",
+        "airborne positions crossed a latitude zone",
+        "bad surface latitude",
+        "surface positions crossed a latitude zone",
+        "relative latitude error",
+        "relative longitude error",
+        "no recent even/odd pair",
+        "no surface reference position",
+        "position implies an impossible speed",
+        "position beyond the receiver range"
+    };
+
+    private static final String[] NAMES = {
+        "OK",
+        "BAD_AIRBORNE_LATITUDE",
+        "AIRBORNE_CROSSED_ZONE",
+        "BAD_SURFACE_LATITUDE",
+        "SURFACE_CROSSED_ZONE",
+        "RELATIVE_LATITUDE_ERROR",
+        "RELATIVE_LONGITUDE_ERROR",
+        "NO_PAIR",
+        "NO_REFERENCE",
+        "TOO_FAST",
+        "OUT_OF_RANGE"
+    };
+
+    private CPRStatus() {
+    }
+
+    /**
+     * The text used for a status code by {@link CPRException}
+     *
+     * @param status a status code
+     * @return the message
+     */
+    public static String message(int status) {
+        if (status < 0 || status >= MESSAGES.length) {
+            return "unknown status " + status;
+        }
+
+        return MESSAGES[status];
+    }
+
+    /**
+     * The name of the constant for a status code, as used by
+     * {@link CPRMetrics}
+     *
+     * @param status a status code
+     * @return the name
+     */
+    public static String name(int status) {
+        if (status < 0 || status >= NAMES.length) {
+            return "UNKNOWN_" + status;
+        }
+
+        return NAMES[status];
+    }
+}
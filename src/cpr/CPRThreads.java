@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads that spend their time blocked on a socket, one per connection.
+ *
+ * These are daemon platform threads. Java 21 and later load the version in
+ * src21, which makes virtual threads instead.
+ */
+final class CPRThreads {
+
+    private CPRThreads() {
+    }
+
+    static boolean isVirtual() {
+        return false;
+    }
+
+    /**
+     * @param prefix the thread names, followed by a count from 0
+     */
+    static ThreadFactory factory(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+
+        return r -> {
+            Thread t = new Thread(r, prefix + count.getAndIncrement());
+
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Decoded positions packed off-heap, for keeping hours of tracks.
+ *
+ * Points go into direct buffers (segments) of a fixed number of points,
+ * 15 bytes each: the time as a 24 bit millisecond offset from the
+ * segment's base time, the tracker key with the surface flag in the top
+ * bit, and the latitude and longitude in fixed point (see
+ * {@link CPRFixedDecoder#SCALE}). A segment is closed when it is full or
+ * a time falls outside its 4.6 hour range. Segments are dropped oldest
+ * first, past a set number or by {@link #trim}, and their buffers reused.
+ *
+ * Queries select by time window, and optionally by aircraft. Each segment
+ * knows its time range, so segments outside a window are skipped, and a
+ * segment whose points arrived in time order is binary searched.
+ *
+ * Positions can be added one at a time, from a decode done here with the
+ * fixed point decoder, or in chunks as a {@link CPRFileDecoder.Sink}. All
+ * methods are synchronized.
+ */
+public final class CPRTrackStore implements CPRFileDecoder.Sink {
+
+    /**
+     * Bytes stored per point
+     */
+    public static final int RECORD = 15;
+
+    /**
+     * Receives the points found by a query
+     */
+    public interface Visitor {
+
+        /**
+         * @param key the tracker key (24 bit address, and
+         * {@link CPRFrame#NON_ICAO})
+         * @param time the time, in milliseconds
+         * @param lat the latitude, fixed point
+         * @param lon the longitude, fixed point
+         * @param surface true for a surface position
+         */
+        void point(int key, long time, int lat, int lon, boolean surface);
+    }
+
+    private static final int RANGE = 1 << 24;           // time offsets, milliseconds
+    private static final int SLACK = 1 << 22;           // room for late points before the first
+    private static final int SURFACE = 1 << 31;
+
+    private static final class Segment {
+
+        final ByteBuffer buf;
+        long base;
+        long min;
+        long max;
+        int count;
+        boolean sorted;
+
+        Segment(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        void reset(long time) {
+            base = time - SLACK;
+            min = Long.MAX_VALUE;
+            max = Long.MIN_VALUE;
+            count = 0;
+            sorted = true;
+        }
+    }
+
+    private final int segmentPoints;
+    private final int maxSegments;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final List<Segment> spare = new ArrayList<>();
+    private final CPRFixedDecoder decoder = CPRFixedDecoder.shared(false);
+    private final int[] pos = new int[2];
+    private Segment tail;
+    private long size;
+
+    /**
+     * @param segmentPoints the points per segment, at least 16
+     * @param maxSegments the most segments kept; the oldest is dropped to
+     * make room for a new one
+     */
+    public CPRTrackStore(int segmentPoints, int maxSegments) {
+        if (segmentPoints < 16 || segmentPoints > Integer.MAX_VALUE / RECORD) {
+            throw new IllegalArgumentException("segment points " + segmentPoints);
+        }
+
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("segments " + maxSegments);
+        }
+
+        this.segmentPoints = segmentPoints;
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * @return the points held
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return the off-heap bytes allocated, including buffers kept for reuse
+     */
+    public synchronized long memory() {
+        return (long) (segments.size() + spare.size()) * segmentPoints * RECORD;
+    }
+
+    /**
+     * Add a position
+     *
+     * @param key the tracker key (24 bit address, and
+     * {@link CPRFrame#NON_ICAO})
+     * @param time the time, in milliseconds
+     * @param lat the latitude, fixed point
+     * @param lon the longitude, fixed point
+     * @param surface true for a surface position
+     */
+    public synchronized void append(int key, long time, int lat, int lon, boolean surface) {
+        if ((key & ~((CPRFrame.NON_ICAO << 1) - 1)) != 0) {
+            throw new IllegalArgumentException("key " + key);
+        }
+
+        Segment s = tail;
+
+        if (s == null || s.count == segmentPoints || time < s.base || time - s.base >= RANGE) {
+            s = open(time);
+        }
+
+        int at = s.count * RECORD;
+
+        // the time's low 3 bytes, then the key over its top byte
+        s.buf.putInt(at, (int) (time - s.base));
+        s.buf.putInt(at + 3, (surface == true) ? key | SURFACE : key);
+        s.buf.putInt(at + 7, lat);
+        s.buf.putInt(at + 11, lon);
+
+        if (time < s.max) {
+            s.sorted = false;
+        }
+
+        s.min = Math.min(s.min, time);
+        s.max = Math.max(s.max, time);
+        s.count++;
+        size++;
+    }
+
+    /**
+     * Add a position in degrees
+     *
+     * @param key the tracker key
+     * @param time the time, in milliseconds
+     * @param lat the latitude
+     * @param lon the longitude
+     * @param surface true for a surface position
+     */
+    public void append(int key, long time, double lat, double lon, boolean surface) {
+        append(key, time, CPRFixedDecoder.fromDegrees(lat), CPRFixedDecoder.fromDegrees(lon), surface);
+    }
+
+    /**
+     * Add every position of a chunk
+     */
+    @Override
+    public synchronized void positions(CPRPositions chunk) {
+        for (int i = 0; i < chunk.size(); i++) {
+            append(chunk.getAddresses()[i], chunk.getTimes()[i], chunk.getLats()[i], chunk.getLons()[i],
+                    chunk.getSurface()[i]);
+        }
+    }
+
+    /**
+     * Decode an airborne pair with {@link CPRFixedDecoder#decodeAirborne},
+     * adding the position if it decodes
+     *
+     * @param key the tracker key
+     * @param time the time of the later frame
+     * @return {@link CPRStatus#OK}, or the reason the decode failed
+     */
+    public synchronized int decodeAirborne(int key, long time, int even_cprlat, int even_cprlon,
+            int odd_cprlat, int odd_cprlon, boolean fflag) {
+        int status = decoder.decodeAirborne(even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag, pos, 0);
+
+        if (status == CPRStatus.OK) {
+            append(key, time, pos[0], pos[1], false);
+        }
+
+        return status;
+    }
+
+    /**
+     * Decode a frame with {@link CPRFixedDecoder#decodeRelative}, adding
+     * the position if it decodes
+     *
+     * @param key the tracker key
+     * @param time the time of the frame
+     * @param reflat the reference latitude, fixed point
+     * @param reflon the reference longitude, fixed point
+     * @return {@link CPRStatus#OK}, or the reason the decode failed
+     */
+    public synchronized int decodeRelative(int key, long time, int reflat, int reflon, int cprlat, int cprlon,
+            boolean fflag, boolean surface) {
+        int status = decoder.decodeRelative(reflat, reflon, cprlat, cprlon, fflag, surface, pos, 0);
+
+        if (status == CPRStatus.OK) {
+            append(key, time, pos[0], pos[1], surface);
+        }
+
+        return status;
+    }
+
+    private Segment open(long time) {
+        Segment s;
+
+        if (segments.size() == maxSegments) {
+            s = segments.removeFirst();
+            size -= s.count;
+        } else if (!spare.isEmpty()) {
+            s = spare.remove(spare.size() - 1);
+        } else {
+            s = new Segment(ByteBuffer.allocateDirect(segmentPoints * RECORD).order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        s.reset(time);
+        segments.addLast(s);
+        tail = s;
+        return s;
+    }
+
+    /**
+     * Drop the segments holding only points before a time. Their buffers
+     * are kept for reuse.
+     *
+     * @param before the oldest time to keep
+     * @return the points dropped
+     */
+    public synchronized long trim(long before) {
+        long dropped = 0L;
+
+        for (Iterator<Segment> it = segments.iterator(); it.hasNext();) {
+            Segment s = it.next();
+
+            if (s.max < before && s != tail) {
+                it.remove();
+                spare.add(s);
+                dropped += s.count;
+            }
+        }
+
+        size -= dropped;
+        return dropped;
+    }
+
+    /**
+     * Find the points in a time window
+     *
+     * @param from the first time
+     * @param to the time after the last
+     * @param visitor receives the points, in the order they were added
+     * @return the number of points found
+     */
+    public int query(long from, long to, Visitor visitor) {
+        return query(-1, from, to, visitor);
+    }
+
+    /**
+     * Find the points of one aircraft in a time window
+     *
+     * @param key the tracker key, or -1 for every aircraft
+     * @param from the first time
+     * @param to the time after the last
+     * @param visitor receives the points, in the order they were added
+     * @return the number of points found
+     */
+    public synchronized int query(int key, long from, long to, Visitor visitor) {
+        int found = 0;
+
+        for (Segment s : segments) {
+            if (s.count == 0 || s.max < from || s.min >= to) {
+                continue;
+            }
+
+            ByteBuffer buf = s.buf;
+            // the window in offsets, without overflow for open ends
+            long lo = (from <= s.base) ? 0L : from - s.base;
+            long hi = (to >= s.base + RANGE) ? RANGE : to - s.base;
+            int i = 0;
+
+            if (s.sorted) {
+                // the first point at or after from
+                int n = s.count;
+
+                while (i < n) {
+                    int mid = (i + n) >>> 1;
+
+                    if ((buf.getInt(mid * RECORD) & (RANGE - 1)) < lo) {
+                        i = mid + 1;
+                    } else {
+                        n = mid;
+                    }
+                }
+            }
+
+            for (; i < s.count; i++) {
+                int at = i * RECORD;
+                int offset = buf.getInt(at) & (RANGE - 1);
+
+                if (offset >= hi) {
+                    if (s.sorted) {
+                        break;
+                    }
+
+                    continue;
+                }
+
+                int k = buf.getInt(at + 3);
+
+                if (offset < lo || (key != -1 && (k & ~SURFACE) != key)) {
+                    continue;
+                }
+
+                visitor.point(k & ~SURFACE, s.base + offset, buf.getInt(at + 7), buf.getInt(at + 11), k < 0);
+                found++;
+            }
+        }
+
+        return found;
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+import java.util.Arrays;
+
+/**
+ * Per-aircraft CPR state, keyed by 24 bit ICAO address.
+ *
+ * Each aircraft keeps its last even and odd frame, and its last decoded
+ * position. When the aircraft has a recent position, a new frame is
+ * decoded relative to it. Otherwise, or if that fails, a global decode is
+ * tried on the even/odd pair, if both frames arrived within the pairing
+ * window. Surface global decodes use the last position, or the receiver
+ * location, to pick the quadrant. A {@link CPRPlausibilityFilter} may
+ * then reject the position, which is not kept.
+ *
+ * The state lives in parallel primitive arrays, an open addressing table
+ * with linear probing. The table never grows: when it holds maxAircraft,
+ * aircraft not heard from in the expiry time are dropped, and failing
+ * that the one heard from longest ago. The slots are also linked in the
+ * order aircraft were last heard, so while frames arrive about in time
+ * order this costs O(1) per aircraft dropped, not a scan of the table.
+ *
+ * Times are in milliseconds, on any clock the caller likes. Any int but
+ * -1 may be used as an address, so flagged non-ICAO addresses work too.
+ *
+ * This class is not thread-safe.
+ */
+public final class CPRTracker {
+
+    private static final int EMPTY = -1;
+
+    private static final byte HAVE_EVEN = 1;
+    private static final byte HAVE_ODD = 2;
+    private static final byte EVEN_SURFACE = 4;
+    private static final byte ODD_SURFACE = 8;
+    private static final byte HAVE_POSITION = 16;
+
+    private final CPR cpr = CPR.shared();
+    private final int maxAircraft;
+    private final int mask;
+    private final int[] icao;
+    private final byte[] flags;
+    private final int[] even_cprlat;
+    private final int[] even_cprlon;
+    private final int[] odd_cprlat;
+    private final int[] odd_cprlon;
+    private final long[] even_time;
+    private final long[] odd_time;
+    private final double[] lat;
+    private final double[] lon;
+    private final long[] position_time;
+    private final long[] seen;
+    private final int[] older;          // slots by seen, oldest first
+    private final int[] newer;
+    private int oldest = EMPTY;
+    private int newest = EMPTY;
+    private final double[] pos = new double[2];
+    private int count;
+
+    private long airborneWindow = 10000L;
+    private long surfaceWindow = 50000L;
+    private long referenceAge = 120000L;
+    private long expiryAge = 300000L;
+    private boolean haveReceiver;
+    private double receiverLat;
+    private double receiverLon;
+    private CPRPlausibilityFilter filter;
+
+    /**
+     * @param maxAircraft the most aircraft held at once
+     */
+    public CPRTracker(int maxAircraft) {
+        if (maxAircraft < 1 || maxAircraft > (1 << 29)) {
+            throw new IllegalArgumentException("maxAircraft " + maxAircraft);
+        }
+
+        int size = Integer.highestOneBit(maxAircraft * 2 - 1) << 1;   // load factor at most 1/2
+
+        this.maxAircraft = maxAircraft;
+        mask = size - 1;
+        icao = new int[size];
+        flags = new byte[size];
+        even_cprlat = new int[size];
+        even_cprlon = new int[size];
+        odd_cprlat = new int[size];
+        odd_cprlon = new int[size];
+        even_time = new long[size];
+        odd_time = new long[size];
+        lat = new double[size];
+        lon = new double[size];
+        position_time = new long[size];
+        seen = new long[size];
+        older = new int[size];
+        newer = new int[size];
+
+        Arrays.fill(icao, EMPTY);
+    }
+
+    /**
+     * Longest time between an even and odd airborne frame for a global
+     * decode, default 10 seconds
+     */
+    public void setAirborneWindow(long ms) {
+        airborneWindow = ms;
+    }
+
+    /**
+     * Longest time between an even and odd surface frame for a global
+     * decode, default 50 seconds
+     */
+    public void setSurfaceWindow(long ms) {
+        surfaceWindow = ms;
+    }
+
+    /**
+     * Oldest position used as a relative decode reference, default 2
+     * minutes
+     */
+    public void setReferenceAge(long ms) {
+        referenceAge = ms;
+    }
+
+    /**
+     * Aircraft not heard from for this long may be dropped when the table
+     * is full, default 5 minutes
+     */
+    public void setExpiryAge(long ms) {
+        expiryAge = ms;
+    }
+
+    /**
+     * The receiver location, used to place surface positions for aircraft
+     * with no position yet
+     */
+    public void setReceiver(double reflat, double reflon) {
+        receiverLat = reflat;
+        receiverLon = reflon;
+        haveReceiver = true;
+    }
+
+    /**
+     * Check decoded positions against the aircraft's last position, if it
+     * is no older than the reference age, or on their own otherwise
+     *
+     * @param filter the filter, or null for none
+     */
+    public void setFilter(CPRPlausibilityFilter filter) {
+        this.filter = filter;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+
+        return h ^ (h >>> 16);
+    }
+
+    /*
+     * The slot holding key, or EMPTY
+     */
+    private int find(int key) {
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            if (icao[i] == key) {
+                return i;
+            } else if (icao[i] == EMPTY) {
+                return EMPTY;
+            }
+        }
+    }
+
+    /*
+     * The slot holding key, making room for it if it is new
+     */
+    private int insert(int key, long time) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("address " + key);
+        }
+
+        int i = find(key);
+
+        if (i != EMPTY) {
+            return i;
+        }
+
+        if (count >= maxAircraft) {
+            evict(time);
+        }
+
+        for (i = hash(key) & mask; icao[i] != EMPTY; i = (i + 1) & mask) {
+        }
+
+        icao[i] = key;
+        flags[i] = 0;
+        seen[i] = time;
+        place(i);
+        count++;
+
+        return i;
+    }
+
+    /*
+     * Make room for one more aircraft
+     */
+    private void evict(long now) {
+        expire(now - expiryAge);
+
+        if (count >= maxAircraft) {
+            delete(oldest);
+        }
+    }
+
+    /*
+     * Link a slot into the seen order, searching back from the newest end
+     */
+    private void place(int i) {
+        int p = newest;
+
+        while (p != EMPTY && seen[p] > seen[i]) {
+            p = older[p];
+        }
+
+        older[i] = p;
+
+        if (p != EMPTY) {
+            newer[i] = newer[p];
+            newer[p] = i;
+        } else {
+            newer[i] = oldest;
+            oldest = i;
+        }
+
+        if (newer[i] != EMPTY) {
+            older[newer[i]] = i;
+        } else {
+            newest = i;
+        }
+    }
+
+    private void unplace(int i) {
+        if (older[i] != EMPTY) {
+            newer[older[i]] = newer[i];
+        } else {
+            oldest = newer[i];
+        }
+
+        if (newer[i] != EMPTY) {
+            older[newer[i]] = older[i];
+        } else {
+            newest = older[i];
+        }
+    }
+
+    /*
+     * Empty a slot, shifting back any later entries of the same probe run
+     */
+    private void delete(int i) {
+        int j = i;
+
+        count--;
+        unplace(i);
+
+        while (true) {
+            j = (j + 1) & mask;
+
+            if (icao[j] == EMPTY) {
+                break;
+            }
+
+            int home = hash(icao[j]) & mask;
+
+            // move j back to i unless its home lies cyclically in (i, j]
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                icao[i] = icao[j];
+                flags[i] = flags[j];
+                even_cprlat[i] = even_cprlat[j];
+                even_cprlon[i] = even_cprlon[j];
+                odd_cprlat[i] = odd_cprlat[j];
+                odd_cprlon[i] = odd_cprlon[j];
+                even_time[i] = even_time[j];
+                odd_time[i] = odd_time[j];
+                lat[i] = lat[j];
+                lon[i] = lon[j];
+                position_time[i] = position_time[j];
+                seen[i] = seen[j];
+
+                // the entry keeps its place in the seen order
+                older[i] = older[j];
+                newer[i] = newer[j];
+
+                if (older[i] != EMPTY) {
+                    newer[older[i]] = i;
+                } else {
+                    oldest = i;
+                }
+
+                if (newer[i] != EMPTY) {
+                    older[newer[i]] = i;
+                } else {
+                    newest = i;
+                }
+
+                i = j;
+            }
+        }
+
+        icao[i] = EMPTY;
+    }
+
+    /**
+     * Forget an aircraft
+     *
+     * @param key the ICAO address
+     * @return true if it was held
+     */
+    public boolean remove(int key) {
+        int i = find(key);
+
+        if (i == EMPTY) {
+            return false;
+        }
+
+        delete(i);
+        return true;
+    }
+
+    /**
+     * Forget every aircraft last heard before a given time
+     *
+     * @param before the cut off time
+     * @return the number of aircraft dropped
+     */
+    public int expire(long before) {
+        int dropped = 0;
+
+        while (oldest != EMPTY && seen[oldest] < before) {
+            delete(oldest);
+            dropped++;
+        }
+
+        return dropped;
+    }
+
+    /**
+     * The last decoded position of an aircraft
+     *
+     * @param key the ICAO address
+     * @param result receives the latitude at offset, longitude at offset + 1
+     * @param offset the index of the latitude in result
+     * @return false if there is no position for this aircraft
+     */
+    public boolean getPosition(int key, double[] result, int offset) {
+        int i = find(key);
+
+        if (i == EMPTY || (flags[i] & HAVE_POSITION) == 0) {
+            return false;
+        }
+
+        result[offset] = lat[i];
+        result[offset + 1] = lon[i];
+        return true;
+    }
+
+    /**
+     * Add a frame for an aircraft, and decode its position if possible
+     *
+     * @param key the ICAO address
+     * @param time the time the frame was received
+     * @param cprlat the raw CPR latitude
+     * @param cprlon the raw CPR longitude
+     * @param fflag true for an odd frame
+     * @param surface true for a surface position frame
+     * @param result receives the latitude at offset, longitude at offset + 1
+     * @param offset the index of the latitude in result
+     * @return {@link CPRStatus#OK}, {@link CPRStatus#NO_PAIR} if there is
+     * nothing to decode against yet, or the reason the decode failed or
+     * the filter rejected the position
+     */
+    public int update(int key, long time, int cprlat, int cprlon, boolean fflag, boolean surface,
+            double[] result, int offset) {
+        int i = insert(key, time);
+        int status = CPRStatus.NO_PAIR;
+        byte f = flags[i];
+
+        if (time > seen[i]) {
+            seen[i] = time;
+
+            if (i != newest) {
+                unplace(i);
+                place(i);
+            }
+        }
+
+        if (fflag == true) {
+            odd_cprlat[i] = cprlat;
+            odd_cprlon[i] = cprlon;
+            odd_time[i] = time;
+            f = (byte) ((f | HAVE_ODD) & ~ODD_SURFACE | (surface ? ODD_SURFACE : 0));
+        } else {
+            even_cprlat[i] = cprlat;
+            even_cprlon[i] = cprlon;
+            even_time[i] = time;
+            f = (byte) ((f | HAVE_EVEN) & ~EVEN_SURFACE | (surface ? EVEN_SURFACE : 0));
+        }
+
+        flags[i] = f;
+
+        boolean havePosition = (f & HAVE_POSITION) != 0;
+
+        // Cheap relative decode against a recent position
+        if (havePosition && Math.abs(time - position_time[i]) <= referenceAge) {
+            status = cpr.tryDecodeCPRrelative(lat[i], lon[i], cprlat, cprlon, fflag, surface, pos, 0);
+        }
+
+        // Global decode of a fresh pair, both airborne or both surface
+        if (status != CPRStatus.OK && (f & (HAVE_EVEN | HAVE_ODD)) == (HAVE_EVEN | HAVE_ODD)
+                && ((f & EVEN_SURFACE) != 0) == surface && ((f & ODD_SURFACE) != 0) == surface
+                && Math.abs(even_time[i] - odd_time[i]) <= (surface ? surfaceWindow : airborneWindow)) {
+            if (surface == false) {
+                status = cpr.tryDecodeCPRairborne(even_cprlat[i], even_cprlon[i],
+                        odd_cprlat[i], odd_cprlon[i], fflag, pos, 0);
+            } else if (havePosition) {
+                status = cpr.tryDecodeCPRsurface(lat[i], lon[i], even_cprlat[i], even_cprlon[i],
+                        odd_cprlat[i], odd_cprlon[i], fflag, pos, 0);
+            } else if (haveReceiver) {
+                status = cpr.tryDecodeCPRsurface(receiverLat, receiverLon, even_cprlat[i], even_cprlon[i],
+                        odd_cprlat[i], odd_cprlon[i], fflag, pos, 0);
+            } else if (status == CPRStatus.NO_PAIR) {
+                status = CPRStatus.NO_REFERENCE;
+            }
+        }
+
+        // Drop positions the aircraft could not have reached
+        if (status == CPRStatus.OK && filter != null) {
+            if (havePosition && Math.abs(time - position_time[i]) <= referenceAge) {
+                status = filter.check(lat[i], lon[i], position_time[i], pos[0], pos[1], time, surface);
+            } else {
+                status = filter.check(pos[0], pos[1]);
+            }
+        }
+
+        if (status == CPRStatus.OK) {
+            lat[i] = pos[0];
+            lon[i] = pos[1];
+            position_time[i] = time;
+            flags[i] = (byte) (f | HAVE_POSITION);
+            result[offset] = pos[0];
+            result[offset + 1] = pos[1];
+        }
+
+        return status;
+    }
+}
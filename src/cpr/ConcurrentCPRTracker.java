@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+/**
+ * Thread-safe version of {@link CPRTracker}.
+ *
+ * Aircraft are spread over a number of stripes by a hash of their address.
+ * Each stripe is an ordinary CPRTracker with its own lock, so threads only
+ * wait for each other when they update aircraft in the same stripe. All
+ * frames for one aircraft go to one stripe, and are applied in the order
+ * their threads take its lock. The aircraft limit is shared between the
+ * stripes, each with a small margin as the hash will not split aircraft
+ * exactly evenly, so the table may hold a few more than the limit.
+ *
+ * The settings and methods are those of CPRTracker.
+ */
+public final class ConcurrentCPRTracker {
+
+    private final CPRTracker[] stripes;
+    private final int shift;
+
+    /**
+     * @param maxAircraft the most aircraft held at once
+     */
+    public ConcurrentCPRTracker(int maxAircraft) {
+        this(maxAircraft, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param maxAircraft the most aircraft held at once
+     * @param concurrency the number of stripes, rounded up to a power of 2
+     */
+    public ConcurrentCPRTracker(int maxAircraft, int concurrency) {
+        if (concurrency < 1 || concurrency > (1 << 16)) {
+            throw new IllegalArgumentException("concurrency " + concurrency);
+        }
+
+        int n = Integer.highestOneBit(concurrency * 2 - 1);
+
+        stripes = new CPRTracker[n];
+        shift = 32 - Integer.numberOfTrailingZeros(n);
+
+        // each stripe gets its share, plus about four standard deviations for uneven hashing
+        int share = (maxAircraft + n - 1) / n;
+        int margin = (n == 1) ? 0 : 8 + (int) (4.0 * Math.sqrt(share));
+
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new CPRTracker(share + margin);
+        }
+    }
+
+    /*
+     * Pick a stripe from the top bits of a hash unrelated to the one each
+     * CPRTracker uses for its slots.
+     */
+    private CPRTracker stripe(int key) {
+        if (stripes.length == 1) {
+            return stripes[0];
+        }
+
+        return stripes[CPRFrame.spread(key) >>> shift];
+    }
+
+    public int getConcurrency() {
+        return stripes.length;
+    }
+
+    public void setAirborneWindow(long ms) {
+        for (CPRTracker t : stripes) {
+            synchronized (t) {
+                t.setAirborneWindow(ms);
+            }
+        }
+    }
+
+    public void setSurfaceWindow(long ms) {
+        for (CPRTracker t : stripes) {
+            synchronized (t) {
+                t.setSurfaceWindow(ms);
+            }
+        }
+    }
+
+    public void setReferenceAge(long ms) {
+        for (CPRTracker t : stripes) {
+            synchronized (t) {
+                t.setReferenceAge(ms);
+            }
+        }
+    }
+
+    public void setExpiryAge(long ms) {
+        for (CPRTracker t : stripes) {
+            synchronized (t) {
+                t.setExpiryAge(ms);
+            }
+        }
+    }
+
+    public void setReceiver(double reflat, double reflon) {
+        for (CPRTracker t : stripes) {
+            synchronized (t) {
+                t.setReceiver(reflat, reflon);
+            }
+        }
+    }
+
+    public void setFilter(CPRPlausibilityFilter filter) {
+        for (CPRTracker t : stripes) {
+            synchronized (t) {
+                t.setFilter(filter);
+            }
+        }
+    }
+
+    /**
+     * The number of aircraft held. Stripes are counted one at a time, so
+     * this may be out of date when there are concurrent updates.
+     */
+    public int size() {
+        int n = 0;
+
+        for (CPRTracker t : stripes) {
+            synchronized (t) {
+                n += t.size();
+            }
+        }
+
+        return n;
+    }
+
+    public boolean remove(int key) {
+        CPRTracker t = stripe(key);
+
+        synchronized (t) {
+            return t.remove(key);
+        }
+    }
+
+    public int expire(long before) {
+        int n = 0;
+
+        for (CPRTracker t : stripes) {
+            synchronized (t) {
+                n += t.expire(before);
+            }
+        }
+
+        return n;
+    }
+
+    public boolean getPosition(int key, double[] result, int offset) {
+        CPRTracker t = stripe(key);
+
+        synchronized (t) {
+            return t.getPosition(key, result, offset);
+        }
+    }
+
+    public int update(int key, long time, int cprlat, int cprlon, boolean fflag, boolean surface,
+            double[] result, int offset) {
+        CPRTracker t = stripe(key);
+
+        synchronized (t) {
+            return t.update(key, time, cprlat, cprlon, fflag, surface, result, offset);
+        }
+    }
+}
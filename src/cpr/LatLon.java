@@ -26,4 +26,17 @@ public class LatLon {
     public double getLon() {
         return lon;
     }
+
+    public void setLat(double latval) {
+        lat = latval;
+    }
+
+    public void setLon(double lonval) {
+        lon = lonval;
+    }
+
+    public void setLatLon(double latval, double lonval) {
+        lat = latval;
+        lon = lonval;
+    }
 }
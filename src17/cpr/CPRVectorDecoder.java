@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+ * Batch decoder using the JDK Vector API (Java 17 and later, with
+ * --add-modules jdk.incubator.vector).
+ *
+ * The airborne and relative decodes repeat the scalar arithmetic lane for
+ * lane, in the same order, so the results are identical. There is no
+ * vector floor() or IEEEremainder(), so:
+ *
+ *  floor(x) is rint(x) less one where that rounded up, and rint(x) is
+ *  (x + 1.5 * 2^52) - 1.5 * 2^52, exact for |x| < 2^51.
+ *
+ *  IEEEremainder(a, b) is a - rint(a / b) * b, using fma() so the product
+ *  is not rounded. That is exact unless a / b rounds across a half, which
+ *  can only happen when the remainder is within a hair of b / 2. Those
+ *  lanes are flagged and redone by the scalar code.
+ *
+ * Lanes with inputs outside the ranges the above relies on (CPR values
+ * outside 17 bits, huge or non-finite references) also go to the scalar
+ * code, as do the tail elements and all surface decodes. The scalar code
+ * counts its own decodes in the CPR's metrics; the vector lanes are
+ * counted a block at a time.
+ */
+final class CPRVectorDecoder extends CPRBatchDecoder {
+
+    private static final VectorSpecies<Double> DS = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> IS = VectorSpecies.of(int.class, VectorShape.forBitSize(DS.length() * 32));
+
+    private static final double MAGIC = 6755399441055744.0;    // 1.5 * 2^52
+    private static final double CPRSCALE = 131072.0;           // 2^17
+    private static final double REFLIMIT = 1000.0;
+    private static final double TIE = 1e-9;
+
+    CPRVectorDecoder(CPR cpr) {
+        super(cpr);
+
+        if (DS.length() < 2) {
+            throw new UnsupportedOperationException("no vector shape");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "vector" + DS.length();
+    }
+
+    private static DoubleVector floor(DoubleVector x) {
+        DoubleVector r = x.add(MAGIC).sub(MAGIC);
+
+        return r.sub(1.0, r.compare(VectorOperators.GT, x));
+    }
+
+    private static DoubleVector toDouble(int[] a, int i) {
+        return (DoubleVector) IntVector.fromArray(IS, a, i).convertShape(VectorOperators.I2D, DS, 0);
+    }
+
+    /*
+     * Lanes holding a 17 bit CPR value
+     */
+    private static VectorMask<Double> cprRange(DoubleVector v) {
+        return v.compare(VectorOperators.GE, 0.0).and(v.compare(VectorOperators.LT, CPRSCALE));
+    }
+
+    /*
+     * cprNLFunction() per lane, using the same bucket table
+     */
+    private static DoubleVector nl(DoubleVector lat, int[] scratch) {
+        DoubleVector abs = lat.abs();
+        DoubleVector bucket = abs.mul(CPR.NLSCALE).blend(0.0, abs.compare(VectorOperators.LT, 87.0).not());
+
+        ((IntVector) bucket.convertShape(VectorOperators.D2I, IS, 0)).intoArray(scratch, 0);
+
+        IntVector index = IntVector.fromArray(IS, CPR.NLINDEX, 0, scratch, 0);
+
+        index.intoArray(scratch, 0);
+
+        DoubleVector bound = DoubleVector.fromArray(DS, CPR.NL, 0, scratch, 0);
+        DoubleVector zone = ((DoubleVector) index.convertShape(VectorOperators.I2D, DS, 0)).add(1.0);
+
+        return zone.sub(1.0, abs.compare(VectorOperators.GT, bound))
+                .blend(59.0, abs.compare(VectorOperators.EQ, 0.0))
+                .blend(2.0, abs.compare(VectorOperators.EQ, 87.0))
+                .blend(1.0, abs.compare(VectorOperators.GT, 87.0));
+    }
+
+    /*
+     * cprModDouble() per lane. Lanes where the remainder is too close to
+     * b / 2 to trust are added to the unsafe mask in slow[0].
+     */
+    private static DoubleVector mod(DoubleVector a, DoubleVector b, VectorMask<Double>[] slow) {
+        DoubleVector n = a.div(b).add(MAGIC).sub(MAGIC);
+        DoubleVector r = n.neg().fma(b, a);
+        DoubleVector tie = r.abs().sub(b.mul(0.5)).abs();
+
+        slow[0] = slow[0].or(tie.compare(VectorOperators.LT, TIE));
+
+        return r.add(b, r.compare(VectorOperators.LT, 0.0));
+    }
+
+    /*
+     * Write a vector of results and status codes, NaN where rejected
+     */
+    private static int store(DoubleVector rlat, DoubleVector rlon, long err1, long err2, int status1, int status2,
+            double[] lat, double[] lon, byte[] status, int i) {
+        long bad = err1 | err2;
+        VectorMask<Double> nan = VectorMask.fromLong(DS, bad);
+        int good = 0;
+
+        rlat.blend(Double.NaN, nan).intoArray(lat, i);
+        rlon.blend(Double.NaN, nan).intoArray(lon, i);
+
+        for (int l = 0; l < DS.length(); l++) {
+            long bit = 1L << l;
+
+            if ((err1 & bit) != 0) {
+                status[i + l] = (byte) status1;
+            } else if ((err2 & bit) != 0) {
+                status[i + l] = (byte) status2;
+            } else {
+                status[i + l] = (byte) CPRStatus.OK;
+                good++;
+            }
+        }
+
+        return good;
+    }
+
+    @Override
+    public int decodeCPRairborne(int[] even_cprlat, int[] even_cprlon,
+            int[] odd_cprlat, int[] odd_cprlon, boolean[] fflag,
+            double[] lat, double[] lon, byte[] status, int offset, int count) {
+        final double AirDlat0 = 360.0 / 60.0;
+        final double AirDlat1 = 360.0 / 59.0;
+        int[] scratch = new int[DS.length()];
+        CPRMetrics metrics = cpr.getMetrics();
+        int end = offset + count;
+        int bound = offset + DS.loopBound(count);
+        int good = 0;
+        int i;
+
+        for (i = offset; i < bound; i += DS.length()) {
+            long start = (metrics != null) ? metrics.start() : CPRMetrics.UNTIMED;
+            DoubleVector lat0 = toDouble(even_cprlat, i);
+            DoubleVector lon0 = toDouble(even_cprlon, i);
+            DoubleVector lat1 = toDouble(odd_cprlat, i);
+            DoubleVector lon1 = toDouble(odd_cprlon, i);
+            VectorMask<Double> odd = VectorMask.fromArray(DS, fflag, i);
+            VectorMask<Double> fast = cprRange(lat0).and(cprRange(lon0)).and(cprRange(lat1)).and(cprRange(lon1));
+
+            // Compute the Latitude Index "j"
+            DoubleVector j = floor(lat0.mul(59.0).sub(lat1.mul(60.0)).div(CPRSCALE).add(0.5));
+            DoubleVector j60 = j.sub(floor(j.div(60.0)).mul(60.0));
+            DoubleVector j59 = j.sub(floor(j.div(59.0)).mul(59.0));
+            DoubleVector rlat0 = j60.add(lat0.div(CPRSCALE)).mul(AirDlat0);
+            DoubleVector rlat1 = j59.add(lat1.div(CPRSCALE)).mul(AirDlat1);
+
+            rlat0 = rlat0.sub(360.0, rlat0.compare(VectorOperators.GE, 270.0));
+            rlat1 = rlat1.sub(360.0, rlat1.compare(VectorOperators.GE, 270.0));
+
+            VectorMask<Double> badlat = rlat0.compare(VectorOperators.LT, -90.0)
+                    .or(rlat0.compare(VectorOperators.GT, 90.0))
+                    .or(rlat1.compare(VectorOperators.LT, -90.0))
+                    .or(rlat1.compare(VectorOperators.GT, 90.0));
+
+            DoubleVector nl0 = nl(rlat0, scratch);
+            DoubleVector nl1 = nl(rlat1, scratch);
+            VectorMask<Double> crossed = nl0.compare(VectorOperators.NE, nl1).andNot(badlat);
+
+            // Compute ni and the Longitude Index "m", from the odd or even packet
+            DoubleVector nl = nl0.blend(nl1, odd);
+            DoubleVector ni = nl.sub(1.0, odd).max(1.0);
+            DoubleVector m = floor(lon0.mul(nl.sub(1.0)).sub(lon1.mul(nl)).div(CPRSCALE).add(0.5));
+            DoubleVector mi = m.sub(floor(m.div(ni)).mul(ni));
+            DoubleVector rlon = DoubleVector.broadcast(DS, 360.0).div(ni).mul(mi.add(lon0.blend(lon1, odd).div(CPRSCALE)));
+            DoubleVector rlat = rlat0.blend(rlat1, odd);
+
+            // Renormalize to -180 .. +180
+            rlon = rlon.sub(floor(rlon.add(180.0).div(360.0)).mul(360.0));
+
+            good += store(rlat, rlon, badlat.toLong(), crossed.toLong(),
+                    CPRStatus.BAD_AIRBORNE_LATITUDE, CPRStatus.AIRBORNE_CROSSED_ZONE,
+                    lat, lon, status, i);
+
+            if (metrics != null) {
+                metrics.record(CPRMetrics.AIRBORNE, status, i, fast.toLong(), start);
+            }
+
+            long slow = fast.not().toLong();
+
+            while (slow != 0L) {
+                int l = Long.numberOfTrailingZeros(slow);
+
+                good -= (status[i + l] == CPRStatus.OK) ? 1 : 0;
+                good += cpr.decodeCPRairborneBatch(even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag,
+                        lat, lon, status, i + l, 1);
+                slow &= slow - 1;
+            }
+        }
+
+        return good + cpr.decodeCPRairborneBatch(even_cprlat, even_cprlon, odd_cprlat, odd_cprlon, fflag,
+                lat, lon, status, i, end - i);
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public int decodeCPRrelative(double[] reflat, double[] reflon,
+            int[] cprlat, int[] cprlon, boolean[] fflag, boolean[] surface,
+            double[] lat, double[] lon, byte[] status, int offset, int count) {
+        int[] scratch = new int[DS.length()];
+        VectorMask<Double>[] slow = new VectorMask[1];
+        CPRMetrics metrics = cpr.getMetrics();
+        int end = offset + count;
+        int bound = offset + DS.loopBound(count);
+        int good = 0;
+        int i;
+
+        for (i = offset; i < bound; i += DS.length()) {
+            long start = (metrics != null) ? metrics.start() : CPRMetrics.UNTIMED;
+            DoubleVector rlatv = DoubleVector.fromArray(DS, reflat, i);
+            DoubleVector rlonv = DoubleVector.fromArray(DS, reflon, i);
+            DoubleVector clat = toDouble(cprlat, i);
+            DoubleVector clon = toDouble(cprlon, i);
+            VectorMask<Double> odd = VectorMask.fromArray(DS, fflag, i);
+            VectorMask<Double> surf = VectorMask.fromArray(DS, surface, i);
+
+            // NaN fails the compares, so lands in the slow mask too
+            slow[0] = cprRange(clat).and(cprRange(clon))
+                    .and(rlatv.abs().compare(VectorOperators.LE, REFLIMIT))
+                    .and(rlonv.abs().compare(VectorOperators.LE, REFLIMIT)).not();
+
+            DoubleVector fractional_lat = clat.div(CPRSCALE);
+            DoubleVector fractional_lon = clon.div(CPRSCALE);
+            DoubleVector AirDlat = DoubleVector.broadcast(DS, 360.0 / 60.0)
+                    .blend(360.0 / 59.0, odd.andNot(surf))
+                    .blend(90.0 / 60.0, surf.andNot(odd))
+                    .blend(90.0 / 59.0, surf.and(odd));
+
+            // Compute the Latitude Index "j"
+            DoubleVector j = floor(rlatv.div(AirDlat))
+                    .add(floor(mod(rlatv, AirDlat, slow).div(AirDlat).add(0.5).sub(fractional_lat)));
+            DoubleVector rlat = j.add(fractional_lat).mul(AirDlat);
+
+            rlat = rlat.sub(360.0, rlat.compare(VectorOperators.GE, 270.0));
+
+            VectorMask<Double> badlat = rlat.compare(VectorOperators.LT, -90.0)
+                    .or(rlat.compare(VectorOperators.GT, 90.0))
+                    .or(rlat.sub(rlatv).abs().compare(VectorOperators.GT, AirDlat.div(2.0)));
+
+            // Compute the Longitude Index "m"
+            DoubleVector ni = nl(rlat, scratch).sub(1.0, odd).max(1.0);
+            DoubleVector AirDlon = DoubleVector.broadcast(DS, 360.0).blend(90.0, surf).div(ni);
+            DoubleVector m = floor(rlonv.div(AirDlon))
+                    .add(floor(mod(rlonv, AirDlon, slow).div(AirDlon).add(0.5).sub(fractional_lon)));
+            DoubleVector rlon = m.add(fractional_lon).mul(AirDlon);
+
+            rlon = rlon.sub(360.0, rlon.compare(VectorOperators.GT, 180.0));
+
+            VectorMask<Double> badlon = rlon.sub(rlonv).abs().compare(VectorOperators.GT, AirDlon.div(2.0)).andNot(badlat);
+
+            good += store(rlat, rlon, badlat.toLong(), badlon.toLong(),
+                    CPRStatus.RELATIVE_LATITUDE_ERROR, CPRStatus.RELATIVE_LONGITUDE_ERROR,
+                    lat, lon, status, i);
+
+            long redo = slow[0].toLong();
+
+            if (metrics != null) {
+                metrics.record(CPRMetrics.RELATIVE, status, i, slow[0].not().toLong(), start);
+            }
+
+            while (redo != 0L) {
+                int l = Long.numberOfTrailingZeros(redo);
+
+                good -= (status[i + l] == CPRStatus.OK) ? 1 : 0;
+                good += cpr.decodeCPRrelativeBatch(reflat, reflon, cprlat, cprlon, fflag, surface,
+                        lat, lon, status, i + l, 1);
+                redo &= redo - 1;
+            }
+        }
+
+        return good + cpr.decodeCPRrelativeBatch(reflat, reflon, cprlat, cprlon, fflag, surface,
+                lat, lon, status, i, end - i);
+    }
+}
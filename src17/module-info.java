@@ -0,0 +1,19 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+
+/**
+ * Compact Position Reporting encoder and decoder.
+ *
+ * The vector module is optional: without it CPRBatchDecoder.create()
+ * falls back to the scalar decoder.
+ */
+module cpr {
+    requires java.management;
+    requires static jdk.incubator.vector;
+
+    exports cpr;
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Threads that spend their time blocked on a socket, one per connection.
+ *
+ * These are virtual threads, so a thread per connection costs a small heap
+ * stack rather than a platform thread, and a blocked read gives its carrier
+ * thread back to other work.
+ */
+final class CPRThreads {
+
+    private CPRThreads() {
+    }
+
+    static boolean isVirtual() {
+        return true;
+    }
+
+    /**
+     * @param prefix the thread names, followed by a count from 0
+     */
+    static ThreadFactory factory(String prefix) {
+        return Thread.ofVirtual().name(prefix, 0L).factory();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package cpr;
+
+/*
+ * Arithmetic that newer JVMs can do faster.
+ *
+ * This is the Java 9 version, using Math.fma(), which the JIT turns into a
+ * single instruction on current hardware.
+ */
+final class CPRMath {
+
+    private static final double LIMIT = 0x1p52;
+    private static final double TIE = 0x1p-50;
+
+    private CPRMath() {
+    }
+
+    /*
+     * Math.IEEEremainder(a, b), without the native call.
+     *
+     * The remainder is a - n * b, n being a / b rounded to the nearest
+     * integer. That difference is always representable, so fma() gets it
+     * exactly as long as n is right. The quotient a / b is rounded, by at
+     * most |a| * 2^-53 times 1 / |b|, so n can only be wrong when the
+     * remainder comes within |a| * 2^-53 of b / 2. Those cases, and huge
+     * quotients, zero or non-finite arguments (which all fail the compare),
+     * go to Math.IEEEremainder().
+     */
+    static double remainder(double a, double b) {
+        double q = a / b;
+
+        if (Math.abs(q) < LIMIT) {
+            double r = Math.fma(-Math.rint(q), b, a);
+
+            if (Math.abs(Math.abs(r) - 0.5 * Math.abs(b)) > Math.abs(a) * TIE) {
+                return (r == 0.0) ? Math.copySign(0.0, a) : r;
+            }
+        }
+
+        return Math.IEEEremainder(a, b);
+    }
+
+    /*
+     * Math.floor(x), which current JITs compile to a single rounding
+     * instruction, faster than the truncating version in the base layer
+     */
+    static double floor(double x) {
+        return Math.floor(x);
+    }
+}
@@ -0,0 +1,15 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+
+/**
+ * Compact Position Reporting encoder and decoder.
+ */
+module cpr {
+    requires java.management;
+
+    exports cpr;
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import cpr.CPR;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/*
+ * Runs test.Main against each release of the multi-release classes.
+ *
+ * For release N the class path is the META-INF/versions directories up to
+ * N, newest first, then the base classes: the classes a Java N runtime
+ * would load from the jar. Each release gets its own class loader, so it
+ * runs on fresh copies of the library and the harness. They all run on
+ * the build JVM; what the Java 8 build would refuse is caught by compiling
+ * the base classes with release 8.
+ */
+class ReleaseTest {
+
+    private static Path location(Class<?> c) throws Exception {
+        return Paths.get(c.getProtectionDomain().getCodeSource().getLocation().toURI());
+    }
+
+    static Stream<Integer> releases() throws Exception {
+        List<Integer> releases = new ArrayList<>();
+
+        releases.add(8);
+
+        try (Stream<Path> versions = Files.list(location(CPR.class).resolve("META-INF/versions"))) {
+            // a layer newer than the build JVM, left by an earlier build on a later JDK, can't be run here
+            releases.addAll(versions.map(p -> Integer.valueOf(p.getFileName().toString()))
+                    .filter(v -> v <= Runtime.version().feature()).sorted().collect(Collectors.toList()));
+        }
+
+        return releases.stream();
+    }
+
+    private static URLClassLoader loader(int release) throws Exception {
+        Path classes = location(CPR.class);
+        List<URL> path = new ArrayList<>();
+
+        for (int v = release; v > 8; v--) {
+            Path dir = classes.resolve("META-INF/versions/" + v);
+
+            if (Files.isDirectory(dir)) {
+                path.add(dir.toUri().toURL());
+            }
+        }
+
+        path.add(classes.toUri().toURL());
+        path.add(location(ReleaseTest.class).toUri().toURL());
+
+        return new URLClassLoader(path.toArray(new URL[0]), ClassLoader.getPlatformClassLoader());
+    }
+
+    private static synchronized String runMain(ClassLoader loader) throws Exception {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+
+        System.setOut(new PrintStream(buf, true, "UTF-8"));
+
+        try {
+            loader.loadClass("test.Main").getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+        } finally {
+            System.setOut(out);
+        }
+
+        return new String(buf.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @ParameterizedTest(name = "release {0}")
+    @MethodSource("releases")
+    void main(int release) throws Exception {
+        try (URLClassLoader loader = loader(release)) {
+            String text = runMain(loader);
+
+            assertTrue(text.contains("Tests Successful"), "test.Main failed on release " + release + ":\n" + text);
+            assertTrue(text.contains(release >= 17 ? "testCPRVector (vector" : "testCPRVector (scalar)"),
+                    "wrong batch decoder on release " + release);
+            assertTrue(text.contains(release >= 21 ? "testCPRServer (virtual)" : "testCPRServer (platform)"),
+                    "wrong server threads on release " + release);
+        }
+    }
+
+    @ParameterizedTest(name = "release {0}")
+    @MethodSource("releases")
+    void layers(int release) throws Exception {
+        try (URLClassLoader loader = loader(release)) {
+            Path math = location(loader.loadClass("cpr.CPRMath"));
+
+            assertEquals(release >= 9 ? location(CPR.class).resolve("META-INF/versions/9") : location(CPR.class),
+                    math, "cpr.CPRMath loaded from the wrong release");
+        }
+    }
+}
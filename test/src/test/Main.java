@@ -7,8 +7,57 @@
 package test;
 
 import cpr.CPR;
+import cpr.CPRBatchDecoder;
+import cpr.CPRColumnReader;
+import cpr.CPRColumnWriter;
+import cpr.CPREncoder;
+import cpr.CPRFileDecoder;
+import cpr.CPRFixedDecoder;
+import cpr.CPRFrame;
+import cpr.CPRFrameScanner;
+import cpr.CPRGridIndex;
+import cpr.CPRMetrics;
+import cpr.CPRPlausibilityFilter;
+import cpr.CPRPositions;
+import cpr.CPRReferenceCache;
+import cpr.CPRReplay;
+import cpr.CPRRing;
+import cpr.CPRServer;
+import cpr.CPRSiteDecoder;
+import cpr.CPRTracker;
+import cpr.CPRTrackStore;
+import cpr.ConcurrentCPRTracker;
 import cpr.CPRException;
+import cpr.CPRStatus;
 import cpr.LatLon;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 public final class Main {
 
@@ -187,6 +236,93 @@ public final class Main {
         new cprRelativeTest(52.00, -1.05, 29693, 8997, true, true, 52.209976, 0.176507), // odd, surface
     };
 
+    /*
+     * Reference NL lookup, the original linear scan over a freshly built table
+     */
+    private static final double[] refNL = new double[59];
+
+    private static int refNLFunction(double lat) {
+        int i = 58;
+
+        lat = Math.abs(lat);
+
+        if (lat == 0.0) {
+            return 59;                  // Equator
+        } else if (lat == 87.0) {
+            return 2;
+        } else if (lat > 87.0) {
+            return 1;                   // Pole
+        }
+
+        while (lat > refNL[i]) {
+            i--;
+        }
+
+        return (i + 1);
+    }
+
+    private static boolean checkNL(double lat) {
+        int expected = refNLFunction(lat);
+        int actual = cpr.cprNLFunction(lat);
+
+        if (actual != expected) {
+            System.out.printf("cprNLFunction(%s) failed: %d (expected %d)\n", Double.toString(lat), actual, expected);
+            return false;
+        }
+
+        return true;
+    }
+
+    private static boolean testCPRNLFunction() {
+        double tmp = (1.0 - Math.cos(Math.PI / 30.0));
+        boolean ok = true;
+
+        refNL[0] = 90.0;
+
+        for (int i = 2; i < 60; i++) {
+            refNL[i - 1] = Math.toDegrees(Math.acos(Math.sqrt(tmp / (1.0 - Math.cos(Math.PI * 2.0 / (double) i)))));
+        }
+
+        // every zone boundary, and the doubles either side of it
+        for (int i = 0; i < refNL.length; i++) {
+            for (double sign = -1.0; sign <= 1.0; sign += 2.0) {
+                double lat = sign * refNL[i];
+
+                ok &= checkNL(lat);
+                ok &= checkNL(Math.nextUp(lat));
+                ok &= checkNL(Math.nextDown(lat));
+            }
+        }
+
+        // the equator, 87 degrees, the poles and beyond
+        double[] special = {
+            0.0, -0.0, Double.MIN_VALUE, -Double.MIN_VALUE,
+            87.0, -87.0, Math.nextUp(87.0), Math.nextDown(87.0),
+            90.0, -90.0, 91.0, -91.0, 180.0, -180.0,
+            Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN
+        };
+
+        for (double lat : special) {
+            ok &= checkNL(lat);
+        }
+
+        // a dense sweep, plus every 17-bit fraction of the airborne latitude zones
+        for (int i = -9100000; i <= 9100000; i++) {
+            ok &= checkNL(i / 100000.0);
+        }
+
+        for (int j = 0; j < 60; j++) {
+            for (int k = 0; k < 131072; k++) {
+                ok &= checkNL((360.0 / 60.0) * (j + k / 131072.0));
+                ok &= checkNL((360.0 / 59.0) * (j + k / 131072.0));
+            }
+        }
+
+        System.out.printf("testCPRNLFunction:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
     private static boolean testCPRGlobalAirborne() {
         LatLon rlatlon = new LatLon();
         boolean ok = true;
@@ -347,11 +483,2776 @@ public final class Main {
         return ok;
     }
 
+    /*
+     * Fill a block with random even/odd frame pairs, flags and references,
+     * always the same for a given block size.
+     */
+    private static void randomFrames(int[] frames, double[] refs) {
+        Random rand = new Random(1090L);
+
+        for (int k = 0, n = frames.length / 5; k < n; k++) {
+            frames[k * 5] = rand.nextInt(131072);
+            frames[k * 5 + 1] = rand.nextInt(131072);
+            frames[k * 5 + 2] = rand.nextInt(131072);
+            frames[k * 5 + 3] = rand.nextInt(131072);
+            frames[k * 5 + 4] = rand.nextInt(4);
+            refs[k * 2] = rand.nextDouble() * 180.0 - 90.0;
+            refs[k * 2 + 1] = rand.nextDouble() * 360.0 - 180.0;
+        }
+    }
+
+    /*
+     * Decode a block of random frames every way we can, recording NaN for
+     * any frame that is rejected.
+     */
+    private static void decodeRandom(CPR decoder, int[] frames, double[] refs, double[] out) {
+        for (int k = 0, n = frames.length / 5; k < n; k++) {
+            int elat = frames[k * 5];
+            int elon = frames[k * 5 + 1];
+            int olat = frames[k * 5 + 2];
+            int olon = frames[k * 5 + 3];
+            boolean fflag = (frames[k * 5 + 4] & 1) != 0;
+            boolean surface = (frames[k * 5 + 4] & 2) != 0;
+            double reflat = refs[k * 2];
+            double reflon = refs[k * 2 + 1];
+            LatLon r;
+
+            try {
+                r = decoder.decodeCPRairborne(elat, elon, olat, olon, fflag);
+                out[k * 6] = r.getLat();
+                out[k * 6 + 1] = r.getLon();
+            } catch (CPRException e) {
+                out[k * 6] = out[k * 6 + 1] = Double.NaN;
+            }
+
+            try {
+                r = decoder.decodeCPRsurface(reflat, reflon, elat, elon, olat, olon, fflag);
+                out[k * 6 + 2] = r.getLat();
+                out[k * 6 + 3] = r.getLon();
+            } catch (CPRException e) {
+                out[k * 6 + 2] = out[k * 6 + 3] = Double.NaN;
+            }
+
+            try {
+                r = decoder.decodeCPRrelative(reflat, reflon, elat, elon, fflag, surface);
+                out[k * 6 + 4] = r.getLat();
+                out[k * 6 + 5] = r.getLon();
+            } catch (CPRException e) {
+                out[k * 6 + 4] = out[k * 6 + 5] = Double.NaN;
+            }
+        }
+    }
+
+    private static boolean testCPRThreads() {
+        final int count = 20000;
+        final int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        final int[] frames = new int[count * 5];
+        final double[] refs = new double[count * 2];
+        final double[] expected = new double[count * 6];
+        final AtomicBoolean ok = new AtomicBoolean(true);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+
+        randomFrames(frames, refs);
+        decodeRandom(cpr, frames, refs, expected);
+
+        for (int t = 0; t < threads; t++) {
+            final boolean construct = (t & 1) != 0;
+
+            workers[t] = new Thread(() -> {
+                double[] actual = new double[count * 6];
+
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    ok.set(false);
+                    return;
+                }
+
+                for (int pass = 0; pass < 5; pass++) {
+                    // half the threads build their own decoder, racing the others
+                    decodeRandom(construct ? new CPR() : CPR.shared(), frames, refs, actual);
+
+                    for (int i = 0; i < actual.length; i++) {
+                        if (Double.doubleToLongBits(actual[i]) != Double.doubleToLongBits(expected[i])) {
+                            ok.set(false);
+                            return;
+                        }
+                    }
+                }
+            });
+
+            workers[t].start();
+        }
+
+        start.countDown();
+
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                ok.set(false);
+            }
+        }
+
+        System.out.printf("testCPRThreads:  %s\n", ok.get() ? "PASS" : "FAIL");
+
+        return ok.get();
+    }
+
+    /*
+     * The caller-owned buffer overloads must give the same answers as the
+     * LatLon returning methods, and must not allocate.
+     */
+    private static boolean testCPRBuffers() {
+        final int count = 20000;
+        int[] frames = new int[count * 5];
+        double[] refs = new double[count * 2];
+        double[] expected = new double[count * 6];
+        double[] actual = new double[count * 6];
+        LatLon holder = new LatLon();
+        boolean ok = true;
+
+        randomFrames(frames, refs);
+        decodeRandom(cpr, frames, refs, expected);
+
+        for (int k = 0; k < count; k++) {
+            int elat = frames[k * 5];
+            int elon = frames[k * 5 + 1];
+            int olat = frames[k * 5 + 2];
+            int olon = frames[k * 5 + 3];
+            boolean fflag = (frames[k * 5 + 4] & 1) != 0;
+            boolean surface = (frames[k * 5 + 4] & 2) != 0;
+            double reflat = refs[k * 2];
+            double reflon = refs[k * 2 + 1];
+
+            try {
+                cpr.decodeCPRairborne(elat, elon, olat, olon, fflag, actual, k * 6);
+            } catch (CPRException e) {
+                actual[k * 6] = actual[k * 6 + 1] = Double.NaN;
+            }
+
+            try {
+                cpr.decodeCPRsurface(reflat, reflon, elat, elon, olat, olon, fflag, holder);
+                actual[k * 6 + 2] = holder.getLat();
+                actual[k * 6 + 3] = holder.getLon();
+            } catch (CPRException e) {
+                actual[k * 6 + 2] = actual[k * 6 + 3] = Double.NaN;
+            }
+
+            try {
+                cpr.decodeCPRrelative(reflat, reflon, elat, elon, fflag, surface, actual, k * 6 + 4);
+            } catch (CPRException e) {
+                actual[k * 6 + 4] = actual[k * 6 + 5] = Double.NaN;
+            }
+        }
+
+        for (int i = 0; i < actual.length; i++) {
+            if (Double.doubleToLongBits(actual[i]) != Double.doubleToLongBits(expected[i])) {
+                ok = false;
+                System.out.printf("testCPRBuffers[%d]:  FAIL %.6f (expected %.6f)\n", i / 6, actual[i], expected[i]);
+                break;
+            }
+        }
+
+        // decode the good test vectors repeatedly, and count the bytes allocated
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long id = Thread.currentThread().getId();
+            long before = mx.getThreadAllocatedBytes(id);
+
+            try {
+                for (int pass = 0; pass < 10000; pass++) {
+                    for (int i = 0; i < cprRelativeTests.length; i++) {
+                        cpr.decodeCPRrelative(cprRelativeTests[i].reflat, cprRelativeTests[i].reflon,
+                                cprRelativeTests[i].cprlat, cprRelativeTests[i].cprlon,
+                                cprRelativeTests[i].fflag, cprRelativeTests[i].surface, actual, 0);
+                    }
+
+                    for (int i = 0; i < cprGlobalAirborneTests.length; i++) {
+                        cpr.decodeCPRairborne(cprGlobalAirborneTests[i].even_cprlat, cprGlobalAirborneTests[i].even_cprlon,
+                                cprGlobalAirborneTests[i].odd_cprlat, cprGlobalAirborneTests[i].odd_cprlon,
+                                (pass & 1) != 0, holder);
+                    }
+                }
+            } catch (CPRException e) {
+                ok = false;
+            }
+
+            long allocated = mx.getThreadAllocatedBytes(id) - before;
+
+            // allow a little for the MXBean call itself
+            if (allocated > 4096) {
+                ok = false;
+                System.out.printf("testCPRBuffers: FAIL %d bytes allocated\n", allocated);
+            }
+        }
+
+        System.out.printf("testCPRBuffers:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    /*
+     * Compare a status code with what the throwing method did
+     */
+    private static boolean checkStatus(int status, CPRException e, double[] actual, double[] expected, int i) {
+        if (status == CPRStatus.OK) {
+            return e == null
+                    && Double.doubleToLongBits(actual[i]) == Double.doubleToLongBits(expected[i])
+                    && Double.doubleToLongBits(actual[i + 1]) == Double.doubleToLongBits(expected[i + 1]);
+        }
+
+        return e != null
+                && CPRStatus.message(status).equals(e.getMessage())
+                && e.getStackTrace().length == 0;
+    }
+
+    /*
+     * The non-throwing methods must return the same positions, and a status
+     * matching the message of the exception the throwing methods raise.
+     */
+    private static boolean testCPRStatus() {
+        final int count = 20000;
+        int[] frames = new int[count * 5];
+        double[] refs = new double[count * 2];
+        double[] expected = new double[count * 6];
+        double[] actual = new double[count * 6];
+        LatLon holder = new LatLon();
+        int[] failures = new int[7];
+        boolean ok = true;
+
+        randomFrames(frames, refs);
+        decodeRandom(cpr, frames, refs, expected);
+
+        for (int k = 0; k < count && ok; k++) {
+            int elat = frames[k * 5];
+            int elon = frames[k * 5 + 1];
+            int olat = frames[k * 5 + 2];
+            int olon = frames[k * 5 + 3];
+            boolean fflag = (frames[k * 5 + 4] & 1) != 0;
+            boolean surface = (frames[k * 5 + 4] & 2) != 0;
+            double reflat = refs[k * 2];
+            double reflon = refs[k * 2 + 1];
+            CPRException e;
+            int status;
+
+            status = cpr.tryDecodeCPRairborne(elat, elon, olat, olon, fflag, actual, k * 6);
+            e = null;
+
+            try {
+                cpr.decodeCPRairborne(elat, elon, olat, olon, fflag);
+            } catch (CPRException x) {
+                e = x;
+            }
+
+            ok &= checkStatus(status, e, actual, expected, k * 6);
+            failures[status]++;
+
+            status = cpr.tryDecodeCPRsurface(reflat, reflon, elat, elon, olat, olon, fflag, holder);
+            actual[k * 6 + 2] = holder.getLat();
+            actual[k * 6 + 3] = holder.getLon();
+            e = null;
+
+            try {
+                cpr.decodeCPRsurface(reflat, reflon, elat, elon, olat, olon, fflag);
+            } catch (CPRException x) {
+                e = x;
+            }
+
+            ok &= checkStatus(status, e, actual, expected, k * 6 + 2);
+            failures[status]++;
+
+            status = cpr.tryDecodeCPRrelative(reflat, reflon, elat, elon, fflag, surface, actual, k * 6 + 4);
+            e = null;
+
+            try {
+                cpr.decodeCPRrelative(reflat, reflon, elat, elon, fflag, surface);
+            } catch (CPRException x) {
+                e = x;
+            }
+
+            ok &= checkStatus(status, e, actual, expected, k * 6 + 4);
+            failures[status]++;
+
+            if (ok == false) {
+                System.out.printf("testCPRStatus[%d]:  FAIL\n", k);
+            }
+        }
+
+        // random frames should have hit every outcome, bar the surface range check which cannot fail
+        for (int i = 0; i < failures.length; i++) {
+            if (failures[i] == 0 && i != CPRStatus.BAD_SURFACE_LATITUDE) {
+                ok = false;
+                System.out.printf("testCPRStatus: FAIL no frames gave '%s'\n", CPRStatus.message(i));
+            }
+        }
+
+        System.out.printf("testCPRStatus:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    private static boolean checkBatch(String name, int i, double lat, double lon, double rlat, double rlon) {
+        if (Math.abs(lat - rlat) > 1e-6 || Math.abs(lon - rlon) > 1e-6) {
+            System.out.printf("%s[%d]:  FAIL\n lat %.6f   (expected %.6f)\n lon %.6f   (expected %.6f)\n\n",
+                    name, i, lat, rlat, lon, rlon);
+            return false;
+        }
+
+        return true;
+    }
+
+    /*
+     * Run the test tables, and a block of random frames, through the batch
+     * methods. The random frames must match the scalar methods exactly.
+     */
+    private static boolean testCPRBatch() {
+        boolean ok = true;
+
+        // global airborne table, even then odd
+        int n = cprGlobalAirborneTests.length * 2;
+        int[] elat = new int[n], elon = new int[n], olat = new int[n], olon = new int[n];
+        boolean[] fflag = new boolean[n];
+        double[] lat = new double[n], lon = new double[n];
+        byte[] status = new byte[n];
+
+        for (int i = 0; i < n; i++) {
+            cprGlobalAirborneTest t = cprGlobalAirborneTests[i / 2];
+
+            elat[i] = t.even_cprlat;
+            elon[i] = t.even_cprlon;
+            olat[i] = t.odd_cprlat;
+            olon[i] = t.odd_cprlon;
+            fflag[i] = (i & 1) != 0;
+        }
+
+        ok &= cpr.decodeCPRairborneBatch(elat, elon, olat, olon, fflag, lat, lon, status, 0, n) == n;
+
+        for (int i = 0; i < n; i++) {
+            cprGlobalAirborneTest t = cprGlobalAirborneTests[i / 2];
+
+            ok &= checkBatch("testCPRBatchAirborne", i, lat[i], lon[i],
+                    fflag[i] ? t.odd_rlat : t.even_rlat, fflag[i] ? t.odd_rlon : t.even_rlon);
+        }
+
+        // global surface table, even then odd
+        n = cprGlobalSurfaceTests.length * 2;
+        elat = new int[n];
+        elon = new int[n];
+        olat = new int[n];
+        olon = new int[n];
+        fflag = new boolean[n];
+        lat = new double[n];
+        lon = new double[n];
+        status = new byte[n];
+        double[] reflat = new double[n], reflon = new double[n];
+
+        for (int i = 0; i < n; i++) {
+            cprGlobalSurfaceTest t = cprGlobalSurfaceTests[i / 2];
+
+            reflat[i] = t.reflat;
+            reflon[i] = t.reflon;
+            elat[i] = t.even_cprlat;
+            elon[i] = t.even_cprlon;
+            olat[i] = t.odd_cprlat;
+            olon[i] = t.odd_cprlon;
+            fflag[i] = (i & 1) != 0;
+        }
+
+        ok &= cpr.decodeCPRsurfaceBatch(reflat, reflon, elat, elon, olat, olon, fflag, lat, lon, status, 0, n) == n;
+
+        for (int i = 0; i < n; i++) {
+            cprGlobalSurfaceTest t = cprGlobalSurfaceTests[i / 2];
+
+            ok &= checkBatch("testCPRBatchSurface", i, lat[i], lon[i],
+                    fflag[i] ? t.odd_rlat : t.even_rlat, fflag[i] ? t.odd_rlon : t.even_rlon);
+        }
+
+        // relative table
+        n = cprRelativeTests.length;
+        elat = new int[n];
+        elon = new int[n];
+        fflag = new boolean[n];
+        lat = new double[n];
+        lon = new double[n];
+        status = new byte[n];
+        reflat = new double[n];
+        reflon = new double[n];
+        boolean[] surface = new boolean[n];
+
+        for (int i = 0; i < n; i++) {
+            reflat[i] = cprRelativeTests[i].reflat;
+            reflon[i] = cprRelativeTests[i].reflon;
+            elat[i] = cprRelativeTests[i].cprlat;
+            elon[i] = cprRelativeTests[i].cprlon;
+            fflag[i] = cprRelativeTests[i].fflag;
+            surface[i] = cprRelativeTests[i].surface;
+        }
+
+        ok &= cpr.decodeCPRrelativeBatch(reflat, reflon, elat, elon, fflag, surface, lat, lon, status, 0, n) == n;
+
+        for (int i = 0; i < n; i++) {
+            ok &= checkBatch("testCPRBatchRelative", i, lat[i], lon[i], cprRelativeTests[i].rlat, cprRelativeTests[i].rlon);
+        }
+
+        // random frames, decoded in uneven slices
+        final int count = 20000;
+        int[] frames = new int[count * 5];
+        double[] refs = new double[count * 2];
+        double[] expected = new double[count * 6];
+
+        randomFrames(frames, refs);
+        decodeRandom(cpr, frames, refs, expected);
+
+        elat = new int[count];
+        elon = new int[count];
+        olat = new int[count];
+        olon = new int[count];
+        fflag = new boolean[count];
+        surface = new boolean[count];
+        reflat = new double[count];
+        reflon = new double[count];
+        status = new byte[count];
+
+        double[][] out = new double[6][count];
+
+        for (int k = 0; k < count; k++) {
+            elat[k] = frames[k * 5];
+            elon[k] = frames[k * 5 + 1];
+            olat[k] = frames[k * 5 + 2];
+            olon[k] = frames[k * 5 + 3];
+            fflag[k] = (frames[k * 5 + 4] & 1) != 0;
+            surface[k] = (frames[k * 5 + 4] & 2) != 0;
+            reflat[k] = refs[k * 2];
+            reflon[k] = refs[k * 2 + 1];
+        }
+
+        for (int off = 0, len = 1; off < count; off += len, len = len * 2 + 1) {
+            len = Math.min(len, count - off);
+            cpr.decodeCPRairborneBatch(elat, elon, olat, olon, fflag, out[0], out[1], status, off, len);
+            cpr.decodeCPRsurfaceBatch(reflat, reflon, elat, elon, olat, olon, fflag, out[2], out[3], status, off, len);
+            cpr.decodeCPRrelativeBatch(reflat, reflon, elat, elon, fflag, surface, out[4], out[5], status, off, len);
+        }
+
+        for (int k = 0; k < count; k++) {
+            for (int j = 0; j < 6; j++) {
+                if (Double.doubleToLongBits(out[j][k]) != Double.doubleToLongBits(expected[k * 6 + j])) {
+                    ok = false;
+                    System.out.printf("testCPRBatch[%d,%d]:  FAIL %.6f (expected %.6f)\n", k, j, out[j][k], expected[k * 6 + j]);
+                    break;
+                }
+            }
+        }
+
+        System.out.printf("testCPRBatch:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    /*
+     * The best batch decoder for this JVM must match the scalar one bit for
+     * bit. Half the references are moved near the true position, so that
+     * most relative decodes succeed, and the rest of the block is spent on
+     * awkward inputs: cell edges, out of range CPR values, NaN and infinity.
+     */
+    private static boolean testCPRVector() {
+        final int count = 20011;
+        CPRBatchDecoder fast = CPRBatchDecoder.create();
+        CPRBatchDecoder slow = CPRBatchDecoder.scalar();
+        int[] frames = new int[count * 5];
+        double[] refs = new double[count * 2];
+        double[] expected = new double[count * 6];
+        Random rand = new Random(1090L);
+        boolean ok = true;
+
+        randomFrames(frames, refs);
+        decodeRandom(cpr, frames, refs, expected);
+
+        int[] elat = new int[count], elon = new int[count], olat = new int[count], olon = new int[count];
+        boolean[] fflag = new boolean[count], surface = new boolean[count];
+        double[] reflat = new double[count], reflon = new double[count];
+
+        for (int k = 0; k < count; k++) {
+            elat[k] = frames[k * 5];
+            elon[k] = frames[k * 5 + 1];
+            olat[k] = frames[k * 5 + 2];
+            olon[k] = frames[k * 5 + 3];
+            fflag[k] = (frames[k * 5 + 4] & 1) != 0;
+            surface[k] = (frames[k * 5 + 4] & 2) != 0;
+            reflat[k] = refs[k * 2];
+            reflon[k] = refs[k * 2 + 1];
+
+            if ((k & 1) == 0 && !Double.isNaN(expected[k * 6])) {
+                reflat[k] = expected[k * 6] + (rand.nextDouble() - 0.5) * 6.0;
+                reflon[k] = expected[k * 6 + 1] + (rand.nextDouble() - 0.5) * 6.0;
+            }
+        }
+
+        double[] edges = {
+            0.0, -0.0, 0.75, 1.5, -1.5, 3.0, -3.0, 45.0, 87.0, -87.0, 90.0, -90.0, 180.0, -180.0,
+            360.0 / 118.0, 90.0 / 118.0, 1e7, -1e7, Double.NaN, Double.POSITIVE_INFINITY
+        };
+        int[] values = {0, 1, 65536, 131071, 131072, -1, Integer.MAX_VALUE, Integer.MIN_VALUE};
+
+        for (int k = 0; k < count / 4; k++) {
+            int e = k * 4 + 1;
+
+            reflat[e] = edges[rand.nextInt(edges.length)] * (1 + rand.nextInt(3));
+            reflon[e] = edges[rand.nextInt(edges.length)] * (1 + rand.nextInt(3));
+
+            if ((k % 3) == 0) {
+                elat[e] = values[rand.nextInt(values.length)];
+                olon[e] = values[rand.nextInt(values.length)];
+            }
+        }
+
+        double[][] a = new double[4][count];
+        double[][] b = new double[4][count];
+        byte[][] status = new byte[4][count];
+        int good;
+
+        for (int off = 0, len = 1; off < count; off += len, len = len * 3 + 1) {
+            len = Math.min(len, count - off);
+            good = fast.decodeCPRairborne(elat, elon, olat, olon, fflag, a[0], a[1], status[0], off, len);
+            ok &= good == slow.decodeCPRairborne(elat, elon, olat, olon, fflag, b[0], b[1], status[1], off, len);
+            good = fast.decodeCPRrelative(reflat, reflon, elat, elon, fflag, surface, a[2], a[3], status[2], off, len);
+            ok &= good == slow.decodeCPRrelative(reflat, reflon, elat, elon, fflag, surface, b[2], b[3], status[3], off, len);
+        }
+
+        for (int k = 0; k < count && ok; k++) {
+            for (int j = 0; j < 4; j++) {
+                if (Double.doubleToLongBits(a[j][k]) != Double.doubleToLongBits(b[j][k])
+                        || status[j & 2][k] != status[(j & 2) + 1][k]) {
+                    ok = false;
+                    System.out.printf("testCPRVector[%d,%d]:  FAIL %.6f (expected %.6f)\n", k, j, a[j][k], b[j][k]);
+                    break;
+                }
+            }
+        }
+
+        System.out.printf("testCPRVector (%s):  %s\n", fast.getName(), ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    private static boolean near(double a, double b, double tolerance, double wrap) {
+        double d = Math.abs(a - b);
+
+        return Math.min(d, wrap - d) <= tolerance;
+    }
+
+    /*
+     * Encode then decode. The table positions must encode back to the same
+     * CPR values, and random positions must decode to within one CPR step.
+     */
+    private static boolean testCPREncoder() {
+        CPREncoder enc = CPREncoder.shared();
+        int[] even = new int[2];
+        int[] odd = new int[2];
+        LatLon r = new LatLon();
+        Random rand = new Random(1090L);
+        int crossed = 0;
+        boolean ok = true;
+
+        try {
+            for (int i = 0; i < cprGlobalAirborneTests.length; i++) {
+                cprGlobalAirborneTest t = cprGlobalAirborneTests[i];
+
+                cpr.decodeCPRairborne(t.even_cprlat, t.even_cprlon, t.odd_cprlat, t.odd_cprlon, false, r);
+                enc.encodeCPRairborne(r.getLat(), r.getLon(), false, even, 0);
+                cpr.decodeCPRairborne(t.even_cprlat, t.even_cprlon, t.odd_cprlat, t.odd_cprlon, true, r);
+                enc.encodeCPRairborne(r.getLat(), r.getLon(), true, odd, 0);
+
+                if (even[0] != t.even_cprlat || even[1] != t.even_cprlon || odd[0] != t.odd_cprlat || odd[1] != t.odd_cprlon) {
+                    ok = false;
+                    System.out.printf("testCPREncoder airborne[%d]:  FAIL %d,%d,%d,%d\n", i, even[0], even[1], odd[0], odd[1]);
+                }
+            }
+
+            for (int i = 0; i < cprGlobalSurfaceTests.length; i++) {
+                cprGlobalSurfaceTest t = cprGlobalSurfaceTests[i];
+
+                cpr.decodeCPRsurface(t.reflat, t.reflon, t.even_cprlat, t.even_cprlon, t.odd_cprlat, t.odd_cprlon, false, r);
+                enc.encodeCPRsurface(r.getLat(), r.getLon(), false, even, 0);
+                cpr.decodeCPRsurface(t.reflat, t.reflon, t.even_cprlat, t.even_cprlon, t.odd_cprlat, t.odd_cprlon, true, r);
+                enc.encodeCPRsurface(r.getLat(), r.getLon(), true, odd, 0);
+
+                if (even[0] != t.even_cprlat || even[1] != t.even_cprlon || odd[0] != t.odd_cprlat || odd[1] != t.odd_cprlon) {
+                    ok = false;
+                    System.out.printf("testCPREncoder surface[%d]:  FAIL %d,%d,%d,%d\n", i, even[0], even[1], odd[0], odd[1]);
+                }
+            }
+        } catch (CPRException e) {
+            ok = false;
+            System.out.printf("testCPREncoder:  FAIL %s\n", e.getMessage());
+        }
+
+        for (int k = 0; k < 100000; k++) {
+            double lat = rand.nextDouble() * 170.0 - 85.0;
+            double lon = rand.nextDouble() * 360.0 - 180.0;
+            boolean fflag = rand.nextBoolean();
+            double dlat = 360.0 / (fflag ? 59.0 : 60.0);
+            double dlon = 360.0 / Math.max(cpr.cprNLFunction(lat) - (fflag ? 1 : 0), 1);
+
+            // global airborne decode, which may land on a zone boundary
+            enc.encodeCPRairborne(lat, lon, false, even, 0);
+            enc.encodeCPRairborne(lat, lon, true, odd, 0);
+
+            if (cpr.tryDecodeCPRairborne(even[0], even[1], odd[0], odd[1], fflag, r) != CPRStatus.OK) {
+                crossed++;
+            } else if (!near(r.getLat(), lat, dlat / 131072.0, 360.0) || !near(r.getLon(), lon, dlon / 131072.0, 360.0)) {
+                ok = false;
+                System.out.printf("testCPREncoder airborne (%.6f,%.6f):  FAIL %.6f,%.6f\n", lat, lon, r.getLat(), r.getLon());
+            }
+
+            // relative decodes of each kind, with a reference nearby
+            double reflat = lat + (rand.nextDouble() - 0.5) * 0.5;
+            double reflon = lon + (rand.nextDouble() - 0.5) * 0.5;
+            int[] cprval = fflag ? odd : even;
+
+            enc.encodeCPRsurface(lat, lon, fflag, cprval, 0);
+
+            if (cpr.tryDecodeCPRrelative(reflat, reflon, cprval[0], cprval[1], fflag, true, r) != CPRStatus.OK
+                    || !near(r.getLat(), lat, dlat / 4.0 / 131072.0, 360.0)
+                    || !near(r.getLon(), lon, dlon / 4.0 / 131072.0, 360.0)) {
+                ok = false;
+                System.out.printf("testCPREncoder surface (%.6f,%.6f):  FAIL %.6f,%.6f\n", lat, lon, r.getLat(), r.getLon());
+            }
+
+            enc.encodeCPRcoarse(lat, lon, fflag, cprval, 0);
+
+            if (cpr.tryDecodeCPRrelative(reflat, reflon, cprval[0] << 5, cprval[1] << 5, fflag, false, r) != CPRStatus.OK
+                    || !near(r.getLat(), lat, dlat / 4096.0, 360.0)
+                    || !near(r.getLon(), lon, dlon / 4096.0, 360.0)) {
+                ok = false;
+                System.out.printf("testCPREncoder coarse (%.6f,%.6f):  FAIL %.6f,%.6f\n", lat, lon, r.getLat(), r.getLon());
+            }
+        }
+
+        // only positions very close to a zone boundary should fail
+        if (crossed > 1000) {
+            ok = false;
+            System.out.printf("testCPREncoder:  FAIL %d crossed zones\n", crossed);
+        }
+
+        // the batch encoders match the scalar ones
+        double[] lat = new double[1000], lon = new double[1000];
+        boolean[] fflag = new boolean[1000];
+        int[] cprlat = new int[1000], cprlon = new int[1000];
+
+        for (int i = 0; i < lat.length; i++) {
+            lat[i] = rand.nextDouble() * 180.0 - 90.0;
+            lon[i] = rand.nextDouble() * 360.0 - 180.0;
+            fflag[i] = rand.nextBoolean();
+        }
+
+        enc.encodeCPRairborneBatch(lat, lon, fflag, cprlat, cprlon, 0, lat.length);
+
+        for (int i = 0; i < lat.length; i++) {
+            enc.encodeCPRairborne(lat[i], lon[i], fflag[i], even, 0);
+            ok &= even[0] == cprlat[i] && even[1] == cprlon[i];
+        }
+
+        enc.encodeCPRsurfaceBatch(lat, lon, fflag, cprlat, cprlon, 0, lat.length);
+
+        for (int i = 0; i < lat.length; i++) {
+            enc.encodeCPRsurface(lat[i], lon[i], fflag[i], even, 0);
+            ok &= even[0] == cprlat[i] && even[1] == cprlon[i];
+        }
+
+        enc.encodeCPRcoarseBatch(lat, lon, fflag, cprlat, cprlon, 0, lat.length);
+
+        for (int i = 0; i < lat.length; i++) {
+            enc.encodeCPRcoarse(lat[i], lon[i], fflag[i], even, 0);
+            ok &= even[0] == cprlat[i] && even[1] == cprlon[i];
+        }
+
+        System.out.printf("testCPREncoder:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    /*
+     * Fly a fleet of aircraft in straight lines, sending alternate even and
+     * odd frames every half second, through a tracker. Every frame after an
+     * aircraft's first must decode to within one CPR step of its true
+     * position.
+     */
+    private static boolean testCPRTracker() {
+        final int fleet = 2000;
+        CPREncoder enc = CPREncoder.shared();
+        CPRTracker tracker = new CPRTracker(fleet);
+        double[] lat0 = new double[fleet], lon0 = new double[fleet];
+        double[] vlat = new double[fleet], vlon = new double[fleet];
+        double[] pos = new double[2];
+        int[] frame = new int[2];
+        Random rand = new Random(1090L);
+        int decoded = 0;
+        boolean ok = true;
+
+        for (int a = 0; a < fleet; a++) {
+            lat0[a] = rand.nextDouble() * 160.0 - 80.0;
+            lon0[a] = rand.nextDouble() * 360.0 - 180.0;
+            vlat[a] = (rand.nextDouble() - 0.5) * 0.004;     // up to about 400 knots
+            vlon[a] = (rand.nextDouble() - 0.5) * 0.004;
+        }
+
+        for (int tick = 0; tick < 120 && ok; tick++) {
+            long time = tick * 500L;
+            boolean fflag = (tick & 1) != 0;
+
+            for (int a = 0; a < fleet && ok; a++) {
+                double lat = lat0[a] + vlat[a] * tick * 0.5;
+                double lon = lon0[a] + vlon[a] * tick * 0.5;
+                double dlat = 360.0 / (fflag ? 59.0 : 60.0);
+                double dlon = 360.0 / Math.max(cpr.cprNLFunction(lat) - (fflag ? 1 : 0), 1);
+
+                enc.encodeCPRairborne(lat, lon, fflag, frame, 0);
+
+                int status = tracker.update(0xA00000 + a * 7, time, frame[0], frame[1], fflag, false, pos, 0);
+
+                if (status == CPRStatus.OK) {
+                    decoded++;
+
+                    if (!near(pos[0], lat, dlat / 131072.0, 360.0) || !near(pos[1], lon, dlon / 131072.0, 360.0)) {
+                        ok = false;
+                        System.out.printf("testCPRTracker[%d,%d]:  FAIL %.6f,%.6f (expected %.6f,%.6f)\n",
+                                a, tick, pos[0], pos[1], lat, lon);
+                    }
+                } else if (tick == 0 && status != CPRStatus.NO_PAIR) {
+                    ok = false;
+                    System.out.printf("testCPRTracker[%d,%d]:  FAIL %s\n", a, tick, CPRStatus.message(status));
+                }
+            }
+        }
+
+        // a handful of global decodes may straddle a zone boundary
+        if (decoded < fleet * 119 - 10 || tracker.size() != fleet) {
+            ok = false;
+            System.out.printf("testCPRTracker:  FAIL %d decoded, %d aircraft\n", decoded, tracker.size());
+        }
+
+        // the pairing window
+        CPRTracker t2 = new CPRTracker(16);
+        int[] even = new int[2], odd = new int[2];
+
+        enc.encodeCPRairborne(52.0, 0.5, false, even, 0);
+        enc.encodeCPRairborne(52.0, 0.5, true, odd, 0);
+        ok &= t2.update(1, 0L, even[0], even[1], false, false, pos, 0) == CPRStatus.NO_PAIR;
+        ok &= t2.update(1, 20000L, odd[0], odd[1], true, false, pos, 0) == CPRStatus.NO_PAIR;
+        ok &= t2.update(1, 25000L, even[0], even[1], false, false, pos, 0) == CPRStatus.OK;
+        ok &= t2.getPosition(1, pos, 0) && near(pos[0], 52.0, 1e-4, 360.0) && near(pos[1], 0.5, 1e-4, 360.0);
+
+        // surface pairs need a reference
+        enc.encodeCPRsurface(52.21, 0.177, false, even, 0);
+        enc.encodeCPRsurface(52.21, 0.177, true, odd, 0);
+        ok &= t2.update(2, 0L, even[0], even[1], false, true, pos, 0) == CPRStatus.NO_PAIR;
+        ok &= t2.update(2, 30000L, odd[0], odd[1], true, true, pos, 0) == CPRStatus.NO_REFERENCE;
+        t2.setReceiver(52.0, 0.0);
+        ok &= t2.update(2, 40000L, odd[0], odd[1], true, true, pos, 0) == CPRStatus.OK;
+        ok &= near(pos[0], 52.21, 1e-4, 360.0) && near(pos[1], 0.177, 1e-4, 360.0);
+
+        // the table stays bounded, dropping the stalest aircraft
+        CPRTracker t3 = new CPRTracker(64);
+
+        for (int a = 0; a < 10000; a++) {
+            t3.update(a, a, even[0], even[1], false, true, pos, 0);
+        }
+
+        ok &= t3.size() == 64;
+
+        for (int a = 0; a < 10000; a++) {
+            ok &= t3.remove(a) == (a >= 10000 - 64);
+        }
+
+        ok &= t3.size() == 0;
+
+        enc.encodeCPRairborne(52.0, 0.5, false, even, 0);
+        enc.encodeCPRairborne(52.0, 0.5, true, odd, 0);
+
+        for (int a = 0; a < 64; a++) {
+            t3.update(a * 64, a, even[0], even[1], false, false, pos, 0);
+            t3.update(a * 64, a, odd[0], odd[1], true, false, pos, 0);
+        }
+
+        ok &= t3.expire(32) == 32 && t3.size() == 32;
+
+        for (int a = 0; a < 64; a++) {
+            ok &= t3.getPosition(a * 64, pos, 0) == (a >= 32);
+        }
+
+        // past capacity, with times out of order, the aircraft heard from longest ago goes
+        CPRTracker t4 = new CPRTracker(4);
+        long[] heard = { 40L, 10L, 30L, 20L };
+
+        for (int a = 0; a < 4; a++) {
+            t4.update(a + 1, heard[a], even[0], even[1], false, false, pos, 0);
+        }
+
+        t4.update(2, 50L, odd[0], odd[1], true, false, pos, 0);        // 4, 3, 1, 2
+        t4.update(1, 5L, odd[0], odd[1], true, false, pos, 0);         // an old frame leaves 1 where it is
+        t4.update(5, 45L, even[0], even[1], false, false, pos, 0);     // drops 4
+        t4.update(6, 46L, even[0], even[1], false, false, pos, 0);     // drops 3
+        t4.update(7, 47L, even[0], even[1], false, false, pos, 0);     // drops 1
+
+        ok &= t4.size() == 4 && !t4.remove(4) && !t4.remove(3) && !t4.remove(1)
+                && t4.remove(2) && t4.remove(5) && t4.remove(6) && t4.remove(7) && t4.size() == 0;
+
+        System.out.printf("testCPRTracker:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    /*
+     * Even and odd frames for each aircraft are sent from different threads,
+     * racing each other through a concurrent tracker. Every decoded position
+     * must be close to the aircraft's true track.
+     */
+    private static boolean testConcurrentCPRTracker() {
+        final int fleet = 4000;
+        final int ticks = 60;
+        final int per = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+        final ConcurrentCPRTracker tracker = new ConcurrentCPRTracker(fleet);
+        final double[] lat0 = new double[fleet], lon0 = new double[fleet];
+        final double[] vlat = new double[fleet], vlon = new double[fleet];
+        final int[][] frames = new int[ticks][fleet * 2];
+        final AtomicBoolean ok = new AtomicBoolean(true);
+        Thread[] workers = new Thread[per * 2];
+        final CyclicBarrier round = new CyclicBarrier(workers.length);
+        final int rounds = (ticks + 1) / 2;
+        Random rand = new Random(1090L);
+
+        // keep clear of 180 degrees, where decodeCPRrelative rejects a reference on the far side
+        for (int a = 0; a < fleet; a++) {
+            lat0[a] = rand.nextDouble() * 160.0 - 80.0;
+            lon0[a] = rand.nextDouble() * 350.0 - 175.0;
+            vlat[a] = (rand.nextDouble() - 0.5) * 0.004;
+            vlon[a] = (rand.nextDouble() - 0.5) * 0.004;
+
+            for (int tick = 0; tick < ticks; tick++) {
+                CPREncoder.shared().encodeCPRairborne(lat0[a] + vlat[a] * tick * 0.5, lon0[a] + vlon[a] * tick * 0.5,
+                        (tick & 1) != 0, frames[tick], a * 2);
+            }
+        }
+
+        for (int t = 0; t < workers.length; t++) {
+            final int parity = t & 1;
+            final int part = t >> 1;
+
+            workers[t] = new Thread(() -> {
+                double[] pos = new double[2];
+
+                // every thread meets the barrier the same number of times, whatever the parity of ticks
+                for (int r = 0; r < rounds; r++) {
+                    int tick = r * 2 + parity;
+
+                    // each round, the even and odd threads race over the same aircraft
+                    try {
+                        round.await(60L, TimeUnit.SECONDS);
+                    } catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+                        ok.set(false);
+                        return;
+                    }
+
+                    for (int a = part; a < fleet && tick < ticks; a += per) {
+                        int status = tracker.update(0x400000 + a, tick * 500L,
+                                frames[tick][a * 2], frames[tick][a * 2 + 1], parity != 0, false, pos, 0);
+
+                        if (status == CPRStatus.OK) {
+                            double lat = lat0[a] + vlat[a] * tick * 0.5;
+                            double lon = lon0[a] + vlon[a] * tick * 0.5;
+
+                            // the pair may be a round apart, as the threads race
+                            if (!near(pos[0], lat, 0.05, 360.0) || !near(pos[1], lon, 0.05, 360.0)) {
+                                ok.set(false);
+                            }
+                        } else if (status != CPRStatus.NO_PAIR && status != CPRStatus.AIRBORNE_CROSSED_ZONE) {
+                            // pairs far apart in time may straddle a zone boundary, nothing else should fail
+                            ok.set(false);
+                        }
+                    }
+                }
+            });
+
+            workers[t].start();
+        }
+
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                ok.set(false);
+            }
+        }
+
+        double[] pos = new double[2];
+
+        for (int a = 0; a < fleet; a++) {
+            if (!tracker.getPosition(0x400000 + a, pos, 0)
+                    || !near(pos[0], lat0[a] + vlat[a] * ticks * 0.5, 0.05, 360.0)) {
+                ok.set(false);
+            }
+        }
+
+        if (tracker.size() != fleet) {
+            ok.set(false);
+        }
+
+        System.out.printf("testConcurrentCPRTracker:  %s\n", ok.get() ? "PASS" : "FAIL");
+
+        return ok.get();
+    }
+
+    /*
+     * A published airborne pair (ICAO 40621D), read from hex lines
+     */
+    private static boolean testCPRFrames() {
+        byte[] text = ("*8D40621D58C382D690C8AC2863A7;\n"
+                + "8D40621D58C386435CC412692AD6\r\n").getBytes(StandardCharsets.US_ASCII);
+        final List<byte[]> frames = new ArrayList<>();
+        CPRFrameScanner scanner = new CPRFrameScanner(CPRFrameScanner.HEX);
+        boolean ok;
+
+        scanner.scan(ByteBuffer.wrap(text), 0, text.length, true, (timestamp, frame) -> frames.add(frame.clone()));
+
+        ok = frames.size() == 2;
+
+        for (int i = 0; ok && i < 2; i++) {
+            byte[] f = frames.get(i);
+
+            ok = CPRFrame.checkCRC(f, 0) && CPRFrame.downlinkFormat(f, 0) == 17
+                    && CPRFrame.address(f, 0) == 0x40621D && CPRFrame.typeCode(f, 0) == 11
+                    && CPRFrame.fflag(f, 0) == (i == 1);
+        }
+
+        if (ok) {
+            byte[] even = frames.get(0), odd = frames.get(1);
+            byte[] copy = new byte[CPRFrame.LENGTH];
+
+            ok = CPRFrame.cprLat(even, 0) == 93000 && CPRFrame.cprLon(even, 0) == 51372
+                    && CPRFrame.cprLat(odd, 0) == 74158 && CPRFrame.cprLon(odd, 0) == 50194;
+
+            try {
+                LatLon ll = cpr.decodeCPRairborne(93000, 51372, 74158, 50194, false);
+
+                ok &= near(ll.getLat(), 52.2572, 1e-4, 360.0) && near(ll.getLon(), 3.91937, 1e-4, 360.0);
+            } catch (CPRException e) {
+                ok = false;
+            }
+
+            // the fields written back read the same, and damage fails the CRC
+            CPRFrame.writePosition(0x40621D, 11, true, 74158, 50194, copy, 0);
+            ok &= CPRFrame.checkCRC(copy, 0) && CPRFrame.cprLat(copy, 0) == 74158 && CPRFrame.cprLon(copy, 0) == 50194;
+            copy[9] ^= 0x10;
+            ok &= CPRFrame.checkCRC(copy, 0) == false;
+        }
+
+        System.out.printf("testCPRFrames:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    private static void beastRecord(ByteArrayOutputStream out, int type, long timestamp, int signal, byte[] data, int length) {
+        byte[] record = new byte[7 + length];
+
+        for (int k = 0; k < 6; k++) {
+            record[k] = (byte) (timestamp >>> (40 - 8 * k));
+        }
+
+        record[6] = (byte) signal;
+        System.arraycopy(data, 0, record, 7, length);
+        out.write(0x1a);
+        out.write(type);
+
+        for (byte b : record) {
+            out.write(b);
+
+            if (b == 0x1a) {
+                out.write(b);
+            }
+        }
+    }
+
+    private static String hex(byte[] data) {
+        StringBuilder sb = new StringBuilder();
+
+        for (byte b : data) {
+            sb.append(String.format("%02X", b & 0xFF));
+        }
+
+        return sb.toString();
+    }
+
+    /*
+     * Write a simulated fleet to hex and Beast captures, with junk mixed
+     * in, and decode them through small windows. The positions must be
+     * those a tracker gives for the same frames.
+     */
+    private static String position(int key, long time, double lat, double lon, boolean surface) {
+        return String.format("%06X %d %s %s %b", key, time, lat, lon, surface);
+    }
+
+    /*
+     * Write a simulated fleet to hex and Beast captures, with junk mixed
+     * in, and decode them through small windows. The positions must be
+     * those a tracker gives for the same frames at the same times.
+     */
+    private static boolean testCPRFileDecoder() {
+        final int fleet = 300;
+        CPREncoder enc = CPREncoder.shared();
+        CPRTracker hexRef = new CPRTracker(fleet), beastRef = new CPRTracker(fleet);
+        StringBuilder hex = new StringBuilder();
+        ByteArrayOutputStream beast = new ByteArrayOutputStream();
+        List<String> hexPositions = new ArrayList<>(), beastPositions = new ArrayList<>();
+        Random rand = new Random(1090L);
+        double[] pos = new double[2];
+        int[] cpr17 = new int[2];
+        byte[] frame = new byte[CPRFrame.LENGTH];
+        long hexTime = 0L;
+        int frames = 0, corrupt = 0, n = 0;
+        boolean ok = true;
+
+        hexRef.setReceiver(52.0, 0.0);
+        beastRef.setReceiver(52.0, 0.0);
+
+        for (int tick = 0; tick < 40; tick++) {
+            boolean fflag = (tick & 1) != 0;
+
+            for (int a = 0; a < fleet; a++, n++) {
+                int key = 0x400000 + a;
+                long time = tick * 500L + a;
+                boolean surface = (a % 10) == 0;
+                double lat, lon;
+
+                if (surface) {
+                    lat = 51.5 + a * 0.003 + tick * 0.00001;
+                    lon = -0.5 + a * 0.003;
+                    enc.encodeCPRsurface(lat, lon, fflag, cpr17, 0);
+                } else {
+                    lat = -80.0 + a * 0.53 + tick * 0.001;
+                    lon = -175.0 + a * 1.17 + tick * 0.001;
+                    enc.encodeCPRairborne(lat, lon, fflag, cpr17, 0);
+                }
+
+                CPRFrame.writePosition(key, surface ? 6 : 11, fflag, cpr17[0], cpr17[1], frame, 0);
+                frames++;
+
+                // every 7th hex line has no timestamp, so keeps the last time
+                if (n % 7 == 3) {
+                    hex.append('*').append(hex(frame)).append(";\n");
+                } else {
+                    hexTime = time;
+                    hex.append(String.format("@%012X%s;\r\n", time * 12000L, hex(frame)));
+                }
+
+                beastRecord(beast, '3', time * 12000L, n & 0xFF, frame, CPRFrame.LENGTH);
+
+                if (hexRef.update(key, hexTime, cpr17[0], cpr17[1], fflag, surface, pos, 0) == CPRStatus.OK) {
+                    hexPositions.add(position(key, hexTime, pos[0], pos[1], surface));
+                }
+
+                if (beastRef.update(key, time, cpr17[0], cpr17[1], fflag, surface, pos, 0) == CPRStatus.OK) {
+                    beastPositions.add(position(key, time, pos[0], pos[1], surface));
+                }
+
+                // junk, short frames, a cut off record and a damaged frame
+                if (n % 97 == 0) {
+                    byte[] bad = frame.clone();
+
+                    bad[rand.nextInt(11)] ^= (byte) (1 << rand.nextInt(8));
+                    hex.append("\n  garbage\n*5D4840D6F2A9F3;\n*").append(hex(bad)).append(";\n");
+                    beast.write('x');
+                    beastRecord(beast, '1', 0L, 0, frame, 2);
+                    beastRecord(beast, '2', 0L, 0, frame, 7);
+                    beast.write(0x1a);
+                    beast.write('3');
+                    beast.write(1);
+                    beastRecord(beast, '3', time * 12000L, 0, bad, CPRFrame.LENGTH);
+                    frames++;
+                    corrupt++;
+                }
+            }
+        }
+
+        Path file = null;
+
+        try {
+            file = Files.createTempFile("cpr", ".bin");
+
+            for (int format = CPRFrameScanner.HEX; format <= CPRFrameScanner.BEAST && ok; format++) {
+                final List<String> got = new ArrayList<>();
+                List<String> want = (format == CPRFrameScanner.HEX) ? hexPositions : beastPositions;
+                CPRTracker tracker = new CPRTracker(fleet);
+                CPRFileDecoder decoder = new CPRFileDecoder(format, tracker, 100);
+
+                Files.write(file, (format == CPRFrameScanner.HEX)
+                        ? hex.toString().getBytes(StandardCharsets.US_ASCII) : beast.toByteArray());
+                tracker.setReceiver(52.0, 0.0);
+                decoder.setMapSize(4096);
+                decoder.decode(file, (CPRPositions chunk) -> {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        got.add(position(chunk.getAddresses()[i], chunk.getTimes()[i], chunk.getLats()[i],
+                                chunk.getLons()[i], chunk.getSurface()[i]));
+                    }
+                });
+
+                ok = decoder.getFrames() == frames && decoder.getCorruptFrames() == corrupt
+                        && decoder.getPositionFrames() == frames - corrupt && decoder.getPositions() == got.size()
+                        && got.size() > fleet * 38 && got.equals(want);
+
+                if (!ok) {
+                    System.out.printf("testCPRFileDecoder[%d]:  FAIL %d/%d frames, %d/%d corrupt, %d/%d positions\n",
+                            format, decoder.getFrames(), frames, decoder.getCorruptFrames(), corrupt, got.size(), want.size());
+                }
+            }
+        } catch (IOException e) {
+            ok = false;
+            System.out.printf("testCPRFileDecoder:  FAIL %s\n", e);
+        } finally {
+            if (file != null) {
+                file.toFile().delete();
+            }
+        }
+
+        System.out.printf("testCPRFileDecoder:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    /*
+     * A capture of a fleet reporting in random order, some with no
+     * timestamp, with damaged frames and junk
+     */
+    private static byte[] capture(int format, int fleet, int frames, long seed) {
+        CPREncoder enc = CPREncoder.shared();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Random rand = new Random(seed);
+        int[] cpr17 = new int[2];
+        byte[] frame = new byte[CPRFrame.LENGTH];
+
+        for (int i = 0; i < frames; i++) {
+            int a = rand.nextInt(fleet);
+            long time = i * 3L;
+            boolean fflag = rand.nextBoolean();
+            boolean surface = (a % 10) == 0;
+            double lat = surface ? 51.5 + a * 0.0003 : -80.0 + a * (160.0 / fleet) + i * 1e-6;
+            double lon = surface ? -0.5 + a * 0.0003 : -175.0 + a * (350.0 / fleet) + i * 1e-6;
+
+            if (surface) {
+                enc.encodeCPRsurface(lat, lon, fflag, cpr17, 0);
+            } else {
+                enc.encodeCPRairborne(lat, lon, fflag, cpr17, 0);
+            }
+
+            CPRFrame.writePosition(0x400000 + a, surface ? 7 : 12, fflag, cpr17[0], cpr17[1], frame, 0);
+
+            if (rand.nextInt(50) == 0) {
+                frame[rand.nextInt(11)] ^= (byte) (1 << rand.nextInt(8));
+            }
+
+            if (format == CPRFrameScanner.HEX) {
+                String line = (rand.nextInt(5) == 0) ? "*" + hex(frame) + ";\n"
+                        : String.format("@%012X%s;\n", time * 12000L, hex(frame));
+
+                out.write(line.getBytes(StandardCharsets.US_ASCII), 0, line.length());
+
+                if (rand.nextInt(100) == 0) {
+                    out.write('#');
+                    out.write('\n');
+                }
+            } else {
+                beastRecord(out, '3', time * 12000L, rand.nextInt(256), frame, CPRFrame.LENGTH);
+
+                if (rand.nextInt(100) == 0) {
+                    out.write(0x1a);            // a record cut short
+                    out.write('3');
+                    out.write(0x1a);
+                    out.write(0x1a);
+                } else if (rand.nextInt(100) == 0) {
+                    out.write(0x1a);            // an unknown record, holding what looks like a frame
+                    out.write('4');
+                    out.write(0x1a);
+                    out.write(0x1a);
+                    out.write('3');
+
+                    for (int k = 0; k < 25; k++) {
+                        out.write(0x20 + rand.nextInt(64));
+                    }
+                }
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    /*
+     * A parallel replay, over many small chunks, must give the same
+     * chunks of positions and the same counts as the sequential decoder
+     */
+    private static boolean testCPRReplay() {
+        final int fleet = 2000;
+        ForkJoinPool pool = new ForkJoinPool(4);
+        Path file = null;
+        boolean ok = true;
+
+        try {
+            file = Files.createTempFile("cpr", ".bin");
+
+            for (int format = CPRFrameScanner.HEX; format <= CPRFrameScanner.BEAST && ok; format++) {
+                final List<String> want = new ArrayList<>(), got = new ArrayList<>();
+                CPRFileDecoder decoder = new CPRFileDecoder(format, receiverTracker(fleet), 1000);
+                CPRReplay replay = new CPRReplay(format, 16, () -> receiverTracker(fleet), 1000);
+
+                Files.write(file, capture(format, fleet, 100000, 1090L + format));
+                decoder.decode(file, (CPRPositions chunk) -> want.add(chunkText(chunk)));
+                replay.setPool(pool);
+                replay.setChunkBytes(4096);
+                replay.decode(file, (CPRPositions chunk) -> got.add(chunkText(chunk)));
+
+                ok = got.equals(want) && replay.getFrames() == decoder.getFrames()
+                        && replay.getCorruptFrames() == decoder.getCorruptFrames()
+                        && replay.getPositionFrames() == decoder.getPositionFrames()
+                        && replay.getPositions() == decoder.getPositions()
+                        && decoder.getPositions() > 80000 && decoder.getCorruptFrames() > 1000;
+
+                if (!ok) {
+                    System.out.printf("testCPRReplay[%d]:  FAIL %d/%d chunks, %d/%d positions\n", format,
+                            got.size(), want.size(), replay.getPositions(), decoder.getPositions());
+                }
+            }
+        } catch (IOException e) {
+            ok = false;
+            System.out.printf("testCPRReplay:  FAIL %s\n", e);
+        } finally {
+            pool.shutdown();
+
+            if (file != null) {
+                file.toFile().delete();
+            }
+        }
+
+        System.out.printf("testCPRReplay:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    private static CPRTracker receiverTracker(int fleet) {
+        CPRTracker tracker = new CPRTracker(fleet);
+
+        tracker.setReceiver(52.0, 0.0);
+
+        return tracker;
+    }
+
+    private static boolean testCPRReferenceCache() {
+        boolean ok = true;
+        double[] pos = new double[2];
+        double[] want = new double[2];
+        CPRReferenceCache cache = new CPRReferenceCache(1000, 10000L);
+
+        // lookups, ageing and removal
+
+        cache.put(0x400001, 1000L, 51.5, -0.5);
+        ok &= cache.get(0x400001, 11000L, pos, 0) && pos[0] == 51.5 && pos[1] == -0.5;
+        ok &= !cache.get(0x400001, 11001L, pos, 0);
+        ok &= !cache.get(0x400002, 1000L, pos, 0);
+        cache.put(0x400001, 500L, 10.0, 10.0);      // older, ignored
+        ok &= cache.get(0x400001, 1000L, pos, 0) && pos[0] == 51.5;
+        ok &= cache.remove(0x400001) && !cache.remove(0x400001) && !cache.get(0x400001, 1000L, pos, 0);
+
+        // the size stays bounded, and recent aircraft survive
+
+        for (int a = 0; a < 100000; a++) {
+            cache.put(a, a, a % 80, a % 170);
+        }
+
+        ok &= cache.capacity() == 1024 && cache.size(100000L) <= 1024;
+
+        int recent = 0;
+
+        for (int a = 100000 - 256; a < 100000; a++) {
+            if (cache.get(a, 100000L, pos, 0) && pos[0] == a % 80 && pos[1] == a % 170) {
+                recent++;
+            }
+        }
+
+        ok &= recent == 256;
+
+        // decodes match the plain decoder, and refresh the reference
+
+        CPRReferenceCache decoder = new CPRReferenceCache(64, 10000L);
+        int[] frames = new int[4];
+
+        CPREncoder.shared().encodeCPRairborne(52.25, 3.92, false, frames, 0);
+        CPREncoder.shared().encodeCPRairborne(52.26, 3.93, true, frames, 2);
+        ok &= decoder.decodeRelative(0x40621D, 0L, frames[2], frames[3], true, false, pos, 0)
+                == CPRStatus.NO_REFERENCE;
+        ok &= decoder.decodeAirborne(0x40621D, 0L, frames[0], frames[1], frames[2], frames[3], true, pos, 0)
+                == CPRStatus.OK;
+        ok &= cpr.tryDecodeCPRairborne(frames[0], frames[1], frames[2], frames[3], true, want, 0) == CPRStatus.OK
+                && pos[0] == want[0] && pos[1] == want[1];
+
+        CPREncoder.shared().encodeCPRairborne(52.27, 3.94, false, frames, 0);
+        ok &= cpr.tryDecodeCPRrelative(want[0], want[1], frames[0], frames[1], false, false, want, 0) == CPRStatus.OK;
+        ok &= decoder.decodeRelative(0x40621D, 1000L, frames[0], frames[1], false, false, pos, 0) == CPRStatus.OK
+                && pos[0] == want[0] && pos[1] == want[1];
+        ok &= decoder.get(0x40621D, 1000L, pos, 0) && pos[0] == want[0] && pos[1] == want[1];
+
+        // surface decodes fall back to the receiver location
+
+        CPREncoder.shared().encodeCPRsurface(51.99, 4.37, false, frames, 0);
+        CPREncoder.shared().encodeCPRsurface(51.99, 4.37, true, frames, 2);
+        ok &= decoder.decodeSurface(0x484000, 0L, frames[0], frames[1], frames[2], frames[3], true, pos, 0)
+                == CPRStatus.NO_REFERENCE;
+        decoder.setReceiver(52.0, 4.0);
+        ok &= decoder.decodeSurface(0x484000, 0L, frames[0], frames[1], frames[2], frames[3], true, pos, 0)
+                == CPRStatus.OK && near(pos[0], 51.99, 0.001, 360.0) && near(pos[1], 4.37, 0.001, 360.0);
+
+        // readers never see a half written entry
+
+        final CPRReferenceCache shared = new CPRReferenceCache(16, Long.MAX_VALUE);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread writer = new Thread(() -> {
+            for (long n = 1; running.get(); n++) {
+                shared.put((int) (n & 31), n, n, -n);
+            }
+        });
+
+        writer.start();
+
+        for (int n = 0; n < 2000000; n++) {
+            if (shared.get(n & 31, Long.MAX_VALUE, pos, 0) && pos[1] != -pos[0]) {
+                ok = false;
+            }
+        }
+
+        running.set(false);
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            ok = false;
+        }
+
+        System.out.printf("testCPRReferenceCache:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    /*
+     * Site decodes against CPR.tryDecodeCPRrelative(), bit for bit, for
+     * random sites (and the awkward ones) and frames from all over
+     */
+    private static boolean testCPRSiteDecoder() {
+        double[][] sites = new double[200][];
+        double[] pos = new double[2];
+        double[] want = new double[2];
+        int[] f = new int[2];
+        Random rand = new Random(1090015L);
+        boolean ok = true;
+        int decoded = 0;
+
+        double[][] fixed = {{0.0, 0.0}, {90.0, 180.0}, {-90.0, -180.0}, {87.0, 179.999}, {-86.99, 0.001},
+            {52.0, 4.0}, {51.5, -0.5}, {-33.9, 151.2}};
+
+        for (int s = 0; s < sites.length; s++) {
+            sites[s] = (s < fixed.length) ? fixed[s]
+                    : new double[]{rand.nextDouble() * 180.0 - 90.0, rand.nextDouble() * 360.0 - 180.0};
+        }
+
+        for (double[] site : sites) {
+            CPRSiteDecoder decoder = new CPRSiteDecoder(site[0], site[1]);
+
+            for (int n = 0; n < 4000; n++) {
+                boolean fflag = rand.nextBoolean();
+                boolean surface = rand.nextBoolean();
+
+                if ((n & 1) == 0) {
+                    // nearby traffic, mostly decodable
+                    double lat = Math.max(-90.0, Math.min(90.0, site[0] + rand.nextGaussian() * 2.0));
+                    double lon = site[1] + rand.nextGaussian() * 2.0;
+
+                    if (surface) {
+                        CPREncoder.shared().encodeCPRsurface(lat, lon, fflag, f, 0);
+                    } else {
+                        CPREncoder.shared().encodeCPRairborne(lat, lon, fflag, f, 0);
+                    }
+                } else {
+                    f[0] = rand.nextInt(131072);
+                    f[1] = rand.nextInt(131072);
+                }
+
+                int expect = cpr.tryDecodeCPRrelative(site[0], site[1], f[0], f[1], fflag, surface, want, 0);
+                int status = decoder.decode(f[0], f[1], fflag, surface, pos, 0);
+
+                if (status != expect || (status == CPRStatus.OK
+                        && (Double.doubleToLongBits(pos[0]) != Double.doubleToLongBits(want[0])
+                        || Double.doubleToLongBits(pos[1]) != Double.doubleToLongBits(want[1])))) {
+                    System.out.printf("  site %f,%f frame %d,%d %s %s: %d %f,%f expected %d %f,%f\n",
+                            site[0], site[1], f[0], f[1], fflag ? "odd" : "even", surface ? "surface" : "airborne",
+                            status, pos[0], pos[1], expect, want[0], want[1]);
+                    ok = false;
+                }
+
+                if (status == CPRStatus.OK) {
+                    decoded++;
+                }
+            }
+        }
+
+        // a batch matches the single decodes
+        CPRSiteDecoder decoder = new CPRSiteDecoder(52.0, 4.0);
+        int[] cprlat = new int[100], cprlon = new int[100];
+        boolean[] fflags = new boolean[100], surfaces = new boolean[100];
+        double[] lats = new double[100], lons = new double[100];
+        byte[] status = new byte[100];
+        int good = 0;
+
+        for (int i = 0; i < 100; i++) {
+            fflags[i] = (i & 1) != 0;
+            surfaces[i] = (i & 2) != 0;
+            CPREncoder.shared().encodeCPRairborne(52.0 + (i - 50) * 0.05, 4.0, fflags[i], f, 0);
+            cprlat[i] = f[0];
+            cprlon[i] = f[1];
+        }
+
+        int batch = decoder.decodeBatch(cprlat, cprlon, fflags, surfaces, lats, lons, status, 0, 100);
+
+        for (int i = 0; i < 100; i++) {
+            int res = decoder.decode(cprlat[i], cprlon[i], fflags[i], surfaces[i], pos, 0);
+
+            ok &= status[i] == res;
+            ok &= (res == CPRStatus.OK) ? (lats[i] == pos[0] && lons[i] == pos[1]) : Double.isNaN(lats[i]);
+            good += (res == CPRStatus.OK) ? 1 : 0;
+        }
+
+        ok &= batch == good && good > 0 && decoded > sites.length * 1000;
+
+        System.out.printf("testCPRSiteDecoder:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    /*
+     * The decoders as they were, with Math.floor() and Math.IEEEremainder()
+     * throughout, to check the faster arithmetic against
+     */
+    private static double legacyMod(double a, double b) {
+        double res = Math.IEEEremainder(a, b);
+
+        return (res < 0.0) ? res + b : res;
+    }
+
+    private static double legacyDlon(double lat, boolean fflag, boolean surface) {
+        return ((surface == true) ? 90.0 : 360.0) / Math.max(cpr.cprNLFunction(lat) - ((fflag == true) ? 1 : 0), 1);
+    }
+
+    private static int legacyMod(int a, int b) {
+        int res = a % b;
+
+        return (res < 0) ? res + b : res;
+    }
+
+    private static int legacyGlobal(double reflat, double reflon, int even_cprlat, int even_cprlon,
+            int odd_cprlat, int odd_cprlon, boolean fflag, boolean surface, double[] out) {
+        double span = (surface == true) ? 90.0 : 360.0;
+        double lat0 = even_cprlat, lat1 = odd_cprlat, lon0 = even_cprlon, lon1 = odd_cprlon;
+        int j = (int) Math.floor(((59.0 * lat0 - 60.0 * lat1) / 131072.0) + 0.5);
+        double rlat0 = span / 60.0 * (legacyMod(j, 60) + lat0 / 131072.0);
+        double rlat1 = span / 59.0 * (legacyMod(j, 59) + lat1 / 131072.0);
+        double rlat, rlon;
+
+        if (surface == false) {
+            rlat0 -= (rlat0 >= 270.0) ? 360.0 : 0.0;
+            rlat1 -= (rlat1 >= 270.0) ? 360.0 : 0.0;
+        } else {
+            if (rlat0 == 0.0) {
+                rlat0 = (reflat < -45.0) ? -90.0 : (reflat > 45.0) ? 90.0 : rlat0;
+            } else if ((rlat0 - reflat) > 45.0) {
+                rlat0 -= 90.0;
+            }
+
+            if (rlat1 == 0.0) {
+                rlat1 = (reflat < -45.0) ? -90.0 : (reflat > 45.0) ? 90.0 : rlat1;
+            } else if ((rlat1 - reflat) > 45.0) {
+                rlat1 -= 90.0;
+            }
+        }
+
+        if ((rlat0 < -90.0) || (rlat0 > 90.0) || (rlat1 < -90.0) || (rlat1 > 90.0)) {
+            return surface ? CPRStatus.BAD_SURFACE_LATITUDE : CPRStatus.BAD_AIRBORNE_LATITUDE;
+        }
+
+        if (cpr.cprNLFunction(rlat0) != cpr.cprNLFunction(rlat1)) {
+            return surface ? CPRStatus.SURFACE_CROSSED_ZONE : CPRStatus.AIRBORNE_CROSSED_ZONE;
+        }
+
+        rlat = fflag ? rlat1 : rlat0;
+
+        int nl = cpr.cprNLFunction(rlat);
+        int ni = Math.max(nl - (fflag ? 1 : 0), 1);
+        int m = (int) Math.floor((((lon0 * (nl - 1)) - (lon1 * nl)) / 131072.0) + 0.5);
+
+        rlon = legacyDlon(rlat, fflag, surface) * (legacyMod(m, ni) + (fflag ? lon1 : lon0) / 131072.0);
+
+        if (surface == true) {
+            rlon += Math.floor((reflon - rlon + 45.0) / 90.0) * 90.0;
+        }
+
+        rlon -= Math.floor((rlon + 180.0) / 360.0) * 360.0;
+        out[0] = rlat;
+        out[1] = rlon;
+        return CPRStatus.OK;
+    }
+
+    private static int legacyRelative(double reflat, double reflon, int cprlat, int cprlon,
+            boolean fflag, boolean surface, double[] out) {
+        double AirDlat = ((surface == true) ? 90.0 : 360.0) / ((fflag == true) ? 59.0 : 60.0);
+        double fractional_lat = cprlat / 131072.0;
+        double fractional_lon = cprlon / 131072.0;
+        int j = (int) (Math.floor(reflat / AirDlat)
+                + Math.floor(0.5 + legacyMod(reflat, AirDlat) / AirDlat - fractional_lat));
+        double rlat = AirDlat * (j + fractional_lat);
+
+        rlat -= (rlat >= 270.0) ? 360.0 : 0.0;
+
+        if ((rlat < -90.0) || (rlat > 90.0) || Math.abs(rlat - reflat) > (AirDlat / 2.0)) {
+            return CPRStatus.RELATIVE_LATITUDE_ERROR;
+        }
+
+        double AirDlon = legacyDlon(rlat, fflag, surface);
+        int m = (int) (Math.floor(reflon / AirDlon)
+                + Math.floor(0.5 + legacyMod(reflon, AirDlon) / AirDlon - fractional_lon));
+        double rlon = AirDlon * (m + fractional_lon);
+
+        rlon -= (rlon > 180.0) ? 360.0 : 0.0;
+
+        if (Math.abs(rlon - reflon) > (AirDlon / 2.0)) {
+            return CPRStatus.RELATIVE_LONGITUDE_ERROR;
+        }
+
+        out[0] = rlat;
+        out[1] = rlon;
+        return CPRStatus.OK;
+    }
+
+    private static boolean same(int status, double[] pos, int expect, double[] want) {
+        return status == expect && (status != CPRStatus.OK
+                || (Double.doubleToLongBits(pos[0]) == Double.doubleToLongBits(want[0])
+                && Double.doubleToLongBits(pos[1]) == Double.doubleToLongBits(want[1])));
+    }
+
+    /*
+     * The integer zone indexes and the replacements for Math.floor() and
+     * Math.IEEEremainder() give the same results as the legacy decoders:
+     * every raw latitude and longitude value in every zone setting, then
+     * random frames, and references on and around the half-zone ties
+     * where IEEEremainder() rounds
+     */
+    private static boolean testCPRMath() {
+        double[] pos = new double[2];
+        double[] want = new double[2];
+        Random rand = new Random(1090016L);
+        boolean ok = true;
+        int failed = 0;
+
+        // every 17 bit value, against fixed partners, in each global and relative mode
+        for (int v = 0; v < 131072; v++) {
+            int w = (v * 40503) & 131071;
+            boolean fflag = (v & 1) != 0;
+
+            for (int surface = 0; surface < 2; surface++) {
+                double reflat = (v % 180) - 89.5, reflon = (v % 360) - 179.5;
+                int s1 = cpr.tryDecodeCPRairborne(v, w, w ^ 0x5555, v ^ 0xAAAA, fflag, pos, 0);
+                int e1 = legacyGlobal(0.0, 0.0, v, w, w ^ 0x5555, v ^ 0xAAAA, fflag, false, want);
+
+                if (surface != 0) {
+                    s1 = cpr.tryDecodeCPRsurface(reflat, reflon, v, w, w ^ 0x5555, v ^ 0xAAAA, fflag, pos, 0);
+                    e1 = legacyGlobal(reflat, reflon, v, w, w ^ 0x5555, v ^ 0xAAAA, fflag, true, want);
+                }
+
+                failed += same(s1, pos, e1, want) ? 0 : 1;
+                failed += same(cpr.tryDecodeCPRrelative(reflat, reflon, v, w, fflag, surface != 0, pos, 0), pos,
+                        legacyRelative(reflat, reflon, v, w, fflag, surface != 0, want), want) ? 0 : 1;
+            }
+        }
+
+        // random frames, and references near the ties of every zone size
+        for (int n = 0; n < 2000000; n++) {
+            boolean fflag = rand.nextBoolean();
+            boolean surface = rand.nextBoolean();
+            int[] f = {rand.nextInt(131072), rand.nextInt(131072), rand.nextInt(131072), rand.nextInt(131072)};
+            double reflat, reflon;
+
+            if ((n & 1) == 0) {
+                reflat = rand.nextDouble() * 180.0 - 90.0;
+                reflon = rand.nextDouble() * 360.0 - 180.0;
+            } else {
+                double dlat = ((surface == true) ? 90.0 : 360.0) / ((fflag == true) ? 59.0 : 60.0);
+                double dlon = ((surface == true) ? 90.0 : 360.0) / (1 + rand.nextInt(59));
+
+                reflat = (rand.nextInt(30) - 15 + 0.5 * rand.nextInt(2)) * dlat;
+                reflon = (rand.nextInt(60) - 30 + 0.5 * rand.nextInt(2)) * dlon;
+
+                for (int u = rand.nextInt(7) - 3; u != 0; u -= Integer.signum(u)) {
+                    reflat = (u > 0) ? Math.nextUp(reflat) : Math.nextDown(reflat);
+                    reflon = (u > 0) ? Math.nextUp(reflon) : Math.nextDown(reflon);
+                }
+            }
+
+            failed += same(cpr.tryDecodeCPRrelative(reflat, reflon, f[0], f[1], fflag, surface, pos, 0), pos,
+                    legacyRelative(reflat, reflon, f[0], f[1], fflag, surface, want), want) ? 0 : 1;
+
+            int status = (surface == true)
+                    ? cpr.tryDecodeCPRsurface(reflat, reflon, f[0], f[1], f[2], f[3], fflag, pos, 0)
+                    : cpr.tryDecodeCPRairborne(f[0], f[1], f[2], f[3], fflag, pos, 0);
+
+            failed += same(status, pos, legacyGlobal(reflat, reflon, f[0], f[1], f[2], f[3], fflag, surface, want),
+                    want) ? 0 : 1;
+        }
+
+        // raw values outside 17 bits still go through the same arithmetic
+        int[] odd = {-1, -131072, 131072, 262143, Integer.MAX_VALUE, Integer.MIN_VALUE, 1 << 30};
+
+        for (int a : odd) {
+            for (int b : odd) {
+                failed += same(cpr.tryDecodeCPRairborne(a, b, b, a, true, pos, 0), pos,
+                        legacyGlobal(0.0, 0.0, a, b, b, a, true, false, want), want) ? 0 : 1;
+                failed += same(cpr.tryDecodeCPRrelative(10.0, 20.0, a, b, false, false, pos, 0), pos,
+                        legacyRelative(10.0, 20.0, a, b, false, false, want), want) ? 0 : 1;
+            }
+        }
+
+        ok = failed == 0;
+
+        if (!ok) {
+            System.out.printf("  %d decodes differ\n", failed);
+        }
+
+        System.out.printf("testCPRMath:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    /*
+     * One fixed point decode against the double decoder: identical in exact
+     * mode; in fast mode the same status and within a unit, unless edge is
+     * set, as the double decoder can slip a zone for a reference right on a
+     * zone edge. Returns the number of modes that differ.
+     */
+    private static int fixedCheck(boolean edge, int[] fast, int fastStatus, int[] exact, int exactStatus, int status,
+            double[] pos) {
+        int lat = CPRFixedDecoder.fromDegrees(pos[0]);
+        int lon = CPRFixedDecoder.fromDegrees(pos[1]);
+
+        if (exactStatus != status || (status == CPRStatus.OK && (exact[0] != lat || exact[1] != lon))) {
+            return 1;
+        }
+
+        if (!edge && (fastStatus != status || (status == CPRStatus.OK
+                && (Math.abs(fast[0] - lat) > 1 || Math.abs(fast[1] - lon) > 1)))) {
+            return 1;
+        }
+
+        return 0;
+    }
+
+    private static boolean testCPRFixedDecoder() {
+        CPRFixedDecoder fast = CPRFixedDecoder.shared(false);
+        CPRFixedDecoder exact = CPRFixedDecoder.shared(true);
+        int[] a = new int[2];
+        int[] b = new int[2];
+        int[] f = new int[4];
+        double[] pos = new double[2];
+        Random rand = new Random(1090017L);
+        int bad = 0;
+
+        // every 17 bit value, and random frames and references, some on zone edges
+        for (int v = 0; v < 131072 * 4; v++) {
+            boolean fflag = rand.nextBoolean();
+            boolean surface = rand.nextBoolean();
+            boolean edge = rand.nextInt(4) == 0;
+            int reflat, reflon;
+
+            for (int k = 0; k < 4; k++) {
+                f[k] = rand.nextInt(131072);
+            }
+
+            f[v & 3] = v >> 2;
+
+            if (edge) {
+                double dlat = ((surface == true) ? 90.0 : 360.0) / ((fflag == true) ? 59.0 : 60.0);
+                double dlon = ((surface == true) ? 90.0 : 360.0) / (1 + rand.nextInt(59));
+
+                reflat = CPRFixedDecoder.fromDegrees((rand.nextInt(30) - 15 + 0.5 * rand.nextInt(2)) * dlat)
+                        + rand.nextInt(3) - 1;
+                reflon = CPRFixedDecoder.fromDegrees((rand.nextInt(60) - 30 + 0.5 * rand.nextInt(2)) * dlon)
+                        + rand.nextInt(3) - 1;
+            } else {
+                reflat = rand.nextInt(1800000001) - 900000000;
+                reflon = rand.nextInt(2000000001) - 1000000000;
+                reflon += (reflon < 0) ? -800000000 : 800000000;
+            }
+
+            double rlat = CPRFixedDecoder.toDegrees(reflat), rlon = CPRFixedDecoder.toDegrees(reflon);
+
+            bad += fixedCheck(edge, a, fast.decodeRelative(reflat, reflon, f[0], f[1], fflag, surface, a, 0),
+                    b, exact.decodeRelative(reflat, reflon, f[0], f[1], fflag, surface, b, 0),
+                    cpr.tryDecodeCPRrelative(rlat, rlon, f[0], f[1], fflag, surface, pos, 0), pos);
+
+            if (surface == true) {
+                bad += fixedCheck(edge, a, fast.decodeSurface(reflat, reflon, f[0], f[1], f[2], f[3], fflag, a, 0),
+                        b, exact.decodeSurface(reflat, reflon, f[0], f[1], f[2], f[3], fflag, b, 0),
+                        cpr.tryDecodeCPRsurface(rlat, rlon, f[0], f[1], f[2], f[3], fflag, pos, 0), pos);
+            } else {
+                bad += fixedCheck(edge, a, fast.decodeAirborne(f[0], f[1], f[2], f[3], fflag, a, 0),
+                        b, exact.decodeAirborne(f[0], f[1], f[2], f[3], fflag, b, 0),
+                        cpr.tryDecodeCPRairborne(f[0], f[1], f[2], f[3], fflag, pos, 0), pos);
+            }
+        }
+
+        // real traffic, which mostly decodes
+        for (int k = 0; k < 200000; k++) {
+            double lat = rand.nextDouble() * 180.0 - 90.0, lon = rand.nextDouble() * 360.0 - 180.0;
+            boolean fflag = rand.nextBoolean();
+            boolean surface = rand.nextBoolean();
+            int reflat = CPRFixedDecoder.fromDegrees(lat + rand.nextGaussian() * 0.5);
+            int reflon = CPRFixedDecoder.fromDegrees(lon + rand.nextGaussian() * 0.5);
+
+            if (surface == true) {
+                CPREncoder.shared().encodeCPRsurface(lat, lon, false, f, 0);
+                CPREncoder.shared().encodeCPRsurface(lat, lon, true, f, 2);
+            } else {
+                CPREncoder.shared().encodeCPRairborne(lat, lon, false, f, 0);
+                CPREncoder.shared().encodeCPRairborne(lat, lon, true, f, 2);
+            }
+
+            double rlat = CPRFixedDecoder.toDegrees(reflat), rlon = CPRFixedDecoder.toDegrees(reflon);
+            int off = fflag ? 2 : 0;
+
+            bad += fixedCheck(false, a, fast.decodeRelative(reflat, reflon, f[off], f[off + 1], fflag, surface, a, 0),
+                    b, exact.decodeRelative(reflat, reflon, f[off], f[off + 1], fflag, surface, b, 0),
+                    cpr.tryDecodeCPRrelative(rlat, rlon, f[off], f[off + 1], fflag, surface, pos, 0), pos);
+            bad += (surface == true)
+                    ? fixedCheck(false, a, fast.decodeSurface(reflat, reflon, f[0], f[1], f[2], f[3], fflag, a, 0),
+                            b, exact.decodeSurface(reflat, reflon, f[0], f[1], f[2], f[3], fflag, b, 0),
+                            cpr.tryDecodeCPRsurface(rlat, rlon, f[0], f[1], f[2], f[3], fflag, pos, 0), pos)
+                    : fixedCheck(false, a, fast.decodeAirborne(f[0], f[1], f[2], f[3], fflag, a, 0),
+                            b, exact.decodeAirborne(f[0], f[1], f[2], f[3], fflag, b, 0),
+                            cpr.tryDecodeCPRairborne(f[0], f[1], f[2], f[3], fflag, pos, 0), pos);
+        }
+
+        // the published pair, in fixed point
+        boolean ok = fast.decodeAirborne(93000, 51372, 74158, 50194, false, a, 0) == CPRStatus.OK
+                && Math.abs(a[0] - 522572000) < 1000 && Math.abs(a[1] - 39193700) < 1000;
+
+        if (bad > 0) {
+            System.out.printf("  %d decodes differ\n", bad);
+            ok = false;
+        }
+
+        System.out.printf("testCPRFixedDecoder:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    private static boolean testCPRTrackStore() {
+        int n = 50000;
+        int[] keys = new int[n];
+        long[] times = new long[n];
+        int[] lats = new int[n];
+        int[] lons = new int[n];
+        boolean[] surface = new boolean[n];
+        CPRTrackStore store = new CPRTrackStore(1000, 1000);
+        Random rand = new Random(1090018L);
+        long time = 1500000000000L;
+        boolean ok = true;
+
+        // mostly in time order, with late points, and gaps longer than a segment's range
+        for (int i = 0; i < n; i++) {
+            time += (rand.nextInt(100) == 0) ? rand.nextInt(20000000) : rand.nextInt(500);
+            keys[i] = rand.nextInt(50) | ((rand.nextInt(10) == 0) ? CPRFrame.NON_ICAO : 0);
+            times[i] = (rand.nextInt(20) == 0) ? time - rand.nextInt(3000000) : time;
+            lats[i] = rand.nextInt(1800000001) - 900000000;
+            lons[i] = (int) (rand.nextLong() % 1800000001L);
+            surface[i] = rand.nextInt(8) == 0;
+            store.append(keys[i], times[i], lats[i], lons[i], surface[i]);
+        }
+
+        ok &= store.size() == n;
+
+        StringBuilder got = new StringBuilder();
+        CPRTrackStore.Visitor visitor = (key, t, lat, lon, surf)
+                -> got.append(position(key, t, lat, lon, surf)).append('\n');
+
+        for (int q = 0; q < 200 && ok; q++) {
+            long from = times[rand.nextInt(n)] - rand.nextInt(1000);
+            long to = from + rand.nextInt(10000000);
+            int key = (q % 2 == 0) ? -1 : keys[rand.nextInt(n)];
+            StringBuilder expected = new StringBuilder();
+            int count = 0;
+
+            for (int i = 0; i < n; i++) {
+                if (times[i] >= from && times[i] < to && (key == -1 || keys[i] == key)) {
+                    count++;
+                    expected.append(position(keys[i], times[i], lats[i], lons[i], surface[i])).append('\n');
+                }
+            }
+
+            got.setLength(0);
+            int found = store.query(key, from, to, visitor);
+
+            ok &= found == count && expected.toString().equals(got.toString());
+        }
+
+        // trimming drops whole segments, and their buffers are reused
+        long memory = store.memory();
+        long dropped = store.trim(times[n / 2]);
+
+        got.setLength(0);
+        ok &= dropped > 0 && store.size() == n - dropped
+                && store.query(Long.MIN_VALUE, Long.MAX_VALUE, visitor) == n - dropped
+                && store.query(Long.MIN_VALUE, times[n / 2] - 20000000L, visitor) == 0;
+
+        for (int i = 0; i < n / 2; i++) {
+            store.append(keys[i], time + i, lats[i], lons[i], surface[i]);
+        }
+
+        ok &= store.memory() <= memory && store.size() == n / 2 + n - dropped;
+
+        // a full store drops its oldest segment
+        CPRTrackStore small = new CPRTrackStore(100, 3);
+
+        for (int i = 0; i < 1000; i++) {
+            small.append(1, i, i, -i, false);
+        }
+
+        ok &= small.size() == 300 && small.query(0L, 700L, visitor) == 0 && small.query(700L, 1000L, visitor) == 300;
+
+        // a steady feed costs under 16 bytes a point
+        CPRTrackStore dense = new CPRTrackStore(65536, 16);
+
+        for (int i = 0; i < 500000; i++) {
+            dense.append(keys[i % n], time + i * 20L, lats[i % n], lons[i % n], false);
+        }
+
+        ok &= dense.size() == 500000 && (double) dense.memory() / dense.size() < 16.0;
+
+        // decodes go straight in, as the fixed point decoder gives them
+        CPRTrackStore decoded = new CPRTrackStore(100, 10);
+        int[] pos = new int[2];
+        int[] rel = new int[2];
+        int[] last = new int[3];
+
+        ok &= decoded.decodeAirborne(0x4840D6, 1000L, 93000, 51372, 74158, 50194, false) == CPRStatus.OK
+                && CPRFixedDecoder.shared(false).decodeAirborne(93000, 51372, 74158, 50194, false, pos, 0) == CPRStatus.OK
+                && decoded.decodeRelative(0x4840D6, 2000L, pos[0], pos[1], 74158, 50194, true, false) == CPRStatus.OK
+                && CPRFixedDecoder.shared(false).decodeRelative(pos[0], pos[1], 74158, 50194, true, false, rel, 0)
+                        == CPRStatus.OK
+                && decoded.query(0x4840D6, 0L, 1500L, (key, t, lat, lon, surf) -> {
+                    last[0] = lat;
+                    last[1] = lon;
+                    last[2] = (int) t;
+                }) == 1
+                && last[0] == pos[0] && last[1] == pos[1] && last[2] == 1000
+                && decoded.query(0x4840D6, 1500L, 3000L, (key, t, lat, lon, surf) -> {
+                    last[0] = lat;
+                    last[1] = lon;
+                    last[2] = (int) t;
+                }) == 1
+                && last[0] == rel[0] && last[1] == rel[1] && last[2] == 2000;
+
+        // and chunks from the file decoders
+        CPRPositions chunk = new CPRPositions(4);
+
+        chunk.add(0x4840D6, 5000L, 52.2572, 3.9193, false);
+        chunk.add(0x4840D6 | CPRFrame.NON_ICAO, 5001L, -33.5, -70.25, true);
+        decoded.positions(chunk);
+        got.setLength(0);
+        ok &= decoded.query(5000L, 5002L, visitor) == 2 && got.toString().equals(
+                position(0x4840D6, 5000L, CPRFixedDecoder.fromDegrees(52.2572), CPRFixedDecoder.fromDegrees(3.9193), false)
+                + "\n" + position(0x4840D6 | CPRFrame.NON_ICAO, 5001L, CPRFixedDecoder.fromDegrees(-33.5),
+                        CPRFixedDecoder.fromDegrees(-70.25), true) + "\n");
+
+        try {
+            decoded.append(-1, 0L, 0, 0, false);
+            ok = false;
+        } catch (IllegalArgumentException e) {
+        }
+
+        System.out.printf("testCPRTrackStore:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    private static boolean testCPRMetrics() {
+        CPRMetrics metrics = new CPRMetrics(0);
+        CPR counted = new CPR(metrics);
+        long[][] expected = new long[3][CPRStatus.NO_REFERENCE + 1];
+        double[] pos = new double[2];
+        Random rand = new Random(1090019L);
+        boolean ok = CPR.shared().getMetrics() == null && counted.getMetrics() == metrics;
+
+        // random frames fail in every way; the outcome must match the plain decoder
+        for (int i = 0; i < 30000; i++) {
+            int a = rand.nextInt(131072), b = rand.nextInt(131072), c = rand.nextInt(131072), d = rand.nextInt(131072);
+            boolean fflag = rand.nextBoolean(), surface = rand.nextBoolean();
+            double reflat = rand.nextDouble() * 180.0 - 90.0, reflon = rand.nextDouble() * 360.0 - 180.0;
+            int status;
+
+            status = cpr.tryDecodeCPRairborne(a, b, c, d, fflag, pos, 0);
+            expected[CPRMetrics.AIRBORNE][status]++;
+            ok &= counted.tryDecodeCPRairborne(a, b, c, d, fflag, pos, 0) == status;
+
+            status = cpr.tryDecodeCPRsurface(reflat, reflon, a, b, c, d, fflag, pos, 0);
+            expected[CPRMetrics.SURFACE][status]++;
+
+            try {
+                counted.decodeCPRsurface(reflat, reflon, a, b, c, d, fflag, pos, 0);
+                ok &= status == CPRStatus.OK;
+            } catch (CPRException e) {
+                ok &= e.getMessage().equals(CPRStatus.message(status));
+            }
+
+            status = cpr.tryDecodeCPRrelative(reflat, reflon, a, b, fflag, surface, pos, 0);
+            expected[CPRMetrics.RELATIVE][status]++;
+            ok &= counted.tryDecodeCPRrelative(reflat, reflon, a, b, fflag, surface, pos, 0) == status;
+        }
+
+        // batches count each frame
+        int n = 1000;
+        int[] f = new int[n];
+        boolean[] flags = new boolean[n];
+        double[] lat = new double[n], lon = new double[n];
+        byte[] status = new byte[n];
+
+        for (int i = 0; i < n; i++) {
+            f[i] = rand.nextInt(131072);
+            flags[i] = rand.nextBoolean();
+        }
+
+        int good = counted.decodeCPRairborneBatch(f, f, f, f, flags, lat, lon, status, 0, n);
+
+        for (int i = 0; i < n; i++) {
+            expected[CPRMetrics.AIRBORNE][status[i]]++;
+            good -= (status[i] == CPRStatus.OK) ? 1 : 0;
+        }
+
+        CPRMetrics.Snapshot snap = metrics.snapshot();
+        long total = 0L, failed = 0L;
+
+        for (int m = 0; m < 3; m++) {
+            for (int st = 0; st <= CPRStatus.NO_REFERENCE; st++) {
+                ok &= snap.count(m, st) == expected[m][st];
+                total += expected[m][st];
+                failed += (st == CPRStatus.OK) ? 0 : expected[m][st];
+            }
+
+            // every decode timed, with sensible percentiles
+            ok &= snap.timed(m) == snap.decodes(m) && snap.meanLatency(m) > 0.0
+                    && snap.latencyPercentile(m, 50.0) <= snap.latencyPercentile(m, 99.0)
+                    && snap.latencyPercentile(m, 99.0) <= snap.latencyPercentile(m, 100.0);
+        }
+
+        ok &= good == 0 && snap.decodes() == total && snap.failures() == failed
+                && expected[CPRMetrics.SURFACE][CPRStatus.SURFACE_CROSSED_ZONE] > 0
+                && expected[CPRMetrics.RELATIVE][CPRStatus.RELATIVE_LONGITUDE_ERROR] > 0;
+
+        // the vector backend, if this JVM has one, counts the same as the scalar one
+        CPRMetrics fastMetrics = new CPRMetrics(0), slowMetrics = new CPRMetrics(0);
+        CPRBatchDecoder fast = CPRBatchDecoder.create(new CPR(fastMetrics));
+        CPRBatchDecoder slow = CPRBatchDecoder.scalar(new CPR(slowMetrics));
+        int m = n - 3;                              // a tail for the vector code
+        int[] g = new int[m];
+        boolean[] surf = new boolean[m];
+        double[] reflat = new double[m], reflon = new double[m];
+
+        for (int i = 0; i < m; i++) {
+            g[i] = rand.nextInt(131072);
+            surf[i] = rand.nextBoolean();
+            reflat[i] = rand.nextDouble() * 180.0 - 90.0;
+            reflon[i] = rand.nextDouble() * 360.0 - 180.0;
+        }
+
+        for (CPRBatchDecoder decoder : new CPRBatchDecoder[] { fast, slow }) {
+            decoder.decodeCPRairborne(f, g, g, f, flags, lat, lon, status, 0, m);
+            decoder.decodeCPRsurface(reflat, reflon, f, g, g, f, flags, lat, lon, status, 0, m);
+            decoder.decodeCPRrelative(reflat, reflon, f, g, flags, surf, lat, lon, status, 0, m);
+        }
+
+        CPRMetrics.Snapshot fastSnap = fastMetrics.snapshot(), slowSnap = slowMetrics.snapshot();
+
+        for (int method = 0; method < 3; method++) {
+            for (int st = 0; st <= CPRStatus.NO_REFERENCE; st++) {
+                ok &= fastSnap.count(method, st) == slowSnap.count(method, st);
+            }
+
+            ok &= fastSnap.decodes(method) == m && fastSnap.timed(method) == m && fastSnap.meanLatency(method) > 0.0;
+        }
+
+        // exported through JMX
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("cpr:type=CPRMetrics,name=\"test\"");
+
+            metrics.register("test");
+            ok &= ((Long) server.getAttribute(name, "Decodes")) == total
+                    && ((Long) server.getAttribute(name, "Failures")) == failed
+                    && ((Integer) server.getAttribute(name, "SampleInterval")) == 1
+                    && server.getAttribute(name, "Outcomes") != null
+                    && metrics.getOutcomes().get("relative.RELATIVE_LATITUDE_ERROR")
+                            == expected[CPRMetrics.RELATIVE][CPRStatus.RELATIVE_LATITUDE_ERROR]
+                    && metrics.getLatencyNanos().get("airborne.p999") > 0L;
+            server.invoke(name, "reset", null, null);
+            ok &= metrics.getDecodes() == 0L && metrics.snapshot().timed(CPRMetrics.SURFACE) == 0L;
+            metrics.unregister();
+            ok &= !server.isRegistered(name);
+        } catch (JMException e) {
+            System.out.println("  " + e);
+            ok = false;
+        }
+
+        // sampled timing
+        CPRMetrics sampled = new CPRMetrics(4);
+        CPR some = new CPR(sampled);
+
+        for (int i = 0; i < 10000; i++) {
+            some.tryDecodeCPRairborne(93000, 51372, 74158, 50194, false, pos, 0);
+        }
+
+        snap = sampled.snapshot();
+        ok &= snap.count(CPRMetrics.AIRBORNE, CPRStatus.OK) == 10000 && snap.timed(CPRMetrics.AIRBORNE) > 300
+                && snap.timed(CPRMetrics.AIRBORNE) < 1000 && sampled.getSampleInterval() == 16;
+
+        System.out.printf("testCPRMetrics:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    private static boolean testCPRNLBatch() {
+        int n = 1800001;
+        double[] lat = new double[n];
+        int[] nl = new int[n];
+        int[] nl2 = new int[n];
+        double[] dlon = new double[n];
+        double[] dlon2 = new double[n];
+        Random rand = new Random(1090020L);
+        boolean ok = true;
+
+        // a world grid every 1e-4 degrees, then zone edges, poles and odd values
+        for (int i = 0; i < n; i++) {
+            lat[i] = -90.0 + i * 1e-4;
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            double edge = refNL[rand.nextInt(refNL.length)] * (rand.nextBoolean() ? 1.0 : -1.0);
+
+            lat[rand.nextInt(n)] = edge;
+            lat[rand.nextInt(n)] = Math.nextUp(edge);
+            lat[rand.nextInt(n)] = Math.nextDown(edge);
+        }
+
+        lat[0] = Double.NaN;
+        lat[1] = 0.0;
+        lat[2] = -0.0;
+        lat[3] = 87.0;
+        lat[4] = -87.0;
+        lat[5] = 90.0;
+        lat[6] = 95.0;
+
+        cpr.cprNLFunctionBatch(lat, nl, 0, n);
+
+        for (int i = 0; i < n; i++) {
+            ok &= nl[i] == cpr.cprNLFunction(lat[i]);
+        }
+
+        // the parallel path gives the same, and only writes its range
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            nl2[0] = -1;
+            nl2[n - 1] = -1;
+            cpr.cprNLFunctionBatch(lat, nl2, 1, n - 2, pool);
+            ok &= nl2[0] == -1 && nl2[n - 1] == -1;
+
+            for (int i = 1; i < n - 1; i++) {
+                ok &= nl2[i] == nl[i];
+            }
+
+            for (int mode = 0; mode < 4; mode++) {
+                boolean fflag = (mode & 1) != 0, surface = (mode & 2) != 0;
+
+                cpr.cprDlonFunctionBatch(lat, fflag, surface, dlon, 0, n);
+                cpr.cprDlonFunctionBatch(lat, fflag, surface, dlon2, 0, n, pool);
+
+                for (int i = 0; i < n; i++) {
+                    double expected = (surface ? 90.0 : 360.0) / Math.max(nl[i] - (fflag ? 1 : 0), 1);
+
+                    ok &= dlon[i] == expected && dlon2[i] == expected;
+                }
+            }
+
+            // small batches run in the caller
+            cpr.cprNLFunctionBatch(lat, nl2, 5, 3, pool);
+            ok &= nl2[5] == 1 && nl2[6] == 1 && nl2[7] == nl[7];
+        } finally {
+            pool.shutdown();
+        }
+
+        System.out.printf("testCPRNLBatch:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    private static double haversine(double lat0, double lon0, double lat1, double lon1) {
+        double a = Math.pow(Math.sin(Math.toRadians(lat1 - lat0) / 2.0), 2.0)
+                + Math.cos(Math.toRadians(lat0)) * Math.cos(Math.toRadians(lat1))
+                * Math.pow(Math.sin(Math.toRadians(lon1 - lon0) / 2.0), 2.0);
+
+        return 2.0 * 6371008.8 * Math.asin(Math.sqrt(a));
+    }
+
+    private static boolean testCPRPlausibilityFilter() {
+        CPRPlausibilityFilter filter = new CPRPlausibilityFilter();
+        double north = 1.0 / 111195.08;     // degrees per metre
+        Random rand = new Random(1090021L);
+        boolean ok = true;
+
+        // 10 km in 10 s is too fast; in 30 s it is not, and the slack covers standing still
+        ok &= filter.check(52.0, 4.0, 0L, 52.0 + 10000 * north, 4.0, 10000L, false) == CPRStatus.TOO_FAST
+                && filter.check(52.0, 4.0, 0L, 52.0 + 10000 * north, 4.0, 30000L, false) == CPRStatus.OK
+                && filter.check(52.0, 4.0, 0L, 52.0 + 450 * north, 4.0, 0L, false) == CPRStatus.OK
+                && filter.check(52.0, 4.0, 30000L, 52.0 + 10000 * north, 4.0, 0L, false) == CPRStatus.OK;
+
+        // surface positions are held to a lower speed
+        ok &= filter.check(52.0, 4.0, 0L, 52.0 + 1400 * north, 4.0, 10000L, true) == CPRStatus.OK
+                && filter.check(52.0, 4.0, 0L, 52.0 + 1600 * north, 4.0, 10000L, true) == CPRStatus.TOO_FAST;
+
+        // across the antimeridian
+        ok &= filter.check(0.0, 179.99, 0L, 0.0, -179.99, 10000L, false) == CPRStatus.OK
+                && filter.check(0.0, -179.99, 0L, 0.0, 179.99, 10000L, false) == CPRStatus.OK;
+
+        // the test against the speed limit follows the real distance
+        for (int i = 0; i < 10000; i++) {
+            double lat0 = rand.nextDouble() * 160.0 - 80.0, lon0 = rand.nextDouble() * 360.0 - 180.0;
+            double lat1 = Math.max(-89.0, Math.min(89.0, lat0 + rand.nextGaussian()));
+            double lon1 = lon0 + rand.nextGaussian() * 2.0;
+            double d = haversine(lat0, lon0, lat1, lon1);
+            long t = (long) ((d - 500.0) / 515.0 * 1000.0);
+            int shorter = filter.check(lat0, lon0, 0L, lat1, lon1, t - t / 100 - 10, false);
+            int longer = filter.check(lat0, lon0, 0L, lat1, lon1, t + t / 100 + 10, false);
+
+            ok &= d > 300000 || t < 0 || (shorter == CPRStatus.TOO_FAST && longer == CPRStatus.OK);
+        }
+
+        // range from the receiver
+        CPRPlausibilityFilter ranged = new CPRPlausibilityFilter();
+
+        ranged.setReceiver(52.0, 4.0, 100000.0);
+        ranged.setMaxAirborneSpeed(1000.0);
+        ok &= ranged.check(52.0 + 99000 * north, 4.0) == CPRStatus.OK
+                && ranged.check(52.0 + 101000 * north, 4.0) == CPRStatus.OUT_OF_RANGE
+                && ranged.check(52.0 + 99000 * north, 4.0, 0L, 52.0 + 101000 * north, 4.0, 10000L, false)
+                        == CPRStatus.OUT_OF_RANGE
+                && ranged.check(52.0, 4.0, 0L, 52.0 + 10000 * north, 4.0, 10000L, false) == CPRStatus.OK
+                && CPRStatus.name(CPRStatus.OUT_OF_RANGE).equals("OUT_OF_RANGE");
+
+        // in a tracker, a jump is rejected and the last position kept
+        CPRTracker tracker = new CPRTracker(16);
+        ConcurrentCPRTracker shared = new ConcurrentCPRTracker(16, 2);
+        int[] f = new int[2];
+        double[] pos = new double[2];
+        double[] last = new double[2];
+
+        tracker.setFilter(filter);
+        shared.setFilter(filter);
+
+        CPREncoder.shared().encodeCPRairborne(52.0, 4.0, false, f, 0);
+        ok &= tracker.update(0x4840D6, 0L, f[0], f[1], false, false, pos, 0) == CPRStatus.NO_PAIR
+                && shared.update(0x4840D6, 0L, f[0], f[1], false, false, pos, 0) == CPRStatus.NO_PAIR;
+        CPREncoder.shared().encodeCPRairborne(52.0 + 100 * north, 4.0, true, f, 0);
+        ok &= tracker.update(0x4840D6, 1000L, f[0], f[1], true, false, pos, 0) == CPRStatus.OK
+                && shared.update(0x4840D6, 1000L, f[0], f[1], true, false, pos, 0) == CPRStatus.OK;
+
+        CPREncoder.shared().encodeCPRairborne(52.3, 4.0, false, f, 0);
+        ok &= tracker.update(0x4840D6, 2000L, f[0], f[1], false, false, pos, 0) == CPRStatus.TOO_FAST
+                && shared.update(0x4840D6, 2000L, f[0], f[1], false, false, pos, 0) == CPRStatus.TOO_FAST
+                && tracker.getPosition(0x4840D6, last, 0) && Math.abs(last[0] - 52.0 - 100 * north) < 1e-4;
+        CPREncoder.shared().encodeCPRairborne(52.0 + 300 * north, 4.0, false, f, 0);
+        ok &= tracker.update(0x4840D6, 2000L, f[0], f[1], false, false, pos, 0) == CPRStatus.OK;
+
+        // and nothing is allocated
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long id = Thread.currentThread().getId();
+            long before = mx.getThreadAllocatedBytes(id);
+            int bad = 0;
+
+            for (int i = 0; i < 100000; i++) {
+                bad += ranged.check(52.0, 4.0, 0L, 52.0 + i * north, 4.0, i, (i & 1) != 0);
+            }
+
+            long allocated = mx.getThreadAllocatedBytes(id) - before;
+
+            if (allocated > 4096 || bad == 0) {
+                ok = false;
+                System.out.printf("testCPRPlausibilityFilter: FAIL %d bytes allocated\n", allocated);
+            }
+        }
+
+        System.out.printf("testCPRPlausibilityFilter:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    private static boolean testCPRRing() {
+        int n = 60000;
+        int[] keys = new int[n];
+        long[] times = new long[n];
+        int[] tcs = new int[n];
+        boolean[] odd = new boolean[n];
+        int[] lats = new int[n];
+        int[] lons = new int[n];
+        int[] f = new int[2];
+        Random rand = new Random(1090022L);
+        boolean ok = true;
+
+        // a fleet moving about, a frame at a time
+        for (int i = 0; i < n; i++) {
+            int a = rand.nextInt(200);
+            boolean surface = a < 20;
+            double lat = -60.0 + a * 0.6 + i * 1e-5, lon = -170.0 + a * 1.7 + i * 1e-5;
+
+            keys[i] = 0x400000 + a;
+            times[i] = i * 5L;
+            tcs[i] = surface ? 6 : 11;
+            odd[i] = rand.nextBoolean();
+
+            if (surface) {
+                CPREncoder.shared().encodeCPRsurface(lat, lon, odd[i], f, 0);
+            } else {
+                CPREncoder.shared().encodeCPRairborne(lat, lon, odd[i], f, 0);
+            }
+
+            lats[i] = f[0];
+            lons[i] = f[1];
+        }
+
+        // each aircraft's positions, the same as through one tracker
+        CPRTracker one = new CPRTracker(1000);
+        StringBuilder[] expected = new StringBuilder[200];
+        double[] pos = new double[2];
+
+        for (int a = 0; a < 200; a++) {
+            expected[a] = new StringBuilder();
+        }
+
+        for (int i = 0; i < n; i++) {
+            boolean surface = CPRFrame.isSurfacePosition(tcs[i]);
+
+            if (one.update(keys[i], times[i], lats[i], lons[i], odd[i], surface, pos, 0) == CPRStatus.OK) {
+                expected[keys[i] - 0x400000].append(position(keys[i], times[i], pos[0], pos[1], surface)).append('\n');
+            }
+        }
+
+        for (int strategy = CPRRing.BUSY_SPIN; strategy <= CPRRing.PARK && ok; strategy++) {
+            final CPRRing ring = new CPRRing(500, 3, 64);
+            final StringBuilder[] got = new StringBuilder[200];
+            final AtomicBoolean clash = new AtomicBoolean();
+            final int count = (strategy == CPRRing.BUSY_SPIN) ? 10000 : n;
+            Thread[] threads = new Thread[3];
+
+            ring.setWaitStrategy(strategy);
+            ok &= ring.getCapacity() == 512;
+
+            for (int a = 0; a < 200; a++) {
+                got[a] = new StringBuilder();
+            }
+
+            for (int c = 0; c < 3; c++) {
+                final int consumer = c;
+
+                threads[c] = new Thread(() -> ring.run(consumer, new CPRTracker(1000), chunk -> {
+                    for (int k = 0; k < chunk.size(); k++) {
+                        StringBuilder sb = got[chunk.getAddresses()[k] - 0x400000];
+
+                        // an aircraft belongs to one consumer
+                        if (sb.length() > 0 && sb.charAt(sb.length() - 1) != (char) ('0' + consumer)) {
+                            clash.set(true);
+                        }
+
+                        sb.append(position(chunk.getAddresses()[k], chunk.getTimes()[k], chunk.getLats()[k],
+                                chunk.getLons()[k], chunk.getSurface()[k])).append('\n').append((char) ('0' + consumer));
+                    }
+                }));
+                threads[c].start();
+            }
+
+            for (int i = 0; i < count; i++) {
+                ring.publish(keys[i], times[i], tcs[i], odd[i], lats[i], lons[i]);
+            }
+
+            ring.close();
+
+            try {
+                for (Thread t : threads) {
+                    t.join();
+                }
+            } catch (InterruptedException e) {
+                ok = false;
+            }
+
+            ok &= !clash.get() && ring.backlog() == 0;
+
+            // with every frame, each aircraft's track is the same as through one tracker
+            for (int a = 0; a < 200 && count == n; a++) {
+                ok &= got[a].toString().replaceAll("\n[0-9]", "\n").equals(expected[a].toString());
+            }
+
+            for (int a = 0; a < 200 && count != n; a++) {
+                ok &= expected[a].toString().startsWith(got[a].toString().replaceAll("\n[0-9]", "\n"));
+            }
+        }
+
+        // a full ring refuses more, until a consumer catches up
+        CPRRing ring = new CPRRing(16, 2, 8);
+        CPRTracker[] trackers = {new CPRTracker(1000), new CPRTracker(1000)};
+        int[] out = new int[1];
+        CPRFileDecoder.Sink counter = chunk -> out[0] += chunk.size();
+
+        for (int i = 0; i < 16; i++) {
+            ok &= ring.offer(keys[i], times[i], tcs[i], odd[i], lats[i], lons[i]);
+        }
+
+        ok &= !ring.offer(keys[16], times[16], tcs[16], odd[16], lats[16], lons[16])
+                && ring.poll(0, trackers[0], counter) == 16 && ring.backlog() == 16
+                && !ring.offer(keys[16], times[16], tcs[16], odd[16], lats[16], lons[16])
+                && ring.poll(1, trackers[1], counter) == 16 && ring.backlog() == 0
+                && ring.offer(keys[16], times[16], tcs[16], odd[16], lats[16], lons[16])
+                && ring.poll(0, trackers[0], counter) == 1 && ring.poll(0, trackers[0], counter) == 0;
+
+        // raw frames: only good position frames go in
+        byte[] frame = new byte[CPRFrame.LENGTH];
+
+        CPRFrame.writePosition(0x4840D6, 11, false, lats[0], lons[0], frame, 0);
+        ok &= ring.publishFrame(0L, frame, 0);
+        frame[5] ^= 1;
+        ok &= !ring.publishFrame(0L, frame, 0);
+
+        // publishing and draining allocate nothing
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long id = Thread.currentThread().getId();
+            CPRRing quiet = new CPRRing(1024, 2, 64);
+
+            for (int pass = 0; pass < 2; pass++) {
+                long before = mx.getThreadAllocatedBytes(id);
+
+                for (int i = 0; i < n; i++) {
+                    quiet.publish(keys[i], times[i], tcs[i], odd[i], lats[i], lons[i]);
+
+                    if ((i & 511) == 511) {
+                        quiet.poll(0, trackers[0], counter);
+                        quiet.poll(1, trackers[1], counter);
+                    }
+                }
+
+                long allocated = mx.getThreadAllocatedBytes(id) - before;
+
+                if (pass == 1 && allocated > 4096) {
+                    ok = false;
+                    System.out.printf("testCPRRing: FAIL %d bytes allocated\n", allocated);
+                }
+            }
+        }
+
+        System.out.printf("testCPRRing:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    /*
+     * Stand-in receivers on loopback, half hex and half Beast, feed one
+     * server. Each aircraft's even frame comes from one feed and its odd
+     * frame from the next, so pairs are made across feeds; every aircraft
+     * must come out of the output socket once, where it is.
+     */
+    private static boolean testCPRServer() {
+        final int feeds = 40, fleet = 1000;
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        final double[] lats = new double[fleet], lons = new double[fleet];
+        final ByteArrayOutputStream[] data = new ByteArrayOutputStream[feeds];
+        final List<Thread> standIns = new ArrayList<>();
+        final AtomicBoolean ok = new AtomicBoolean(true);
+        int[] f = new int[2];
+        byte[] frame = new byte[CPRFrame.LENGTH];
+        long start = System.currentTimeMillis();
+        CPRServer server = new CPRServer(new ConcurrentCPRTracker(fleet));
+
+        for (int i = 0; i < feeds; i++) {
+            data[i] = new ByteArrayOutputStream();
+        }
+
+        for (int a = 0; a < fleet; a++) {
+            lats[a] = -60.0 + a * 0.11;
+            lons[a] = -170.0 + a * 0.33;
+
+            for (int odd = 0; odd < 2; odd++) {
+                int i = (a + odd) % feeds;
+
+                CPREncoder.shared().encodeCPRairborne(lats[a], lons[a], odd == 1, f, 0);
+                CPRFrame.writePosition(0x400000 + a, 11, odd == 1, f[0], f[1], frame, 0);
+
+                if ((i & 1) == 0) {
+                    byte[] line = ("*" + hex(frame) + ";\n").getBytes(StandardCharsets.US_ASCII);
+
+                    data[i].write(line, 0, line.length);
+                } else {
+                    beastRecord(data[i], '3', a * 12000L, 0, frame, CPRFrame.LENGTH);
+                }
+            }
+        }
+
+        try (Socket out = new Socket()) {
+            int port = server.listen(new InetSocketAddress(loopback, 0));
+
+            out.connect(new InetSocketAddress(loopback, port));
+            out.setSoTimeout(30000);
+
+            for (int wait = 0; server.getClients() == 0 && wait < 1000; wait++) {
+                Thread.sleep(5L);
+            }
+
+            // each stand-in sends its frames to the first connection, and hangs up
+            for (int i = 0; i < feeds; i++) {
+                final ServerSocket receiver = new ServerSocket(0, 1, loopback);
+                final byte[] bytes = data[i].toByteArray();
+                Thread t = new Thread(() -> {
+                    try (ServerSocket r = receiver; Socket s = r.accept()) {
+                        s.getOutputStream().write(bytes);
+                    } catch (IOException e) {
+                        ok.set(false);
+                    }
+                });
+
+                t.start();
+                standIns.add(t);
+                server.addFeed(new InetSocketAddress(loopback, receiver.getLocalPort()),
+                        ((i & 1) == 0) ? CPRFrameScanner.HEX : CPRFrameScanner.BEAST);
+            }
+
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(out.getInputStream(), StandardCharsets.US_ASCII));
+            boolean[] seen = new boolean[fleet];
+
+            for (int n = 0; n < fleet && ok.get(); n++) {
+                String[] field = in.readLine().split(",");
+                int a = Integer.parseInt(field[1], 16) - 0x400000;
+
+                if (field.length != 5 || a < 0 || a >= fleet || seen[a] || Long.parseLong(field[0]) < start
+                        || !near(Double.parseDouble(field[2]), lats[a], 1e-4, 360.0)
+                        || !near(Double.parseDouble(field[3]), lons[a], 1e-4, 360.0) || !field[4].equals("A")) {
+                    ok.set(false);
+                }
+
+                seen[a] = true;
+            }
+
+            for (Thread t : standIns) {
+                t.join();
+            }
+
+            for (int wait = 0; server.getFeeds() > 0 && wait < 1000; wait++) {
+                Thread.sleep(5L);
+            }
+
+            ok.compareAndSet(true, server.getFeeds() == 0 && server.getFrames() == 2 * fleet
+                    && server.getPositions() == fleet);
+
+            // closing hangs up on the client, with nothing more sent
+            server.close();
+            ok.compareAndSet(true, in.readLine() == null && server.getClients() == 0);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            ok.set(false);
+        } finally {
+            server.close();
+        }
+
+        System.out.printf("testCPRServer (%s):  %s\n", CPRServer.usesVirtualThreads() ? "virtual" : "platform",
+                ok.get() ? "PASS" : "FAIL");
+
+        return ok.get();
+    }
+
+    /*
+     * A fleet moving about a grid index, some of it removed or expired.
+     * Box queries, across 180 degrees and at the poles too, must find
+     * exactly the aircraft a scan finds; radius queries must find those
+     * well inside the circle and none well outside.
+     */
+    private static boolean testCPRGridIndex() {
+        final int fleet = 3000;
+        CPRGridIndex index = new CPRGridIndex(fleet, 0.5);
+        double[] lat = new double[fleet], lon = new double[fleet];
+        boolean[] held = new boolean[fleet];
+        double[] pos = new double[2];
+        Random rand = new Random(1090024L);
+        boolean ok;
+
+        // cells of roughly equal area: about 41253 square degrees of sphere
+        ok = index.getCells() > 0.8 * 41253.0 / 0.25 && index.getCells() < 1.25 * 41253.0 / 0.25;
+
+        for (int pass = 0; pass < 3; pass++) {
+            for (int a = 0; a < fleet; a++) {
+                if (pass == 0) {
+                    lat[a] = (a % 10 == 0) ? 85.0 + rand.nextDouble() * 5.0 : rand.nextDouble() * 180.0 - 90.0;
+                    lon[a] = (a % 10 == 1) ? 179.0 + rand.nextDouble() * 2.0 : rand.nextDouble() * 360.0 - 180.0;
+                } else {
+                    lat[a] = Math.max(-90.0, Math.min(90.0, lat[a] + rand.nextGaussian() * 0.5));
+                    lon[a] += rand.nextGaussian() * 0.5;
+                }
+
+                lon[a] -= 360.0 * Math.floor((lon[a] + 180.0) / 360.0);
+                ok &= index.update(0x400000 + a, pass * 1000L + a, lat[a], lon[a], false);
+                held[a] = true;
+            }
+        }
+
+        // an older position is ignored
+        ok &= !index.update(0x400000, 0L, 0.0, 0.0, false) && index.getPosition(0x400000, pos, 0)
+                && pos[0] == lat[0] && pos[1] == lon[0];
+
+        for (int a = 0; a < fleet; a += 7) {
+            ok &= index.remove(0x400000 + a);
+            held[a] = false;
+        }
+
+        // the first 300 aircraft were last placed before time 2300
+        ok &= index.expire(2300L) == 300 - (300 + 6) / 7 && !index.remove(0x400000);
+
+        for (int a = 0; a < 300; a++) {
+            held[a] = false;
+        }
+
+        int size = 0;
+
+        for (int a = 0; a < fleet; a++) {
+            size += held[a] ? 1 : 0;
+        }
+
+        ok &= index.size() == size && !index.getPosition(0x400000 + 7, pos, 0);
+
+        for (int q = 0; q < 200 && ok; q++) {
+            double south = rand.nextDouble() * 180.0 - 90.0;
+            double north = Math.min(90.0, south + rand.nextDouble() * 40.0);
+            double west = (q % 4 == 0) ? 170.0 + rand.nextDouble() * 9.0 : rand.nextDouble() * 360.0 - 180.0;
+            double east = west + rand.nextDouble() * 60.0;
+            final boolean[] found = new boolean[fleet];
+            final AtomicBoolean twice = new AtomicBoolean();
+
+            if (q % 10 == 0) {
+                north = 90.0;
+            }
+
+            int n = index.query(south, west, north, east, (key, time, plat, plon, surface) -> {
+                twice.compareAndSet(false, found[key - 0x400000]);
+                found[key - 0x400000] = true;
+            });
+            double e = (east >= 180.0) ? east - 360.0 : east;
+            int want = 0;
+
+            for (int a = 0; a < fleet; a++) {
+                boolean in = held[a] && lat[a] >= south && lat[a] <= north
+                        && ((west <= e) ? lon[a] >= west && lon[a] <= e : lon[a] >= west || lon[a] <= e);
+
+                want += in ? 1 : 0;
+                ok &= in == found[a];
+            }
+
+            ok &= n == want && !twice.get();
+        }
+
+        for (int q = 0; q < 200 && ok; q++) {
+            final double clat = rand.nextDouble() * 150.0 - 75.0;
+            final double clon = (q % 4 == 0) ? 179.0 + rand.nextDouble() * 2.0 - 360.0 * (q % 8 / 4)
+                    : rand.nextDouble() * 360.0 - 180.0;
+            final double radius = 10000.0 + rand.nextDouble() * 490000.0;
+            final boolean[] found = new boolean[fleet];
+
+            index.query(clat, clon, radius, (key, time, plat, plon, surface) -> found[key - 0x400000] = true);
+
+            for (int a = 0; a < fleet; a++) {
+                double d = haversine(clat, clon, lat[a], lon[a]);
+
+                if (held[a] && d < 0.98 * radius) {
+                    ok &= found[a];
+                } else if (d > 1.02 * radius) {
+                    ok &= !found[a];
+                }
+            }
+        }
+
+        // a whole world box, and a full index drops the oldest position
+        CPRGridIndex small = new CPRGridIndex(10, 6.0);
+        CPRPositions chunk = new CPRPositions(16);
+
+        for (int i = 0; i < 11; i++) {
+            chunk.add(0x400000 + i, 1000L + i, i, -i, true);
+        }
+
+        small.positions(chunk);
+        ok &= small.size() == 10 && !small.getPosition(0x400000, pos, 0) && small.getPosition(0x40000A, pos, 0)
+                && small.query(-90.0, -180.0, 90.0, 180.0, (key, time, plat, plon, surface) -> { }) == 10;
+
+        // an aircraft updated again, or removed, is not the next dropped
+        ok &= small.update(0x400001, 2000L, 1.0, -1.0, true) && small.remove(0x400002)
+                && small.update(0x40000B, 2001L, 11.0, -11.0, true) && small.update(0x40000C, 2002L, 12.0, -12.0, true);
+        ok &= small.size() == 10 && small.getPosition(0x400001, pos, 0) && !small.getPosition(0x400003, pos, 0)
+                && small.getPosition(0x400004, pos, 0);
+
+        System.out.printf("testCPRGridIndex:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    /*
+     * Positions decoded from a capture are streamed into a column file and
+     * must read back the same, in fixed point, through the row accessors,
+     * the column views and a scan; the file must be a fraction of the size
+     * of the same positions as text, and a file cut short must read up to
+     * its last whole block.
+     */
+    private static boolean testCPRColumns() {
+        final int fleet = 2000;
+        Path capture = null, columns = null, cut = null;
+        boolean ok;
+
+        try {
+            final List<long[]> want = new ArrayList<>();
+            final StringBuilder text = new StringBuilder();
+            CPRFileDecoder decoder = new CPRFileDecoder(CPRFrameScanner.BEAST, receiverTracker(fleet), 1000);
+
+            capture = Files.createTempFile("cpr", ".bin");
+            columns = Files.createTempFile("cpr", ".col");
+            cut = Files.createTempFile("cpr", ".col");
+            Files.write(capture, capture(CPRFrameScanner.BEAST, fleet, 100000, 1090025L));
+
+            try (CPRColumnWriter writer = new CPRColumnWriter(columns, 16384)) {
+                decoder.decode(capture, chunk -> {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        int lat = CPRFixedDecoder.fromDegrees(chunk.getLats()[i]);
+                        int lon = CPRFixedDecoder.fromDegrees(chunk.getLons()[i]);
+
+                        want.add(new long[] {chunk.getAddresses()[i], chunk.getTimes()[i], lat, lon,
+                            chunk.getSurface()[i] ? 1 : 0});
+                        text.append(String.format("%d,%06X,%.6f,%.6f,%s\n", 1500000000000L + chunk.getTimes()[i],
+                                chunk.getAddresses()[i], chunk.getLats()[i], chunk.getLons()[i],
+                                chunk.getSurface()[i] ? "S" : "A"));
+                    }
+
+                    writer.positions(chunk);
+                });
+
+                // a jump in time too far for the block's int offsets starts a new block
+                writer.append(0x4840D6, 1L << 40, 515000000, -1250000, false);
+                want.add(new long[] {0x4840D6, 1L << 40, 515000000, -1250000, 0});
+            }
+
+            final int[] n = new int[1];
+            final boolean[] same = {true};
+            long sum = 0L, viewSum = 0L;
+
+            try (CPRColumnReader reader = new CPRColumnReader(columns)) {
+                ok = reader.getRows() == want.size() && reader.getBlockRows() == 16384
+                        && reader.getBlocks() == (want.size() - 1 + 16383) / 16384 + 1;
+
+                reader.scan((key, time, lat, lon, surface) -> {
+                    long[] w = want.get(n[0]++);
+
+                    same[0] &= key == w[0] && time == w[1] && lat == w[2] && lon == w[3] && surface == (w[4] == 1);
+                });
+                ok &= same[0] && n[0] == want.size();
+
+                // the column views hold the same as the row accessors
+                for (int b = 0, row = 0; b < reader.getBlocks() && ok; b++) {
+                    CPRColumnReader.Block block = reader.block(b);
+                    IntBuffer lats = block.lats();
+
+                    for (int i = 0; i < lats.limit(); i++, row++) {
+                        viewSum += lats.get(i);
+                        sum += want.get(row)[2];
+                    }
+
+                    ok &= block.keys().limit() <= fleet + 1 && block.times().get(0) == 0
+                            && block.time(0) == block.baseTime() && block.aircraft().limit() == block.rows()
+                            && block.key(block.rows() - 1) == (int) want.get(row - 1)[0];
+                }
+
+                ok &= sum == viewSum;
+            }
+
+            // several times smaller than the same positions as text, with times since 1970
+            ok &= Files.size(columns) * 2.5 < text.length() && want.size() > 80000;
+
+            // a file cut inside its last block, of one row, reads only the whole ones
+            byte[] bytes = Files.readAllBytes(columns);
+
+            Files.write(cut, Arrays.copyOf(bytes, bytes.length - 30));
+
+            try (CPRColumnReader reader = new CPRColumnReader(cut)) {
+                ok &= reader.getBlocks() == (want.size() - 1 + 16383) / 16384
+                        && reader.getRows() == want.size() - 1 && reader.block(0).rows() == 16384;
+            }
+
+            Files.write(cut, "not a column file at all".getBytes(StandardCharsets.US_ASCII));
+
+            try {
+                new CPRColumnReader(cut).close();
+                ok = false;
+            } catch (IOException e) {
+                // expected
+            }
+        } catch (IOException e) {
+            ok = false;
+            System.out.printf("testCPRColumns:  FAIL %s\n", e);
+        } finally {
+            for (Path p : new Path[] {capture, columns, cut}) {
+                if (p != null) {
+                    p.toFile().delete();
+                }
+            }
+        }
+
+        System.out.printf("testCPRColumns:  %s\n", ok ? "PASS" : "FAIL");
+
+        return ok;
+    }
+
+    private static String chunkText(CPRPositions chunk) {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < chunk.size(); i++) {
+            sb.append(position(chunk.getAddresses()[i], chunk.getTimes()[i], chunk.getLats()[i],
+                    chunk.getLons()[i], chunk.getSurface()[i])).append('\n');
+        }
+
+        return sb.toString();
+    }
+
     public static void main(String[] args) {
 
-        cpr = new CPR();
+        cpr = CPR.shared();
 
-        boolean ok = testCPRGlobalAirborne() && testCPRGlobalSurface() && testCPRRelative();
+        boolean ok = testCPRGlobalAirborne() && testCPRGlobalSurface() && testCPRRelative()
+                && testCPRNLFunction() && testCPRThreads() && testCPRBuffers()
+                && testCPRStatus() && testCPRBatch() && testCPRVector()
+                && testCPREncoder() && testCPRTracker() && testConcurrentCPRTracker()
+                && testCPRFrames() && testCPRFileDecoder() && testCPRReplay()
+                && testCPRReferenceCache() && testCPRSiteDecoder() && testCPRMath() && testCPRFixedDecoder()
+                && testCPRTrackStore() && testCPRMetrics() && testCPRNLBatch()
+                && testCPRPlausibilityFilter() && testCPRRing() && testCPRServer() && testCPRGridIndex()
+                && testCPRColumns();
 
         if (ok == true) {
             System.out.println("\nTests Successful");
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 by Oliver Jowett <oliver@mutability.co.uk>
+ * Copyright (C) 2012 by Salvatore Sanfilippo <antirez@gmail.com>
+ *
+ * All rights reserved
+ */
+package test;
+
+import cpr.CPREncoder;
+import cpr.ConcurrentCPRTracker;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/*
+ * Contention benchmark for ConcurrentCPRTracker
+ *
+ * Each thread feeds frames for aircraft picked at random from a shared
+ * fleet, so threads regularly meet on the same aircraft. The table is run
+ * with a single stripe, the equivalent of one global lock, and with the
+ * default striping, for 1, 2, 4 ... threads up to the number of cores.
+ *
+ * usage: java test.TrackerBenchmark [frames per thread]
+ */
+public final class TrackerBenchmark {
+
+    private static final int FLEET = 20000;
+
+    private static double run(final ConcurrentCPRTracker tracker, final int[] frames, int threads, final int count)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+
+            workers[t] = new Thread(() -> {
+                Random rand = new Random(seed);
+                double[] pos = new double[2];
+
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                for (int i = 0; i < count; i++) {
+                    int a = rand.nextInt(FLEET);
+                    int k = (a * 2 + (i & 1)) * 2;
+
+                    tracker.update(a, i, frames[k], frames[k + 1], (i & 1) != 0, false, pos, 0);
+                }
+            });
+
+            workers[t].start();
+        }
+
+        long begin = System.nanoTime();
+
+        start.countDown();
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        return (double) threads * count / ((System.nanoTime() - begin) / 1e9);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] frames = new int[FLEET * 4];
+        Random rand = new Random(1090L);
+
+        for (int a = 0; a < FLEET; a++) {
+            double lat = rand.nextDouble() * 160.0 - 80.0;
+            double lon = rand.nextDouble() * 350.0 - 175.0;
+
+            CPREncoder.shared().encodeCPRairborne(lat, lon, false, frames, a * 4);
+            CPREncoder.shared().encodeCPRairborne(lat, lon, true, frames, a * 4 + 2);
+        }
+
+        System.out.printf("%-8s %16s %16s\n", "threads", "1 stripe", "striped");
+
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            ConcurrentCPRTracker single = new ConcurrentCPRTracker(FLEET, 1);
+            ConcurrentCPRTracker striped = new ConcurrentCPRTracker(FLEET);
+
+            // one pass to warm up, then the timed pass
+            run(single, frames, threads, count / 4);
+            run(striped, frames, threads, count / 4);
+
+            System.out.printf("%-8d %12.2f M/s %12.2f M/s\n", threads,
+                    run(single, frames, threads, count) / 1e6,
+                    run(striped, frames, threads, count) / 1e6);
+        }
+    }
+}